@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import com.jayway.jsonpath.JsonPath;
+
+/**
+ * Generates the synthetic JSON documents that the benchmarks are run against.
+ * <p>
+ * Documents have the shape:
+ * <pre>
+ * { "items" : [ { "id" : 0, "name" : "item-0", "price" : 12.5, "inStock" : true,
+ *                 "tags" : [ "tag-0", "tag-1" ],
+ *                 "details" : { "description" : "...", "ratings" : [ 1, 2, 3 ] } },
+ *               ... ],
+ *   "meta" : { "count" : 1234, "generator" : "..." } }
+ * </pre>
+ * with as many items as it takes to reach the requested size. The content is derived from the
+ * item index only, so the same size always gives the same document.
+ */
+public final class BenchmarkDocuments {
+
+	/**
+	 * The expressions that the benchmarks are run with, one of each shape: a field of the root,
+	 * a deep scan, wildcards and a filter.
+	 */
+	public static final String ROOT_FIELD = "$.meta.count";
+
+	public static final String DEEP_SCAN = "$..price";
+
+	public static final String WILDCARDS = "$.items[*].tags[*]";
+
+	public static final String FILTER = "$.items[?(@.price < 10)]";
+
+	private static final String DESCRIPTION = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore";
+
+	/**
+	 * Parses a document size such as <code>512B</code>, <code>1KB</code>, <code>100MB</code> or <code>1GB</code>.
+	 *
+	 * @param size  The size, with an optional (case-insensitive) unit.
+	 * @return  The size in characters.
+	 * @throws IllegalArgumentException  If <code>size</code> cannot be parsed.
+	 */
+	public static final long parseSize(final String size) throws IllegalArgumentException {
+		if (size == null) {
+			throw new IllegalArgumentException(new NullPointerException("size"));
+		}
+
+		final String s = size.trim().toUpperCase(Locale.ENGLISH);
+
+		long multiplier = 1L;
+		int end = s.length();
+		if (s.endsWith("KB")) {
+			multiplier = 1024L;
+			end -= 2;
+		} else if (s.endsWith("MB")) {
+			multiplier = 1024L * 1024L;
+			end -= 2;
+		} else if (s.endsWith("GB")) {
+			multiplier = 1024L * 1024L * 1024L;
+			end -= 2;
+		} else if (s.endsWith("B")) {
+			end -= 1;
+		}
+
+		try {
+			return Long.parseLong(s.substring(0, end).trim()) * multiplier;
+		} catch (final NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid document size: " + size, ex);
+		}
+	}
+
+	/**
+	 * Generates a document of (about) the given size.
+	 *
+	 * @param size  The size, as accepted by {@link #parseSize(String)}.
+	 * @return  The JSON text of the document.
+	 */
+	public static final String generate(final String size) {
+		return generate(parseSize(size));
+	}
+
+	/**
+	 * Generates a document of (about) the given size.
+	 *
+	 * @param size  The size in characters - the document holds at least one item, and overshoots by at most one item and the trailing metadata.
+	 * @return  The JSON text of the document.
+	 * @throws IllegalArgumentException  If <code>size</code> does not fit in a string.
+	 */
+	public static final String generate(final long size) throws IllegalArgumentException {
+		if (size < 0 || size > Integer.MAX_VALUE - 1024) {
+			throw new IllegalArgumentException("Invalid document size: " + size);
+		}
+
+		final StringBuilder sb = new StringBuilder((int) size + 1024);
+		sb.append("{\"items\":[");
+
+		int count = 0;
+		do {
+			if (count > 0) {
+				sb.append(',');
+			}
+			appendItem(sb, count++);
+		} while (sb.length() < size - 64);
+
+		sb.append("],\"meta\":{\"count\":").append(count).append(",\"generator\":\"").append(BenchmarkDocuments.class.getName()).append("\"}}");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Applies an expression to a parsed document with plain json-path - the result that every
+	 * benchmarked path must give.
+	 *
+	 * @param expression  The expression.
+	 * @param jsonValue  The parsed document.
+	 * @return  The matching nodes, as a list (a single match, e.g. of a definite expression, is wrapped in one.)
+	 */
+	public static final List<?> expectedNodes(final String expression, final Object jsonValue) {
+		final Object result = JsonPath.compile(expression).read(jsonValue);
+		return (result instanceof List ? (List<?>) result : Collections.singletonList(result));
+	}
+
+	/**
+	 * Checks the result of a benchmarked path against the result of plain json-path, so that a
+	 * path that is fast because it gives the wrong answer does not go unnoticed.
+	 *
+	 * @param what  The name of the path, for the message.
+	 * @param expected  The result of plain json-path.
+	 * @param actual  The result of the benchmarked path.
+	 * @throws IllegalStateException  If the results differ.
+	 */
+	public static final void verify(final String what, final Object expected, final Object actual) throws IllegalStateException {
+		if (expected == null ? actual != null : !expected.equals(actual)) {
+			throw new IllegalStateException(what + " gives a different result than json-path");
+		}
+	}
+
+	private static void appendItem(final StringBuilder sb, final int index) {
+		sb.append("{\"id\":").append(index);
+		sb.append(",\"name\":\"item-").append(index).append('"');
+		// prices between 0.00 and 99.99, so that roughly a tenth of the items pass the filter
+		sb.append(",\"price\":").append((index * 7919) % 10000 / 100.0);
+		sb.append(",\"inStock\":").append(index % 3 != 0);
+		sb.append(",\"tags\":[\"tag-").append(index % 10).append("\",\"tag-").append(index % 7).append("\"]");
+		sb.append(",\"details\":{\"description\":\"").append(DESCRIPTION, 0, 40 + index % 60).append('"');
+		sb.append(",\"ratings\":[").append(index % 5).append(',').append(index % 4).append(',').append(index % 3).append("]}}");
+	}
+
+	/**
+	 * Sole constructor.
+	 */
+	private BenchmarkDocuments() {
+		super();
+	}
+
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * A minimal, in-memory stand-in for the Taverna {@link ReferenceService}, sufficient to run a
+ * <code>JsonPathActivity</code> outside of a workflow.
+ * <p>
+ * Only values registered with {@link #registerInput(Object)} can be rendered. Everything the
+ * activity registers itself (results, lists of results, error documents) is given a fresh
+ * reference but not kept, so that the stand-in does not grow over the course of a benchmark -
+ * except for the item references of registered lists, which are kept (weakly) for as long as
+ * the reference to the list is in use.
+ * There are no reference sets, so inputs are always resolved by rendering them.
+ * <p>
+ * A service created with <code>keepValues</code> set keeps the registered values as well, so
+ * that the outputs of the activity can be {@link #resolve(T2Reference) resolved} and checked.
+ * <p>
+ * The services are implemented with {@link Proxy dynamic proxies}, which keeps the stand-in
+ * independent of the parts of the reference API that the activity does not use.
+ */
+public final class InMemoryReferenceService {
+
+	private static final String NAMESPACE = "benchmark";
+
+	private final AtomicLong nextId = new AtomicLong();
+
+	private final AtomicLong registrationCount = new AtomicLong();
+
+	private final Map<T2Reference, Object> inputs = new ConcurrentHashMap<T2Reference, Object>();
+
+	private final Map<T2Reference, List<T2Reference>> lists = Collections.synchronizedMap(new WeakHashMap<T2Reference, List<T2Reference>>());
+
+	private final Map<T2Reference, Object> values;
+
+	private final ReferenceService referenceService;
+
+	private final InvocationContext invocationContext;
+
+	/**
+	 * Creates an empty reference service, that does not keep the values registered by the activity.
+	 */
+	public InMemoryReferenceService() {
+		this(false);
+	}
+
+	/**
+	 * Creates an empty reference service.
+	 *
+	 * @param keepValues  Whether to keep the values registered by the activity, so that they can be resolved.
+	 */
+	public InMemoryReferenceService(final boolean keepValues) {
+		super();
+
+		this.values = (keepValues ? Collections.synchronizedMap(new WeakHashMap<T2Reference, Object>()) : null);
+
+		this.referenceService = proxy(ReferenceService.class, new ServiceHandler());
+
+		this.invocationContext = proxy(InvocationContext.class, new InvocationHandler() {
+
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				if (method.getName().equals("getReferenceService")) {
+					return referenceService;
+				}
+				return defaultValue(proxy, method, args);
+			}
+
+		});
+	}
+
+	/**
+	 * @return  The reference service.
+	 */
+	public ReferenceService getReferenceService() {
+		return referenceService;
+	}
+
+	/**
+	 * @return  An invocation context whose reference service is {@link #getReferenceService()}.
+	 */
+	public InvocationContext getInvocationContext() {
+		return invocationContext;
+	}
+
+	/**
+	 * Registers a value that can later be rendered.
+	 *
+	 * @param value  The value.
+	 * @return  The reference to the value.
+	 */
+	public T2Reference registerInput(final Object value) {
+		final T2Reference reference = newReference(T2ReferenceType.ReferenceSet);
+		inputs.put(reference, value);
+		return reference;
+	}
+
+	/**
+	 * Resolves a reference to the value it was registered for - lists are resolved item by item.
+	 *
+	 * @param reference  The reference.
+	 * @return  The value, or <code>null</code> if it was not kept.
+	 */
+	public Object resolve(final T2Reference reference) {
+		final List<T2Reference> items = lists.get(reference);
+		if (items != null) {
+			final List<Object> list = new ArrayList<Object>(items.size());
+			for (final T2Reference item : items) {
+				list.add(resolve(item));
+			}
+			return list;
+		}
+		final Object input = inputs.get(reference);
+		return (input != null || values == null ? input : values.get(reference));
+	}
+
+	/**
+	 * @return  The number of references handed out for values registered by the activity.
+	 */
+	public long getRegistrationCount() {
+		return registrationCount.get();
+	}
+
+	private T2Reference newReference(final T2ReferenceType referenceType) {
+		final String localPart = Long.toString(nextId.getAndIncrement());
+		final URI uri = URI.create("t2:ref//" + NAMESPACE + "?" + localPart);
+
+		return proxy(T2Reference.class, new InvocationHandler() {
+
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				final String name = method.getName();
+				if (name.equals("getReferenceType")) {
+					return referenceType;
+				} else if (name.equals("getNamespacePart")) {
+					return NAMESPACE;
+				} else if (name.equals("getLocalPart")) {
+					return localPart;
+				} else if (name.equals("toUri")) {
+					return uri;
+				} else if (name.equals("toString")) {
+					return uri.toString();
+				}
+				return defaultValue(proxy, method, args);
+			}
+
+		});
+	}
+
+	/**
+	 * Handles the reference service and its sub-services (list, error document and reference set services).
+	 */
+	private final class ServiceHandler implements InvocationHandler {
+
+		public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+			final String name = method.getName();
+			final Class<?> returnType = method.getReturnType();
+
+			if (name.equals("renderIdentifier")) {
+				return inputs.get(args[0]);
+			} else if (name.equals("getReferenceSet")) {
+				// no reference sets - inputs are rendered instead
+				return null;
+			} else if (name.equals("getList")) {
+				return identifiedList(lists.get(args[0]));
+			} else if (name.startsWith("get") && name.endsWith("Service")) {
+				return proxy(returnType, this);
+			} else if (name.startsWith("register")) {
+				registrationCount.incrementAndGet();
+
+				final boolean list = name.equals("registerList") || (name.equals("register") && args[0] instanceof List && ((Integer) args[1]).intValue() > 0);
+				final T2ReferenceType referenceType = (list ? T2ReferenceType.IdentifiedList
+						: name.equals("registerError") ? T2ReferenceType.ErrorDocument : T2ReferenceType.ReferenceSet);
+				final T2Reference reference = newReference(referenceType);
+
+				if (list) {
+					lists.put(reference, itemReferences((List<?>) args[0]));
+				} else if (values != null && name.equals("register")) {
+					values.put(reference, args[0]);
+				}
+
+				if (returnType == T2Reference.class) {
+					return reference;
+				}
+
+				// an identified list or error document
+				return proxy(returnType, new InvocationHandler() {
+
+					public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+						if (method.getName().equals("getId")) {
+							return reference;
+						}
+						return defaultValue(proxy, method, args);
+					}
+
+				});
+			}
+			return defaultValue(proxy, method, args);
+		}
+
+	}
+
+	/**
+	 * @return  References for the items of a list that is being registered (the items themselves, if they are references already.)
+	 */
+	private List<T2Reference> itemReferences(final List<?> items) {
+		final List<T2Reference> references = new ArrayList<T2Reference>(items.size());
+		for (final Object item : items) {
+			if (item instanceof T2Reference) {
+				references.add((T2Reference) item);
+			} else {
+				final T2Reference reference = newReference(T2ReferenceType.ReferenceSet);
+				if (values != null) {
+					values.put(reference, item);
+				}
+				references.add(reference);
+			}
+		}
+		return references;
+	}
+
+	private static IdentifiedList<T2Reference> identifiedList(final List<T2Reference> items) {
+		final List<T2Reference> list = (items == null ? Collections.<T2Reference>emptyList() : items);
+
+		@SuppressWarnings("unchecked")
+		final IdentifiedList<T2Reference> identifiedList = proxy(IdentifiedList.class, new InvocationHandler() {
+
+			public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+				if (method.getDeclaringClass().isAssignableFrom(List.class)) {
+					return method.invoke(list, args);
+				}
+				return defaultValue(proxy, method, args);
+			}
+
+		});
+		return identifiedList;
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(InMemoryReferenceService.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * Identity semantics for the methods of {@link Object}, and <code>null</code> / zero / <code>false</code> for anything else.
+	 */
+	static Object defaultValue(final Object proxy, final Method method, final Object[] args) {
+		final String name = method.getName();
+		final Class<?> returnType = method.getReturnType();
+
+		if (name.equals("equals") && args != null && args.length == 1) {
+			return proxy == args[0];
+		} else if (name.equals("hashCode") && args == null) {
+			return System.identityHashCode(proxy);
+		} else if (name.equals("toString") && args == null) {
+			return method.getDeclaringClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+		} else if (returnType == boolean.class) {
+			return Boolean.FALSE;
+		} else if (returnType == int.class) {
+			return 0;
+		} else if (returnType == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.ParseException;
+import net.sf.taverna.t2.activities.jsonpath.JsonPathActivity;
+import net.sf.taverna.t2.activities.jsonpath.JsonPathActivityConfigurationBean;
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityConfigurationException;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the complete <code>JsonPathActivity.executeAsynch</code> pipeline - rendering the
+ * input, parsing it, applying the expression, serializing the matching nodes and registering
+ * the outputs - against an {@link InMemoryReferenceService}, for each document size and
+ * expression shape, with and without streaming.
+ * <p>
+ * The larger sizes need a large heap (the 500MB document takes several GB once parsed);
+ * select sizes with e.g. <code>-p size=1KB,1MB</code>.
+ * <p>
+ * Each trial starts with a run against a reference service that keeps the outputs, whose
+ * matching nodes are checked against plain json-path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+public class JsonPathActivityBenchmark {
+
+	@Param({ "1KB", "1MB", "100MB", "500MB" })
+	public String size;
+
+	@Param({ BenchmarkDocuments.ROOT_FIELD, BenchmarkDocuments.DEEP_SCAN, BenchmarkDocuments.WILDCARDS, BenchmarkDocuments.FILTER })
+	public String expression;
+
+	@Param({ "false", "true" })
+	public boolean streamingEnabled;
+
+	private JsonPathActivity activity;
+
+	private InMemoryReferenceService referenceService;
+
+	private Map<String, T2Reference> inputs;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ActivityConfigurationException, ParseException {
+		final JsonPathActivityConfigurationBean configBean = new JsonPathActivityConfigurationBean();
+		configBean.setJsonPathAsString(expression);
+		configBean.setStreamingEnabled(streamingEnabled);
+
+		activity = new JsonPathActivity();
+		activity.configure(configBean);
+
+		final String jsonText = BenchmarkDocuments.generate(size);
+		verify(jsonText);
+
+		referenceService = new InMemoryReferenceService();
+		inputs = Collections.singletonMap("json_text", referenceService.registerInput(jsonText));
+	}
+
+	/**
+	 * Runs the activity once, and checks its outputs against the nodes that plain json-path matches.
+	 */
+	private void verify(final String jsonText) throws ParseException {
+		final InMemoryReferenceService checkedService = new InMemoryReferenceService(true);
+		final Callback callback = new Callback(checkedService.getInvocationContext());
+		activity.executeAsynch(Collections.singletonMap("json_text", checkedService.registerInput(jsonText)), callback);
+		final Map<String, T2Reference> outputs = callback.getOutputs();
+
+		final List<?> expected = BenchmarkDocuments.expectedNodes(expression, JSONValue.parseWithException(jsonText));
+		final List<Object> actual = new ArrayList<Object>();
+		for (final Object node : (List<?>) checkedService.resolve(outputs.get("nodelistAsJSON"))) {
+			actual.add(JSONValue.parseWithException((String) node));
+		}
+		BenchmarkDocuments.verify("nodelistAsJSON", expected, actual);
+
+		final Object firstNode = checkedService.resolve(outputs.get("firstNodeAsJSON"));
+		BenchmarkDocuments.verify("firstNodeAsJSON", expected.isEmpty() ? null : expected.get(0),
+				firstNode == null ? null : JSONValue.parseWithException((String) firstNode));
+	}
+
+	@Benchmark
+	public Map<String, T2Reference> executeAsynch() {
+		final Callback callback = new Callback(referenceService.getInvocationContext());
+		activity.executeAsynch(inputs, callback);
+		return callback.getOutputs();
+	}
+
+	/**
+	 * Runs the activity on the calling thread, and keeps its (complete) outputs.
+	 */
+	private static final class Callback implements AsynchronousActivityCallback {
+
+		private final InvocationContext context;
+
+		private Map<String, T2Reference> outputs;
+
+		private Callback(final InvocationContext context) {
+			this.context = context;
+		}
+
+		public InvocationContext getContext() {
+			return context;
+		}
+
+		public String getParentProcessIdentifier() {
+			return "benchmark";
+		}
+
+		public void requestRun(final Runnable runnable) {
+			runnable.run();
+		}
+
+		public void receiveResult(final Map<String, T2Reference> data, final int[] index) {
+			if (index.length == 0) {
+				outputs = data;
+			}
+		}
+
+		public void receiveCompletion(final int[] completionIndex) {
+			// no streamed results to complete
+		}
+
+		public void fail(final String message, final Throwable t) {
+			throw new IllegalStateException(message, t);
+		}
+
+		public void fail(final String message) {
+			throw new IllegalStateException(message);
+		}
+
+		private Map<String, T2Reference> getOutputs() {
+			if (outputs == null) {
+				throw new IllegalStateException("The activity did not produce any outputs");
+			}
+			return outputs;
+		}
+
+	}
+
+}
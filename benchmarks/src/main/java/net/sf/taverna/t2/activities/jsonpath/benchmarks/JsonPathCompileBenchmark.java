@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathQueryPlan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jayway.jsonpath.JsonPath;
+
+/**
+ * Measures compiling JSONPath expressions, for each expression shape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonPathCompileBenchmark {
+
+	@Param({ BenchmarkDocuments.ROOT_FIELD, BenchmarkDocuments.DEEP_SCAN, BenchmarkDocuments.WILDCARDS, BenchmarkDocuments.FILTER })
+	public String expression;
+
+	/**
+	 * <code>JsonPath.compile</code>.
+	 */
+	@Benchmark
+	public JsonPath compile() {
+		return JsonPath.compile(expression);
+	}
+
+	/**
+	 * <code>JSONPathQueryPlan.compile</code> - tokenizes the expression and resolves the filters of its tokens.
+	 */
+	@Benchmark
+	public JSONPathQueryPlan compileQueryPlan() {
+		return JSONPathQueryPlan.compile(expression);
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.ParseException;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathQueryPlan;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jayway.jsonpath.JsonPath;
+
+/**
+ * Measures parsing JSON text and applying JSONPath expressions to parsed documents, for
+ * each document size and expression shape.
+ * <p>
+ * The larger sizes need a large heap (the 500MB document takes several GB once parsed);
+ * select sizes with e.g. <code>-p size=1KB,1MB</code>.
+ * <p>
+ * Each trial starts by checking the result of every benchmark against plain json-path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx8g" })
+public class JsonPathReadBenchmark {
+
+	@Param({ "1KB", "1MB", "100MB", "500MB" })
+	public String size;
+
+	@Param({ BenchmarkDocuments.ROOT_FIELD, BenchmarkDocuments.DEEP_SCAN, BenchmarkDocuments.WILDCARDS, BenchmarkDocuments.FILTER })
+	public String expression;
+
+	private String jsonText;
+
+	private Object jsonValue;
+
+	private JsonPath jsonPath;
+
+	private JSONPathQueryPlan queryPlan;
+
+	@Setup(Level.Trial)
+	public void setUp() throws ParseException {
+		jsonText = BenchmarkDocuments.generate(size);
+		jsonValue = JSONValue.parseWithException(jsonText);
+		jsonPath = JsonPath.compile(expression);
+		queryPlan = JSONPathQueryPlan.compile(jsonPath);
+
+		final Object expected = jsonPath.read(jsonValue);
+		BenchmarkDocuments.verify("parse", jsonValue, parse());
+		BenchmarkDocuments.verify("read", expected, read());
+		BenchmarkDocuments.verify("readQueryPlan", expected, readQueryPlan());
+		BenchmarkDocuments.verify("parseAndRead", expected, parseAndRead());
+	}
+
+	/**
+	 * <code>JSONValue.parseWithException</code> - the parse that every invocation of the activity starts with.
+	 * (Does not depend on the expression, so only one of them needs to be run: <code>-p expression='$.meta.count'</code>.)
+	 */
+	@Benchmark
+	public Object parse() throws ParseException {
+		return JSONValue.parseWithException(jsonText);
+	}
+
+	/**
+	 * <code>JSONPathUtils.read</code> with an expression compiled by json-path.
+	 */
+	@Benchmark
+	public Object read() {
+		return JSONPathUtils.read(jsonPath, jsonValue);
+	}
+
+	/**
+	 * <code>JSONPathUtils.read</code> with a pre-compiled query plan.
+	 */
+	@Benchmark
+	public Object readQueryPlan() {
+		return JSONPathUtils.read(queryPlan, jsonValue);
+	}
+
+	/**
+	 * Parse and read, as a single step.
+	 */
+	@Benchmark
+	public Object parseAndRead() throws ParseException {
+		return JSONPathUtils.read(queryPlan, JSONValue.parseWithException(jsonText));
+	}
+
+}
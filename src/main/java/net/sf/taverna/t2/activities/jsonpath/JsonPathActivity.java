@@ -1,17 +1,12 @@
 package net.sf.taverna.t2.activities.jsonpath;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import net.minidev.json.JSONValue;
-import net.minidev.json.parser.ParseException;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathQueryPlan;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathQuerySet;
 import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
-import net.sf.taverna.t2.invocation.InvocationContext;
-import net.sf.taverna.t2.reference.ErrorDocumentService;
-import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONStringPool;
 import net.sf.taverna.t2.reference.T2Reference;
 import net.sf.taverna.t2.workflowmodel.processor.activity.AbstractAsynchronousActivity;
 import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityConfigurationException;
@@ -19,7 +14,6 @@ import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivity;
 import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
 
 import com.jayway.jsonpath.InvalidPathException;
-import com.jayway.jsonpath.JsonPath;
 
 /**
  * Enhanced XPath activity.
@@ -31,22 +25,63 @@ public class JsonPathActivity extends
 		implements AsynchronousActivity<JsonPathActivityConfigurationBean>
 {
   
-	private static final String NULL_VALUE_FOR_STRING = "";
-	// These ports are default ones (and only ones - JsonPath activity will not have dynamic ports)
-  private static final String IN_JSON = "json_text";
-  private static final String OUT_TEXT = "nodelist";
-	private static final String OUT_JSON = "nodelistAsJSON";
-	  private static final String SINGLE_VALUE_TEXT = "firstNode";
-		private static final String SINGLE_VALUE_JSON = "firstNodeAsJSON";
+	static final String NULL_VALUE_FOR_STRING = "";
+	// These ports are default ones - in addition, a pair of list outputs is created
+	// for each named JsonPath expression in the config bean: "<name>" and "<name>AsJSON"
+	static final String AS_JSON_SUFFIX = "AsJSON";
+	static final String IN_JSON = "json_text";
+	static final String OUT_TEXT = "nodelist";
+	static final String OUT_JSON = OUT_TEXT + AS_JSON_SUFFIX;
+	static final String SINGLE_VALUE_TEXT = "firstNode";
+	static final String SINGLE_VALUE_JSON = "firstNodeAsJSON";
 	
-	// Configuration bean for this activity - essentially defines a particular instance
-	// of the activity through the values of its parameters
-	private JsonPathActivityConfigurationBean configBean;
+	// Everything that invocations of this activity work with - replaced as a whole on every
+	// (re)configuration, so that an invocation never pairs a new configuration bean with the
+	// plans, executor or strings of an old one
+	private volatile Configuration configuration;
+	
+	// Runtime metrics of all invocations of this activity - exposed through JMX
+	// (under the configured expression) if the config bean asks for it
+	private final JsonPathActivityMetrics metrics = new JsonPathActivityMetrics();
+	
+	
+	/**
+	 * The state of a configured activity - built once per (re)configuration and never changed.
+	 */
+	private static class Configuration
+	{
+	  // Configuration bean for this activity - essentially defines a particular instance
+	  // of the activity through the values of its parameters
+	  private final JsonPathActivityConfigurationBean configBean;
+	  
+	  // Pre-compiled form of the JsonPath expressions in the config bean - shared by all
+	  // invocations of this configuration; the main expression is keyed by OUT_TEXT, the
+	  // named ones by their own names
+	  private final JSONPathQuerySet querySet;
+	  
+	  // Runs the invocations on the backend selected in the config bean, within its budget
+	  // of concurrently parsed input
+	  private final JsonPathActivityExecutor executor;
+	  
+	  // Tables of the short strings of the input documents, if they are interned - reused
+	  // from one document to the next, and backed by a table shared by all invocations if
+	  // they are interned per activity; null if strings are not interned
+	  private final JSONStringPool.Recycler stringPools;
+	  
+	  private Configuration(JsonPathActivityConfigurationBean configBean, JSONPathQuerySet querySet,
+	      JsonPathActivityExecutor executor, JSONStringPool.Recycler stringPools) {
+	    this.configBean = configBean;
+	    this.querySet = querySet;
+	    this.executor = executor;
+	    this.stringPools = stringPools;
+	  }
+	}
 	
 	
 	@Override
   public JsonPathActivityConfigurationBean getConfiguration() {
-    return this.configBean;
+    Configuration configuration = this.configuration;
+    return (configuration == null ? null : configuration.configBean);
   }
 	
 	
@@ -58,11 +93,90 @@ public class JsonPathActivity extends
 	    throw new ActivityConfigurationException("Invalid configuration of JsonPath activity...");  // TODO - check this
 	  }
 	  
-		// Store for getConfiguration()
-		this.configBean = configBean;
+	  // Compile the JsonPath expressions once, so that they are not re-parsed on every invocation
+	  Map<String, JSONPathQueryPlan> queryPlans = new LinkedHashMap<String, JSONPathQueryPlan>();
+	  try {
+	    queryPlans.put(OUT_TEXT, JSONPathQueryPlan.compile(configBean.getJsonPathAsString()));
+	    if (configBean.getNamedJsonPaths() != null) {
+	      for (Map.Entry<String, String> namedJsonPath : configBean.getNamedJsonPaths().entrySet()) {
+	        queryPlans.put(namedJsonPath.getKey(), JSONPathQueryPlan.compile(namedJsonPath.getValue()));
+	      }
+	    }
+	  }
+	  catch (InvalidPathException e) {
+	    throw new ActivityConfigurationException("Incorrect JsonPath Expression -- JsonPath processing library " +
+	        "reported the following error: " + e.getMessage(), e);
+	  }
+	  
+	  // Make sure that the selected JSON provider is available
+	  try {
+	    JSONPathUtils.createProvider(configBean.getJsonProvider());
+	  }
+	  catch (IllegalArgumentException e) {
+	    throw new ActivityConfigurationException(e.getMessage(), e);
+	  }
+	  
+		// Swap in the new plans, executor and (if strings are interned) fresh tables of strings,
+		// all at once - invocations that are already running keep using the old ones, and the
+		// old executor finishes the invocations queued for it first
+		Configuration previous = this.configuration;
+		this.configuration = new Configuration(configBean, new JSONPathQuerySet(queryPlans),
+		    JsonPathActivityExecutor.create(configBean), createStringPools(configBean.getStringInterning()));
+		if (previous != null) {
+		  previous.executor.shutdown();
+		}
 		
 		// (Re)create input/output ports depending on configuration
 		configurePorts();
+		
+		// (re)register the metrics under the new expression - only if asked to, as the MBean server
+		// holds on to them (and so to the activity) until they are unregistered again
+		if (configBean.isMetricsMBeanEnabled()) {
+		  metrics.register(configBean.getJsonPathAsString());
+		}
+		else {
+		  metrics.unregister();
+		}
+	}
+	
+	
+	/**
+	 * @return The tables for the strings of the input documents in the given mode of interning,
+	 *         or <code>null</code> if strings are not to be interned.
+	 */
+	private static JSONStringPool.Recycler createStringPools(String stringInterning)
+	{
+	  if (stringInterning == null || JsonPathActivityConfigurationBean.INTERN_NONE.equals(stringInterning)) {
+	    return null;
+	  }
+	  return new JSONStringPool.Recycler(JsonPathActivityConfigurationBean.INTERN_ACTIVITY.equals(stringInterning) ?
+	      new JSONStringPool() : null);
+	}
+	
+	
+	/**
+	 * Releases what this activity holds on to outside of itself: the threads of its execution
+	 * backend (once the invocations queued for them have finished), and the registration of its
+	 * metrics with the MBean server (if any). Configuring the activity again makes it usable again.
+	 * <p>
+	 * The activity doesn't depend on this being called: idle threads of its backend time out, and
+	 * its metrics are only registered if the configuration asks for it.
+	 */
+	public void dispose()
+	{
+	  Configuration configuration = this.configuration;
+	  if (configuration != null) {
+	    configuration.executor.shutdown();
+	  }
+	  metrics.unregister();
+	}
+	
+	
+	/**
+	 * @return Runtime metrics of the invocations of this activity.
+	 */
+	public JsonPathActivityMetrics getMetrics() {
+	  return metrics;
 	}
 	
 	
@@ -77,128 +191,58 @@ public class JsonPathActivity extends
 		
 		// ---- CREATE NEW INPUTS AND OUTPUTS ----
 		
-		// all ports in this activity are static, so no dependency on the values in config bean
+		JsonPathActivityConfigurationBean configBean = configuration.configBean;
+		
+		// in batch mode, the input is a list of documents - and each output holds
+		// one value per document, so all ports are one level deeper
+		int batchDepth = (configBean.isBatchMode() ? 1 : 0);
+		
+		// NDJSON input is a single text with many documents (records) in it, so
+		// only the outputs are one level deeper
+		int outputDepth = (configBean.isNdjsonInput() ? batchDepth + 1 : batchDepth);
 		
 		// single input port: the input JSON text will be treated as String for now
-	  addInput(IN_JSON, 0, true, null, String.class);
+	  addInput(IN_JSON, batchDepth, true, null, String.class);
 		
 
-	  addOutput(SINGLE_VALUE_TEXT, 0);
-	  addOutput(SINGLE_VALUE_JSON, 0);
-		addOutput(OUT_TEXT, 1);
-		addOutput(OUT_JSON, 1);
+		// outputs that are omitted in the config bean are not created at all
+		addOutputIfProduced(configBean, SINGLE_VALUE_TEXT, outputDepth);
+		addOutputIfProduced(configBean, SINGLE_VALUE_JSON, outputDepth);
+		addOutputIfProduced(configBean, OUT_TEXT, outputDepth + 1);
+		addOutputIfProduced(configBean, OUT_JSON, outputDepth + 1);
+		
+		// dynamic ports: a pair of node lists for each named JsonPath expression
+		if (configBean.getNamedJsonPaths() != null) {
+		  for (String name : configBean.getNamedJsonPaths().keySet()) {
+		    addOutputIfProduced(configBean, name, outputDepth + 1);
+		    addOutputIfProduced(configBean, name + AS_JSON_SUFFIX, outputDepth + 1);
+		  }
+		}
 
 	}
 	
 	
 	
+	private void addOutputIfProduced(JsonPathActivityConfigurationBean configBean, String portName, int depth) {
+	  if (configBean.isOutputProduced(portName)) {
+	    addOutput(portName, depth);
+	  }
+	}
+	
+	
+	
 	/**
 	 * This method executes pre-configured instance of JsonPath activity.
 	 */
 	public void executeAsynch(final Map<String,T2Reference> inputs, final AsynchronousActivityCallback callback)
 	{
-		// Don't execute service directly now, request to be run asynchronously
-		callback.requestRun(new Runnable() {
-			public void run() {
-			  
-				InvocationContext context = callback.getContext();
-				ReferenceService referenceService = context.getReferenceService();
-				
-				// ---- RESOLVE INPUT ----
-				
-				String jsonInput = (String) referenceService.renderIdentifier(inputs.get(IN_JSON), String.class, context);
-				
-				
-				// ---- DO THE ACTUAL SERVICE INVOCATION ----
-				
-				// only attempt to execute JsonPath expression if there is some input data
-				if ((jsonInput == null) || jsonInput.length() == 0)
-				{
-					callback.fail("Empty input");
-					return;
-				}
-  				// JsonPath configuration is taken from the config bean
-  				JsonPath expr = null;
-  				String expressionText = configBean.getJsonPathAsString();
-  		    try {
-  		      expr = JsonPath.compile(expressionText);
-  		    }
-  		    catch (InvalidPathException e)
-  		    {
-  		      callback.fail("Incorrect JsonPath Expression -- JsonPath processing library " +
-  		      		"reported the following error: " + e.getMessage(), e);
-  		      
-            // make sure we don't call callback.receiveResult later
-  		      return;
-  		    }
-  		    
-  		  Object jsonObject;
-  		  try {
-			jsonObject = JSONValue.parseWithException(jsonInput);
-		} catch (ParseException e) {
-			callback.fail(e.getMessage(), e);
-			return;
-		}
-			Object resultValue = JSONPathUtils.read(expr, jsonObject);
-			List<?> resultValues = null;
-			if (!(resultValue instanceof List)) {
-				resultValues = Collections.singletonList(resultValue);
-			} else {
-				resultValues = (List) resultValue;
-			}
-				
-				
-		    // --- PREPARE OUTPUTS ---
-				
-		    List<String> outNodesText = new ArrayList<String>();
-		    List<String> outNodesJSON = new ArrayList<String>();
-		    
-			for (Object o : resultValues) {
-				outNodesText.add((o == null ? NULL_VALUE_FOR_STRING : o.toString()));
-				outNodesJSON.add(JSONValue.toJSONString(o));
-			}			
-				// ---- REGISTER OUTPUTS ----
-		    
-				Map<String, T2Reference> outputs = new HashMap<String, T2Reference>();
-				
-				Object textValue;
-				Object jsonValue;
-				if (outNodesText.isEmpty()) {
-					ErrorDocumentService errorDocService = referenceService.getErrorDocumentService();
-	
-					textValue = errorDocService.registerError("No value produced" , 
-							0, callback.getContext());
-				} else {
-					textValue = outNodesText.get(0);
-				}
-				
-				if (outNodesJSON.isEmpty()) {
-					ErrorDocumentService errorDocService = referenceService.getErrorDocumentService();
-	
-					jsonValue = errorDocService.registerError("No value produced" , 
-							0, callback.getContext());
-				} else {
-					jsonValue = outNodesJSON.get(0);
-				}
-				
-				T2Reference firstNodeAsText = referenceService.register(textValue, 0, true, context);
-				T2Reference firstNodeAsJson = referenceService.register(jsonValue, 0, true, context);
-				outputs.put(SINGLE_VALUE_TEXT, firstNodeAsText);
-				outputs.put(SINGLE_VALUE_JSON, firstNodeAsJson);
-				
-
-					T2Reference outNodesAsText = referenceService.register(outNodesText, 1, true, context);
-					outputs.put(OUT_TEXT, outNodesAsText);
-				
-					T2Reference outNodesAsXML = referenceService.register(outNodesJSON, 1, true, context);
-					outputs.put(OUT_JSON, outNodesAsXML);
-
-				// return map of output data, with empty index array as this is
-				// the only and final result (this index parameter is used if
-				// pipelining output)
-				callback.receiveResult(outputs, new int[0]);
-			}
-		});
+		// Pick up the current configuration - all work for this invocation is done with it,
+		// even if the activity gets reconfigured in the meantime
+		final Configuration configuration = this.configuration;
+		
+		// Don't execute service directly now, have it run asynchronously by the configured backend
+		configuration.executor.execute(new JsonPathActivityInvocation(configuration.querySet, configuration.configBean,
+		    inputs, callback, metrics, configuration.executor, configuration.stringPools), callback);
 	}
 
 }
@@ -1,6 +1,15 @@
 package net.sf.taverna.t2.activities.jsonpath;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
 
 import com.jayway.jsonpath.InvalidPathException;
 import com.jayway.jsonpath.JsonPath;
@@ -16,10 +25,123 @@ public class JsonPathActivityConfigurationBean implements Serializable
   public static final int JSONPATH_EMPTY = 0;
   public static final int JSONPATH_INVALID = -1;
   
+  // modes of interning repeated short strings (property names and values) while parsing
+  public static final String INTERN_NONE = "none";
+  public static final String INTERN_DOCUMENT = "document";
+  public static final String INTERN_ACTIVITY = "activity";
+  
+  // names of the static ports of the activity - these can't be used as names of additional expressions
+  private static final List<String> RESERVED_PORT_NAMES = Arrays.asList(
+      JsonPathActivity.IN_JSON, JsonPathActivity.OUT_TEXT, JsonPathActivity.OUT_JSON,
+      JsonPathActivity.SINGLE_VALUE_TEXT, JsonPathActivity.SINGLE_VALUE_JSON);
+  
+  private static final Pattern PORT_NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+  
   
 	private String jsonText;
 	private String jsonPathAsString;
 	
+	// additional JsonPath expressions, keyed by the names of the output ports
+	// that are generated for them; all are evaluated against the same input
+	private Map<String, String> namedJsonPaths = new LinkedHashMap<String, String>();
+	
+	// when set, the input document is streamed and only the parts of it
+	// that are relevant to the JsonPath expression are materialized; the
+	// projections are json-smart objects, so streaming can only be combined
+	// with the default JSON provider, and the input must be strict JSON
+	// (unlike the permissive parsing of json-smart, unquoted or single-quoted
+	// names and strings, trailing commas etc. are rejected)
+	private boolean streamingEnabled;
+	
+	// when set, each matched node is pushed downstream as soon as it is
+	// registered, ahead of the complete result lists
+	private boolean pipelineResults;
+	
+	// when set, parsed input documents are looked up in / added to the
+	// JVM-wide JsonPathDocumentCache, keyed by the reference of the input;
+	// streamed inputs are never cached (see streamingEnabled)
+	private boolean documentCacheEnabled;
+	
+	// when set, the input document is parsed straight from the bytes held by
+	// the reference service (memory-mapped when they are in a file), rather
+	// than from a String rendering of it
+	private boolean byteInputEnabled;
+	
+	// names of output ports that are not to be created (nor their values computed);
+	// all outputs are produced if this is null or empty
+	private Set<String> omittedOutputs = new HashSet<String>();
+	
+	// name of the JsonProvider used for parsing, evaluation and serialization
+	// (see JSONPathUtils#createProvider(String)); null means json-smart
+	private String jsonProvider;
+	
+	// when set, the input port takes a list of JSON documents and every output
+	// gets one more level of depth - one item (or list of nodes) per document;
+	// outputs are registered once for the whole batch, so results are not pipelined
+	private boolean batchMode;
+	
+	// number of threads that the documents of a batch are spread over - the invoking
+	// thread and threads of the execution backend; values below 2 mean that the
+	// documents are processed one by one
+	private int batchParallelism = 1;
+	
+	// when set, the input is newline-delimited JSON (NDJSON / JSON Lines) - the
+	// JsonPath expressions are applied to each record (line) separately, and every
+	// output gets one more level of depth, with one item per record; can't be
+	// combined with batch mode
+	private boolean ndjsonInput;
+	
+	// number of elements of a list in the input document from which on the rest of the
+	// JsonPath expression is applied to it by several threads; 0 means the default
+	// threshold (JSONPathQuerySet.DEFAULT_PARALLEL_THRESHOLD), negative values disable it
+	private int parallelThreshold;
+	
+	// maximum number of nodes matched by each JsonPath expression that are output (the
+	// first of all of them, in the order of the results) - 0 means all of them; streamed
+	// input is left unread once that many are found, unless an expression has a deep scan
+	// or a wildcard over the properties of an object, whose results are not in document order
+	private int maxResults;
+	
+	// when set, matched objects and arrays are output in the "AsJSON" ports as their text
+	// in the input document - with its original formatting - instead of being serialized
+	// again; requires streamingEnabled
+	private boolean verbatimJson;
+	
+	// how invocations are run: "callback" (or null) to hand them to the workflow engine,
+	// "pool" for a fixed number of threads of the activity, "virtual" for a virtual
+	// thread per invocation (where the JVM has them, the pool otherwise)
+	private String executionBackend;
+	
+	// number of threads of the "pool" backend; 0 means one per available processor
+	private int executorThreads;
+	
+	// maximum total size (in bytes) of the inputs that invocations of the activity parse
+	// at the same time - further invocations are queued until enough of them have
+	// finished; 0 means no limit (and inputs are not sized at all)
+	private long maxConcurrentBytes;
+	
+	// when set, the output values produced for each input document are memoized in the
+	// JVM-wide JsonPathResultMemo, keyed by a hash of the content of the document (and of
+	// the expressions), and reused for identical documents instead of evaluating them again;
+	// the document is then read completely before it is parsed (to hash it), and nodes are
+	// pushed downstream (if results are pipelined) once they have all been serialized
+	private boolean resultMemoEnabled;
+	
+	// how repeated short strings in the input (property names, small values) and in the
+	// node lists that are output share their instances: "none" (or null) for not at all,
+	// "document" for a bounded table per input document (which starts out empty - only its
+	// allocation is reused by later documents), "activity" for such a table backed by one
+	// that is shared by all invocations of the activity; only
+	// json-smart (the default) and "tape" providers intern while parsing - json-smart
+	// documents are then parsed as strict JSON, as they are when streaming
+	private String stringInterning;
+	
+	// when set, the runtime metrics of the activity are registered as an MXBean with the
+	// platform MBean server (see JsonPathActivityMetrics) - they stay registered until the
+	// activity is reconfigured without it or disposed of, which the workflow engine doesn't
+	// do for every activity it loads, so this is meant for activities being monitored only
+	private boolean metricsMBeanEnabled;
+	
 	
 	/**
 	 * @return An instance of the {@link JsonPathActivityConfigurationBean} pre-configured with
@@ -71,8 +193,70 @@ public class JsonPathActivityConfigurationBean implements Serializable
 	 *         <code>false</code> otherwise.
 	 */
 	public boolean isValid() {
-	  return (jsonPathAsString != null &&
-	          validateJsonPath(jsonPathAsString) == JSONPATH_VALID);
+	  if (jsonPathAsString == null || validateJsonPath(jsonPathAsString) != JSONPATH_VALID) {
+	    return (false);
+	  }
+	  
+	  if (batchMode && ndjsonInput) {
+	    return (false);
+	  }
+	  
+	  if (maxResults < 0) {
+	    return (false);
+	  }
+	  
+	  if (!JSONPathUtils.isValidProvider(jsonProvider)) {
+	    return (false);
+	  }
+	  
+	  // projections of streamed documents are built by json-smart
+	  if (streamingEnabled && !JSONPathUtils.isDefaultProvider(jsonProvider)) {
+	    return (false);
+	  }
+	  
+	  // the text of matched values is only kept while streaming
+	  if (verbatimJson && !streamingEnabled) {
+	    return (false);
+	  }
+	  
+	  if (executionBackend != null && !executionBackend.equals(JsonPathActivityExecutor.CALLBACK_BACKEND) &&
+	      !executionBackend.equals(JsonPathActivityExecutor.POOL_BACKEND) &&
+	      !executionBackend.equals(JsonPathActivityExecutor.VIRTUAL_BACKEND)) {
+	    return (false);
+	  }
+	  
+	  if (stringInterning != null && !stringInterning.equals(INTERN_NONE) &&
+	      !stringInterning.equals(INTERN_DOCUMENT) && !stringInterning.equals(INTERN_ACTIVITY)) {
+	    return (false);
+	  }
+	  
+	  if (namedJsonPaths != null) {
+	    for (Map.Entry<String, String> namedJsonPath : namedJsonPaths.entrySet()) {
+	      if (!isValidExpressionName(namedJsonPath.getKey()) ||
+	          namedJsonPaths.containsKey(namedJsonPath.getKey() + JsonPathActivity.AS_JSON_SUFFIX) ||
+	          namedJsonPath.getValue() == null ||
+	          validateJsonPath(namedJsonPath.getValue()) != JSONPATH_VALID) {
+	        return (false);
+	      }
+	    }
+	  }
+	  
+	  return (true);
+	}
+	
+	
+	
+	/**
+	 * Validates the name of an additional JsonPath expression - this becomes the name of
+	 * the output port for the expression's node list (the JSON version of the list gets
+	 * the same name with "AsJSON" appended).
+	 * 
+	 * @return <code>true</code> if the name can be used; <code>false</code> otherwise.
+	 */
+	public static boolean isValidExpressionName(String name) {
+	  return (name != null && PORT_NAME_PATTERN.matcher(name).matches() &&
+	          !RESERVED_PORT_NAMES.contains(name) &&
+	          !RESERVED_PORT_NAMES.contains(name + JsonPathActivity.AS_JSON_SUFFIX));
 	}
 
 
@@ -110,5 +294,389 @@ public class JsonPathActivityConfigurationBean implements Serializable
 	public final void setJsonPathAsString(String jsonPathAsString) {
 		this.jsonPathAsString = jsonPathAsString;
 	}
+
+
+
+	/**
+	 * @return additional JsonPath expressions, keyed by the names of their output ports
+	 */
+	public final Map<String, String> getNamedJsonPaths() {
+		return namedJsonPaths;
+	}
+
+
+
+	/**
+	 * @param namedJsonPaths additional JsonPath expressions, keyed by the names of their output ports
+	 */
+	public final void setNamedJsonPaths(Map<String, String> namedJsonPaths) {
+		this.namedJsonPaths = namedJsonPaths;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if the input document is to be streamed rather than
+	 *         parsed into a complete tree before the JsonPath expression is applied
+	 */
+	public final boolean isStreamingEnabled() {
+		return streamingEnabled;
+	}
+
+
+
+	/**
+	 * @param streamingEnabled whether the input document is to be streamed
+	 */
+	public final void setStreamingEnabled(boolean streamingEnabled) {
+		this.streamingEnabled = streamingEnabled;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if matched nodes are to be emitted one by one as
+	 *         partial results of the list outputs, ahead of the complete lists
+	 */
+	public final boolean isPipelineResults() {
+		return pipelineResults;
+	}
+
+
+
+	/**
+	 * @param pipelineResults whether matched nodes are to be emitted as partial results
+	 */
+	public final void setPipelineResults(boolean pipelineResults) {
+		this.pipelineResults = pipelineResults;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if parsed input documents are to be shared with other
+	 *         JsonPath activities through the {@link JsonPathDocumentCache} - this has
+	 *         no effect when streaming is enabled, as streamed inputs are not cached
+	 */
+	public final boolean isDocumentCacheEnabled() {
+		return documentCacheEnabled;
+	}
+
+
+
+	/**
+	 * @param documentCacheEnabled whether parsed input documents are to be cached
+	 */
+	public final void setDocumentCacheEnabled(boolean documentCacheEnabled) {
+		this.documentCacheEnabled = documentCacheEnabled;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if the input document is to be parsed from its bytes
+	 *         instead of being rendered as a String first
+	 */
+	public final boolean isByteInputEnabled() {
+		return byteInputEnabled;
+	}
+
+
+
+	/**
+	 * @param byteInputEnabled whether the input document is to be parsed from its bytes
+	 */
+	public final void setByteInputEnabled(boolean byteInputEnabled) {
+		this.byteInputEnabled = byteInputEnabled;
+	}
+
+
+
+	/**
+	 * @return names of the output ports that the activity is not to produce
+	 */
+	public final Set<String> getOmittedOutputs() {
+		return omittedOutputs;
+	}
+
+
+
+	/**
+	 * @param omittedOutputs names of the output ports that the activity is not to produce
+	 */
+	public final void setOmittedOutputs(Set<String> omittedOutputs) {
+		this.omittedOutputs = omittedOutputs;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> unless the output port with the given name is omitted
+	 */
+	public boolean isOutputProduced(String portName) {
+		return (omittedOutputs == null || !omittedOutputs.contains(portName));
+	}
+
+
+
+	/**
+	 * @return the name of the JSON provider to use, or <code>null</code> for the default one (json-smart)
+	 */
+	public final String getJsonProvider() {
+		return jsonProvider;
+	}
+
+
+
+	/**
+	 * @param jsonProvider the short name ("json-smart", "jackson", "tape") or class name of
+	 *                     the JSON provider to use; <code>null</code> for the default one
+	 *                     (which is the only one that streaming can be combined with)
+	 */
+	public final void setJsonProvider(String jsonProvider) {
+		this.jsonProvider = jsonProvider;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if the activity is to process a whole list of JSON
+	 *         documents per invocation, rather than a single one
+	 */
+	public final boolean isBatchMode() {
+		return batchMode;
+	}
+
+
+
+	/**
+	 * @param batchMode whether the activity is to process a list of JSON documents per invocation
+	 */
+	public final void setBatchMode(boolean batchMode) {
+		this.batchMode = batchMode;
+	}
+
+
+
+	/**
+	 * @return the number of threads that the documents of a batch are processed by
+	 */
+	public final int getBatchParallelism() {
+		return batchParallelism;
+	}
+
+
+
+	/**
+	 * @param batchParallelism the number of threads that the documents of a batch are
+	 *                         processed by (at most - the threads are those of the
+	 *                         execution backend); <code>1</code> to process them one by one
+	 */
+	public final void setBatchParallelism(int batchParallelism) {
+		this.batchParallelism = batchParallelism;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if the input is newline-delimited JSON, with the JsonPath
+	 *         expressions applied to each of its records
+	 */
+	public final boolean isNdjsonInput() {
+		return ndjsonInput;
+	}
+
+
+
+	/**
+	 * @param ndjsonInput whether the input is newline-delimited JSON (one record per line)
+	 */
+	public final void setNdjsonInput(boolean ndjsonInput) {
+		this.ndjsonInput = ndjsonInput;
+	}
+
+
+
+	/**
+	 * @return the size of lists in the input document from which on they are processed by
+	 *         several threads; <code>0</code> for the default, negative if never
+	 */
+	public final int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+
+
+	/**
+	 * @param parallelThreshold the size of lists in the input document from which on they are
+	 *                          processed by several threads; <code>0</code> for the default,
+	 *                          negative to always evaluate JsonPath expressions on a single thread
+	 */
+	public final void setParallelThreshold(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
+
+
+
+	/**
+	 * @return the maximum number of matched nodes output for each JsonPath expression;
+	 *         <code>0</code> if all of them are
+	 */
+	public final int getMaxResults() {
+		return maxResults;
+	}
+
+
+
+	/**
+	 * @param maxResults the maximum number of matched nodes output for each JsonPath
+	 *                   expression (<code>1</code> for the first match only); <code>0</code>
+	 *                   for all of them
+	 */
+	public final void setMaxResults(int maxResults) {
+		this.maxResults = maxResults;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if matched objects and arrays are to be output as JSON in the
+	 *         form they have in the input document (which requires streamed input)
+	 */
+	public final boolean isVerbatimJson() {
+		return verbatimJson;
+	}
+
+
+
+	/**
+	 * @param verbatimJson whether matched objects and arrays are to be output as JSON in the
+	 *                     form they have in the input document, rather than serialized again -
+	 *                     only valid together with {@link #setStreamingEnabled(boolean) streaming},
+	 *                     as the text of matched values is kept while it is read
+	 */
+	public final void setVerbatimJson(boolean verbatimJson) {
+		this.verbatimJson = verbatimJson;
+	}
+
+
+
+	/**
+	 * @return the name of the backend that runs invocations, or <code>null</code> for the default
+	 *         one (the workflow engine)
+	 */
+	public final String getExecutionBackend() {
+		return executionBackend;
+	}
+
+
+
+	/**
+	 * @param executionBackend "callback" to have invocations run by the workflow engine, "pool" for
+	 *                         threads of the activity, "virtual" for a virtual thread per invocation;
+	 *                         <code>null</code> for the default ("callback")
+	 */
+	public final void setExecutionBackend(String executionBackend) {
+		this.executionBackend = executionBackend;
+	}
+
+
+
+	/**
+	 * @return the number of threads of the "pool" backend; <code>0</code> for one per processor
+	 */
+	public final int getExecutorThreads() {
+		return executorThreads;
+	}
+
+
+
+	/**
+	 * @param executorThreads the number of threads of the "pool" backend; <code>0</code> for one per processor
+	 */
+	public final void setExecutorThreads(int executorThreads) {
+		this.executorThreads = executorThreads;
+	}
+
+
+
+	/**
+	 * @return the maximum total size (in bytes) of the inputs parsed by concurrent invocations;
+	 *         <code>0</code> if there is no limit
+	 */
+	public final long getMaxConcurrentBytes() {
+		return maxConcurrentBytes;
+	}
+
+
+
+	/**
+	 * @param maxConcurrentBytes the maximum total size (in bytes) of the inputs parsed by concurrent
+	 *                           invocations; <code>0</code> for no limit
+	 */
+	public final void setMaxConcurrentBytes(long maxConcurrentBytes) {
+		this.maxConcurrentBytes = maxConcurrentBytes;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if output values are to be memoized by the content of the input
+	 *         documents, through the {@link JsonPathResultMemo}
+	 */
+	public final boolean isResultMemoEnabled() {
+		return resultMemoEnabled;
+	}
+
+
+
+	/**
+	 * @param resultMemoEnabled whether output values are to be memoized by the content of the input documents
+	 */
+	public final void setResultMemoEnabled(boolean resultMemoEnabled) {
+		this.resultMemoEnabled = resultMemoEnabled;
+	}
+
+
+
+	/**
+	 * @return the mode of interning repeated short strings ("none", "document" or "activity"),
+	 *         or <code>null</code> for the default ("none")
+	 */
+	public final String getStringInterning() {
+		return stringInterning;
+	}
+
+
+
+	/**
+	 * @param stringInterning "none" not to intern strings, "document" to share repeated short strings
+	 *                        within each input document, "activity" to share them across all inputs
+	 *                        of the activity as well; <code>null</code> for the default ("none")
+	 */
+	public final void setStringInterning(String stringInterning) {
+		this.stringInterning = stringInterning;
+	}
+
+
+
+	/**
+	 * @return <code>true</code> if the runtime metrics of the activity are to be registered with
+	 *         the platform MBean server
+	 */
+	public final boolean isMetricsMBeanEnabled() {
+		return metricsMBeanEnabled;
+	}
+
+
+
+	/**
+	 * @param metricsMBeanEnabled whether the runtime metrics of the activity are to be registered with
+	 *                            the platform MBean server - where they are kept (with the activity they
+	 *                            belong to) until the activity is reconfigured without it or disposed of
+	 */
+	public final void setMetricsMBeanEnabled(boolean metricsMBeanEnabled) {
+		this.metricsMBeanEnabled = metricsMBeanEnabled;
+	}
 	
 }
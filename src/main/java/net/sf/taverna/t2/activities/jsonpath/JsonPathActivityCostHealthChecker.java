@@ -0,0 +1,214 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathQueryPlan;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
+import net.sf.taverna.t2.visit.VisitReport;
+import net.sf.taverna.t2.visit.VisitReport.Status;
+import net.sf.taverna.t2.workflowmodel.health.HealthCheck;
+import net.sf.taverna.t2.workflowmodel.health.HealthChecker;
+
+import com.jayway.jsonpath.InvalidJsonException;
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * A {@link HealthChecker} for a {@link JsonPathActivity} that analyses the cost of its
+ * JsonPath expressions: each of them is classified by the kinds of steps it contains
+ * (deep scans, nested wildcards, filters in array context), and is then applied to the
+ * example JSON document from the configuration - the time it takes, extrapolated to a
+ * production-size input, and the size of the result are reported.
+ */
+public class JsonPathActivityCostHealthChecker implements HealthChecker<JsonPathActivity>
+{
+  // size of input (in characters) that evaluation times on the example document are extrapolated to
+  static final long PROJECTED_INPUT_SIZE = 100L * 1024 * 1024;
+
+  // extrapolated evaluation time (in milliseconds) above which evaluation is reported as slow
+  static final long MAX_PROJECTED_MILLIS = 60L * 1000;
+
+  // limits of the repeated evaluations that an expression is timed by
+  private static final int MAX_PROFILING_RUNS = 100;
+  private static final long MAX_PROFILING_NANOS = 500L * 1000 * 1000;
+
+
+  public boolean canVisit(Object subject) {
+    return (subject instanceof JsonPathActivity);
+  }
+
+
+  public VisitReport visit(JsonPathActivity activity, List<Object> ancestors)
+  {
+    List<VisitReport> reports = new ArrayList<VisitReport>();
+
+    JsonPathActivityConfigurationBean configBean = activity.getConfiguration();
+    if (configBean.isValid())
+    {
+      Map<String, JSONPathQueryPlan> queryPlans = compile(configBean);
+
+      // ---- STATIC CLASSIFICATION ----
+
+      for (Map.Entry<String, JSONPathQueryPlan> queryPlan : queryPlans.entrySet()) {
+        classify(activity, queryPlan.getKey(), queryPlan.getValue(), reports);
+      }
+
+
+      // ---- PROFILING AGAINST THE EXAMPLE DOCUMENT ----
+
+      String jsonText = configBean.getJsonText();
+      if (jsonText != null && jsonText.trim().length() > 0) {
+        profile(activity, configBean, queryPlans, jsonText, reports);
+      }
+    }
+    // (invalid configurations are reported by JsonPathActivityHealthChecker)
+
+    if (reports.isEmpty()) {
+      return null;
+    }
+
+    // collect all reports together
+    Status worstStatus = VisitReport.getWorstStatus(reports);
+    return new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                           "JsonPath Activity Cost Report", HealthCheck.NO_PROBLEM, worstStatus, reports);
+  }
+
+
+  /**
+   * @return Query plans for all JsonPath expressions of the (valid) configuration, keyed by the
+   *         descriptions used in reports.
+   */
+  private static Map<String, JSONPathQueryPlan> compile(JsonPathActivityConfigurationBean configBean)
+  {
+    Map<String, JSONPathQueryPlan> queryPlans = new LinkedHashMap<String, JSONPathQueryPlan>();
+    try {
+      queryPlans.put("JsonPath expression", JSONPathQueryPlan.compile(configBean.getJsonPathAsString()));
+      if (configBean.getNamedJsonPaths() != null) {
+        for (Map.Entry<String, String> namedJsonPath : configBean.getNamedJsonPaths().entrySet()) {
+          queryPlans.put("JsonPath expression '" + namedJsonPath.getKey() + "'",
+                         JSONPathQueryPlan.compile(namedJsonPath.getValue()));
+        }
+      }
+    }
+    catch (InvalidPathException e) {
+      // can't happen - the configuration has been validated
+    }
+    return queryPlans;
+  }
+
+
+  /**
+   * Reports the kinds of steps of the given expression that make it expensive on large inputs.
+   */
+  private static void classify(JsonPathActivity activity, String description, JSONPathQueryPlan queryPlan,
+                               List<VisitReport> reports)
+  {
+    if (queryPlan.getDeepScanCount() > 0) {
+      reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                  "JsonPath activity - " + description + " scans whole subtrees of the document",
+                                  JsonPathActivityHealthCheck.DEEP_SCAN, Status.WARNING));
+    }
+
+    if (queryPlan.getWildcardCount() + queryPlan.getDeepScanCount() > 1) {
+      reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                  "JsonPath activity - " + description + " has nested wildcards",
+                                  JsonPathActivityHealthCheck.NESTED_WILDCARDS, Status.WARNING));
+    }
+
+    if (queryPlan.getArrayContextFilterCount() > 0) {
+      reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                  "JsonPath activity - " + description + " filters the values of several arrays",
+                                  JsonPathActivityHealthCheck.FILTER_IN_ARRAY_CONTEXT, Status.WARNING));
+    }
+  }
+
+
+  /**
+   * Applies the given expressions to the example document, and reports how long that takes
+   * and how large the results are.
+   */
+  private static void profile(JsonPathActivity activity, JsonPathActivityConfigurationBean configBean,
+                              Map<String, JSONPathQueryPlan> queryPlans, String jsonText, List<VisitReport> reports)
+  {
+    JsonProvider jsonProvider;
+    Object document;
+    try {
+      jsonProvider = JSONPathUtils.createProvider(configBean.getJsonProvider());
+      document = jsonProvider.parse(jsonText);
+    }
+    catch (InvalidJsonException e) {
+      reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                  "JsonPath activity - example JSON document could not be parsed",
+                                  JsonPathActivityHealthCheck.EXAMPLE_DOCUMENT_NOT_EVALUATED, Status.WARNING));
+      return;
+    }
+    catch (IllegalArgumentException e) {
+      // the JSON provider is not available - reported by JsonPathActivityHealthChecker
+      return;
+    }
+
+    for (Map.Entry<String, JSONPathQueryPlan> queryPlan : queryPlans.entrySet())
+    {
+      String description = queryPlan.getKey();
+
+      Object result;
+      int runs = 0;
+      long elapsedNanos;
+      try {
+        // the first run is not timed, so that one-off initialization doesn't count
+        result = JSONPathUtils.read(jsonProvider, queryPlan.getValue(), document);
+
+        long start = System.nanoTime();
+        do {
+          JSONPathUtils.read(jsonProvider, queryPlan.getValue(), document);
+          runs++;
+          elapsedNanos = System.nanoTime() - start;
+        } while (runs < MAX_PROFILING_RUNS && elapsedNanos < MAX_PROFILING_NANOS);
+      }
+      catch (RuntimeException e) {
+        reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                    "JsonPath activity - " + description + " could not be applied to the example JSON document",
+                                    JsonPathActivityHealthCheck.EXAMPLE_DOCUMENT_NOT_EVALUATED, Status.WARNING));
+        continue;
+      }
+
+      double millisPerRun = elapsedNanos / 1e6 / runs;
+      double projectedMillis = millisPerRun * PROJECTED_INPUT_SIZE / jsonText.length();
+      int resultCount = (result == null ? 0 : jsonProvider.isList(result) ? jsonProvider.toList(result).size() : 1);
+      int resultLength = (result == null ? 0 : JSONPathUtils.toJSONString(jsonProvider, result).length());
+
+      if (projectedMillis > MAX_PROJECTED_MILLIS) {
+        reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                    String.format("JsonPath activity - %s would take about %.0f s on %d MB of JSON",
+                                                  description, projectedMillis / 1000, PROJECTED_INPUT_SIZE / (1024 * 1024)),
+                                    JsonPathActivityHealthCheck.SLOW_EVALUATION, Status.WARNING));
+      }
+
+      if (resultLength > jsonText.length()) {
+        reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                    "JsonPath activity - result of " + description + " is larger than the example JSON document",
+                                    JsonPathActivityHealthCheck.LARGE_RESULT, Status.WARNING));
+      }
+
+      reports.add(new VisitReport(JsonPathActivityHealthCheck.getInstance(), activity,
+                                  String.format("JsonPath activity - %s takes %.3f ms on the example JSON document " +
+                                                "(%d characters), and matches %d nodes (%d characters of JSON)",
+                                                description, millisPerRun, jsonText.length(), resultCount, resultLength),
+                                  JsonPathActivityHealthCheck.EVALUATION_PROFILE, Status.OK));
+    }
+  }
+
+
+
+  /**
+   * Applying the JsonPath expressions to the example document
+   * repeatedly, to time them, can take a while.
+   */
+  public boolean isTimeConsuming() {
+    return true;
+  }
+
+}
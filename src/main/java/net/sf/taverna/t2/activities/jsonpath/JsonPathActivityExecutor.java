@@ -0,0 +1,277 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the invocations of a {@link JsonPathActivity} on the execution backend selected
+ * in its configuration, and limits how much input they may be parsing at the same time.
+ * <p>
+ * The backends are:
+ * <ul>
+ * <li>{@link #CALLBACK_BACKEND} (the default) - invocations are handed to the workflow engine
+ *     through {@link AsynchronousActivityCallback#requestRun(Runnable)};</li>
+ * <li>{@link #POOL_BACKEND} - invocations are queued for a fixed number of threads of the activity
+ *     (which are only kept while there are invocations to run);</li>
+ * <li>{@link #VIRTUAL_BACKEND} - every invocation gets a virtual thread of its own (on JVMs that
+ *     have them - elsewhere, this is the same as the pool.)</li>
+ * </ul>
+ * Parts of an invocation that are spread over several threads (the chunks of a batch) are run
+ * on the same backend - see {@link #submit(Runnable, AsynchronousActivityCallback)}.
+ * <p>
+ * Independently of the backend, a budget can be set on the total (approximate) size of the
+ * inputs of the invocations that are running: an invocation that would exceed it is queued
+ * until enough of the others have finished - without holding on to a thread in the meantime,
+ * see {@link #admit(long, Runnable, AsynchronousActivityCallback)}.
+ */
+class JsonPathActivityExecutor
+{
+  static final String CALLBACK_BACKEND = "callback";
+  static final String POOL_BACKEND = "pool";
+  static final String VIRTUAL_BACKEND = "virtual";
+
+  private static final Logger logger = Logger.getLogger(JsonPathActivityExecutor.class);
+
+  // how long the threads of the pool are kept while there is nothing for them to do
+  private static final long IDLE_THREAD_SECONDS = 60;
+
+
+  // null if invocations are run by the workflow engine
+  private final ExecutorService executorService;
+
+  // maximum total size of the inputs being processed (in bytes); 0 or less for no limit
+  private final long maxAdmittedBytes;
+  private long admittedBytes;
+
+  // invocations waiting for room in the budget, in the order they arrived
+  private final Queue<Admission> waiting = new LinkedList<Admission>();
+
+
+  /**
+   * An invocation waiting to be admitted.
+   */
+  private static class Admission
+  {
+    private final long bytes;
+    private final Runnable invocation;
+    private final AsynchronousActivityCallback callback;
+
+    private Admission(long bytes, Runnable invocation, AsynchronousActivityCallback callback) {
+      this.bytes = bytes;
+      this.invocation = invocation;
+      this.callback = callback;
+    }
+  }
+
+
+  JsonPathActivityExecutor(ExecutorService executorService, long maxAdmittedBytes) {
+    this.executorService = executorService;
+    this.maxAdmittedBytes = maxAdmittedBytes;
+  }
+
+
+  /**
+   * Creates the executor selected in the given configuration - its threads (if any) are not
+   * shared with any other activity. They are released by {@link #shutdown()}, or once they have
+   * been idle for a while, so an activity that is no longer used doesn't keep any.
+   */
+  static JsonPathActivityExecutor create(JsonPathActivityConfigurationBean config)
+  {
+    String backend = config.getExecutionBackend();
+    ExecutorService executorService = null;
+
+    if (VIRTUAL_BACKEND.equals(backend)) {
+      executorService = newVirtualThreadPerTaskExecutor();
+    }
+    if (POOL_BACKEND.equals(backend) || (VIRTUAL_BACKEND.equals(backend) && executorService == null)) {
+      int threads = (config.getExecutorThreads() > 0 ? config.getExecutorThreads() : Runtime.getRuntime().availableProcessors());
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "JsonPath activity worker " + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      // the activity is not necessarily disposed of when it is no longer used
+      pool.allowCoreThreadTimeOut(true);
+      executorService = pool;
+    }
+
+    return new JsonPathActivityExecutor(executorService, config.getMaxConcurrentBytes());
+  }
+
+
+  /**
+   * @return A virtual-thread-per-task executor (Java 21 onwards), or <code>null</code> if the JVM doesn't have virtual threads.
+   */
+  private static ExecutorService newVirtualThreadPerTaskExecutor()
+  {
+    try {
+      // looked up reflectively, so that the activity still runs on older JVMs
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (NoSuchMethodException e) {
+      logger.info("Virtual threads are not available in this JVM - JsonPath activity invocations use a thread pool instead");
+    }
+    catch (Exception e) {
+      logger.warn("Could not create virtual threads - JsonPath activity invocations use a thread pool instead", e);
+    }
+    return null;
+  }
+
+
+  /**
+   * Runs the given invocation on this executor's backend.
+   */
+  void execute(Runnable invocation, AsynchronousActivityCallback callback)
+  {
+    if (executorService != null) {
+      try {
+        executorService.execute(invocation);
+        return;
+      }
+      catch (RejectedExecutionException e) {
+        // shut down by a reconfiguration of the activity in the meantime
+      }
+    }
+    callback.requestRun(invocation);
+  }
+
+
+  /**
+   * Runs a part of an invocation (e.g. a chunk of a batch) on this executor's backend.
+   * <p>
+   * The invocation should {@link RunnableFuture#run() run} the parts that no thread has
+   * started yet itself before it waits for them (running a part that has already been
+   * started is a no-op), so that it doesn't wait for threads that are all busy with
+   * invocations waiting in turn.
+   *
+   * @return The part, to run and to wait for.
+   */
+  RunnableFuture<?> submit(Runnable part, AsynchronousActivityCallback callback)
+  {
+    RunnableFuture<Object> task = new FutureTask<Object>(part, null);
+    execute(task, callback);
+    return task;
+  }
+
+
+  /**
+   * Counts in an input of the given size, if it can be processed without the inputs being
+   * processed exceeding the budget (and no other invocation is waiting for room already) -
+   * otherwise, queues the (admitted part of the) invocation, to be run on this executor's
+   * backend as soon as enough inputs have been {@link #release(long) released}. Queued
+   * invocations do not hold on to a thread while they wait. Inputs that are larger than the
+   * whole budget are only admitted when no other input is being processed; inputs of unknown
+   * size should be given as <code>0</code>, and are admitted as soon as no other invocation
+   * is waiting.
+   * <p>
+   * Every admitted input must be released again with {@link #release(long)} once it has been
+   * processed - by the invocation that is run straight away, or by the queued one.
+   *
+   * @param invocation The part of the invocation that processes the input.
+   * @return <code>true</code> if the input has been admitted, and the caller should run the
+   *         invocation; <code>false</code> if it has been queued.
+   */
+  boolean admit(long bytes, Runnable invocation, AsynchronousActivityCallback callback)
+  {
+    if (maxAdmittedBytes <= 0) {
+      return true;
+    }
+    synchronized (this) {
+      if (waiting.isEmpty() && fits(bytes)) {
+        admittedBytes += bytes;
+        return true;
+      }
+      waiting.add(new Admission(bytes, invocation, callback));
+      return false;
+    }
+  }
+
+
+  /**
+   * Counts out an input admitted by {@link #admit(long, Runnable, AsynchronousActivityCallback)}
+   * that has been processed, and runs the queued invocations that there is room for now.
+   */
+  void release(long bytes)
+  {
+    if (maxAdmittedBytes <= 0) {
+      return;
+    }
+    List<Admission> admitted = new ArrayList<Admission>();
+    synchronized (this) {
+      admittedBytes -= bytes;
+      while (!waiting.isEmpty() && fits(waiting.peek().bytes)) {
+        Admission admission = waiting.remove();
+        admittedBytes += admission.bytes;
+        admitted.add(admission);
+      }
+    }
+    for (Admission admission : admitted) {
+      execute(admission.invocation, admission.callback);
+    }
+  }
+
+
+  /**
+   * @return Whether an input of the given size fits into the budget, next to those being processed.
+   */
+  private boolean fits(long bytes) {
+    return admittedBytes <= 0 || admittedBytes + bytes <= maxAdmittedBytes;
+  }
+
+
+  /**
+   * @return Whether inputs are counted against a budget at all.
+   */
+  boolean hasBudget() {
+    return maxAdmittedBytes > 0;
+  }
+
+
+  /**
+   * @return The total size of the inputs being processed (in bytes), as far as they are counted.
+   */
+  synchronized long getAdmittedBytes() {
+    return admittedBytes;
+  }
+
+
+  /**
+   * @return The number of invocations waiting for room in the budget.
+   */
+  synchronized int getWaitingCount() {
+    return waiting.size();
+  }
+
+
+  /**
+   * Stops the threads of this executor once the invocations queued for them have finished.
+   */
+  void shutdown()
+  {
+    if (executorService != null) {
+      executorService.shutdown();
+    }
+  }
+
+}
@@ -22,6 +22,15 @@ public class JsonPathActivityHealthCheck extends VisitKind {
   
   public static final int NO_EXAMPLE_DOCUMENT = 20;
   
+  // results of the (time-consuming) cost analysis of the JsonPath expressions
+  public static final int DEEP_SCAN = 25;
+  public static final int NESTED_WILDCARDS = 30;
+  public static final int FILTER_IN_ARRAY_CONTEXT = 35;
+  public static final int EXAMPLE_DOCUMENT_NOT_EVALUATED = 40;
+  public static final int SLOW_EVALUATION = 45;
+  public static final int LARGE_RESULT = 50;
+  public static final int EVALUATION_PROFILE = 55;
+  
   @Override
   public Class<? extends Visitor> getVisitorClass() {
     return JsonPathActivityHealthChecker.class;
@@ -62,6 +62,41 @@ public class JsonPathActivityHealthCheckVisitExplainer implements VisitExplainer
         		          "this is fine, but semantic mistakes can be easily introduced into " +
         		          "the JsonPath expression in this case."; break;
         
+      case DEEP_SCAN:
+        explanation = "JsonPath expression contains a deep scan (\"..\"), which visits every " +
+                      "node below the point where it is applied - the time it takes grows with " +
+                      "the size of the whole input document, not just with the size of the result."; break;
+        
+      case NESTED_WILDCARDS:
+        explanation = "JsonPath expression contains several wildcards or deep scans, one applied " +
+                      "to the results of another - the number of nodes visited (and matched) can " +
+                      "grow with the product of the sizes of the containers they select from."; break;
+        
+      case FILTER_IN_ARRAY_CONTEXT:
+        explanation = "JsonPath expression applies a filter to all the nodes selected by a " +
+                      "preceding wildcard, deep scan or filter - on large inputs, the filter is " +
+                      "evaluated for a correspondingly large number of nodes."; break;
+        
+      case EXAMPLE_DOCUMENT_NOT_EVALUATED:
+        explanation = "Example JSON document of this JsonPath activity could not be parsed, or the " +
+                      "JsonPath expression could not be applied to it - so the cost of the expression " +
+                      "could not be measured."; break;
+        
+      case SLOW_EVALUATION:
+        explanation = "Applying the JsonPath expression to the example JSON document took long enough " +
+                      "that, on an input of production size, it would take more than a minute - " +
+                      "assuming that the time grows in proportion to the size of the input."; break;
+        
+      case LARGE_RESULT:
+        explanation = "The JSON text of the nodes that the JsonPath expression matches in the example " +
+                      "document is longer than the example document itself - matched nodes contain " +
+                      "each other (typically because of a deep scan), so the outputs of the activity " +
+                      "will be larger than its input."; break;
+        
+      case EVALUATION_PROFILE:
+        explanation = "Time taken by the JsonPath expression on the example JSON document, and the " +
+                      "size of its result - for information only."; break;
+        
       default:
         explanation = "Unknown issue - no expalanation available"; break;
     }
@@ -107,6 +142,24 @@ public class JsonPathActivityHealthCheckVisitExplainer implements VisitExplainer
                       includeConfigButton = true;
                       break;
         
+      case DEEP_SCAN:
+      case NESTED_WILDCARDS:
+      case FILTER_IN_ARRAY_CONTEXT:
+      case SLOW_EVALUATION:
+      case LARGE_RESULT:
+        explanation = "Consider a more specific JsonPath expression - e.g. one with explicit property " +
+                      "names or array indices in place of deep scans and wildcards:";
+                      includeConfigButton = true;
+                      break;
+        
+      case EXAMPLE_DOCUMENT_NOT_EVALUATED:
+        explanation = "Please check the example JSON document in the configuration panel:";
+                      includeConfigButton = true;
+                      break;
+        
+      case EVALUATION_PROFILE:
+        explanation = "No change necessary"; break;
+        
       default:
         explanation = "Unknown issue - no expalanation available"; break;
     }
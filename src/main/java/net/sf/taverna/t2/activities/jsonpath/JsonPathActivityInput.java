@@ -0,0 +1,268 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import java.io.FileInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * Helper for resolving the input of a {@link JsonPathActivity} without rendering
+ * it into a single {@link String} first.
+ */
+class JsonPathActivityInput
+{
+  private static final String DEFAULT_CHARSET = "UTF-8";
+
+
+  /**
+   * Opens a {@link Reader} over the data behind the given reference.
+   * <p>
+   * Where the reference is backed by a reference set, the data is streamed from the cheapest
+   * external reference in the set; otherwise the value is rendered as a string.
+   *
+   * @return A reader over the data, or <code>null</code> if the reference has no value.
+   */
+  static Reader openReader(ReferenceService referenceService, T2Reference reference, InvocationContext context)
+      throws IOException
+  {
+    return openReader(referenceService, reference, context, false);
+  }
+
+
+  /**
+   * Opens a {@link Reader} over the data behind the given reference, decoding it straight
+   * from its bytes where possible.
+   * <p>
+   * Where the reference is backed by a reference set, the data is streamed from the cheapest
+   * external reference in the set - files are memory-mapped rather than read through a stream.
+   * Otherwise the value is rendered, as a byte array if <code>renderAsBytes</code> is set (so
+   * that the reference service doesn't decode it into a string), or as a string.
+   *
+   * @return A reader over the data, or <code>null</code> if the reference has no value.
+   */
+  static Reader openReader(ReferenceService referenceService, T2Reference reference, InvocationContext context,
+                           boolean renderAsBytes) throws IOException
+  {
+    ExternalReferenceSPI externalReference = getCheapestExternalReference(referenceService, reference);
+    if (externalReference != null) {
+      String charset = externalReference.getCharset();
+      return openReader(externalReference.openStream(context), Charset.forName(charset == null ? DEFAULT_CHARSET : charset));
+    }
+
+    // fall back to rendering the value
+    if (renderAsBytes) {
+      Object value = referenceService.renderIdentifier(reference, byte[].class, context);
+      if (value instanceof byte[]) {
+        return new ByteBufferReader(ByteBuffer.wrap((byte[]) value), Charset.forName(DEFAULT_CHARSET));
+      }
+      // no byte representation after all
+    }
+
+    String value = (String) referenceService.renderIdentifier(reference, String.class, context);
+    return (value == null ? null : new StringReader(value));
+  }
+
+
+  /**
+   * Opens a reader over the given stream - if the stream reads a file, the file is
+   * memory-mapped and decoded directly from the mapped bytes.
+   */
+  private static Reader openReader(InputStream stream, Charset charset) throws IOException
+  {
+    if (stream instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) stream).getChannel();
+      long size = channel.size() - channel.position();
+      if (size <= Integer.MAX_VALUE) {
+        try {
+          MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, channel.position(), size);
+          // the mapping stays valid after the file is closed
+          stream.close();
+          return new ByteBufferReader(mapped, charset);
+        }
+        catch (IOException e) {
+          // e.g. the file system doesn't support mapping - read the stream as usual
+        }
+      }
+    }
+    return new InputStreamReader(stream, charset);
+  }
+
+
+  /**
+   * A reader that decodes the bytes of a {@link ByteBuffer}, without copying them first.
+   */
+  static class ByteBufferReader extends Reader
+  {
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+
+    // second half of a surrogate pair, when the reader asked for a single char
+    private final CharBuffer pending = CharBuffer.allocate(2);
+    private boolean flushed;
+
+    ByteBufferReader(ByteBuffer bytes, Charset charset) {
+      this.bytes = bytes;
+      this.decoder = charset.newDecoder()
+          .onMalformedInput(CodingErrorAction.REPLACE)
+          .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      this.pending.flip();
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException
+    {
+      if (len == 0) {
+        return 0;
+      }
+      if (pending.hasRemaining()) {
+        cbuf[off] = pending.get();
+        return 1;
+      }
+      if (len == 1) {
+        // a single char may not be enough room for the next code point - decode into the pending buffer
+        pending.clear();
+        int n = decode(pending);
+        pending.flip();
+        if (n <= 0) {
+          return -1;
+        }
+        cbuf[off] = pending.get();
+        return 1;
+      }
+
+      int n = decode(CharBuffer.wrap(cbuf, off, len));
+      return (n <= 0 ? -1 : n);
+    }
+
+    private int decode(CharBuffer out) throws IOException
+    {
+      int start = out.position();
+      if (!flushed) {
+        CoderResult result = decoder.decode(bytes, out, true);
+        if (result.isUnderflow()) {
+          // all input consumed
+          result = decoder.flush(out);
+          flushed = result.isUnderflow();
+        }
+        if (result.isError()) {
+          result.throwException();
+        }
+      }
+      return out.position() - start;
+    }
+
+    @Override
+    public void close() {
+      // nothing to release - a mapped buffer is unmapped when it is garbage collected
+    }
+  }
+
+
+  /**
+   * @return The external reference with the lowest resolution cost from the reference set
+   *         identified by <code>reference</code>, or <code>null</code> if there is no such set.
+   */
+  static ExternalReferenceSPI getCheapestExternalReference(ReferenceService referenceService, T2Reference reference)
+  {
+    if (reference == null || reference.getReferenceType() != T2ReferenceType.ReferenceSet) {
+      return null;
+    }
+
+    ReferenceSet referenceSet = referenceService.getReferenceSetService().getReferenceSet(reference);
+    if (referenceSet == null) {
+      return null;
+    }
+
+    ExternalReferenceSPI cheapest = null;
+    for (ExternalReferenceSPI externalReference : referenceSet.getExternalReferences()) {
+      if (cheapest == null || externalReference.getResolutionCost() < cheapest.getResolutionCost()) {
+        cheapest = externalReference;
+      }
+    }
+    return cheapest;
+  }
+
+
+  /**
+   * A reader that counts the characters read through it.
+   */
+  static class CountingReader extends FilterReader
+  {
+    private long count;
+
+    CountingReader(Reader in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int c = super.read();
+      if (c != -1) {
+        count++;
+      }
+      return c;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      int n = super.read(cbuf, off, len);
+      if (n > 0) {
+        count += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    /**
+     * @return The number of characters read (or skipped) so far.
+     */
+    long getCount() {
+      return count;
+    }
+  }
+
+
+  /**
+   * Closes the given reader, ignoring any failure to do so.
+   */
+  static void closeQuietly(Reader reader)
+  {
+    if (reader != null) {
+      try {
+        reader.close();
+      }
+      catch (IOException e) {
+        // nothing useful can be done about this
+      }
+    }
+  }
+
+
+  private JsonPathActivityInput() {
+    // no instances
+  }
+}
@@ -0,0 +1,1484 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import static net.sf.taverna.t2.activities.jsonpath.JsonPathActivity.AS_JSON_SUFFIX;
+import static net.sf.taverna.t2.activities.jsonpath.JsonPathActivity.IN_JSON;
+import static net.sf.taverna.t2.activities.jsonpath.JsonPathActivity.NULL_VALUE_FOR_STRING;
+import static net.sf.taverna.t2.activities.jsonpath.JsonPathActivity.OUT_TEXT;
+import static net.sf.taverna.t2.activities.jsonpath.JsonPathActivity.SINGLE_VALUE_JSON;
+import static net.sf.taverna.t2.activities.jsonpath.JsonPathActivity.SINGLE_VALUE_TEXT;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minidev.json.JSONValue;
+import net.minidev.json.parser.ParseException;
+import net.sf.taverna.t2.activities.jsonpath.JsonPathActivityInput.CountingReader;
+import net.sf.taverna.t2.activities.jsonpath.JsonPathActivityMetrics.Stage;
+import net.sf.taverna.t2.activities.jsonpath.JsonPathActivityMetrics.StageTimings;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathQueryPlan;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathQuerySet;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathStreamingEvaluator;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONStreamReader;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONStringPool;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONTape;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONTapeJsonProvider;
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.ErrorDocumentService;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import com.jayway.jsonpath.InvalidJsonException;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * A single invocation of a {@link JsonPathActivity} - resolves the input document,
+ * applies the pre-compiled JsonPath expressions to it and registers the outputs.
+ * <p>
+ * Each invocation works with the query plans and configuration that were current
+ * when it was created, even if the activity gets reconfigured while it is running.
+ */
+class JsonPathActivityInvocation implements Runnable
+{
+	private final JSONPathQuerySet queries;
+	private final JsonPathActivityConfigurationBean config;
+	private final Map<String,T2Reference> inputs;
+	private final AsynchronousActivityCallback callback;
+
+	// backend that runs the invocation, and admits its input into the budget of concurrently parsed bytes
+	private final JsonPathActivityExecutor executor;
+
+	// JSON provider selected in the config bean
+	private final JsonProvider jsonProvider;
+	private final boolean defaultJsonProvider;
+
+	// size of lists in the document from which on expressions are evaluated in parallel
+	private final int parallelThreshold;
+
+	// number of matches of each expression that the outputs need (0 for all of them)
+	private final int maxResults;
+
+	// what the output values depend on besides the input document, as part of the keys
+	// of the result memo - null if results are not memoized
+	private final String memoFingerprint;
+
+	// tables for the repeated short strings of the input documents and the node lists (one
+	// per document, reused by the activity) - null if strings are not interned
+	private final JSONStringPool.Recycler stringPools;
+
+	// metrics of the activity, and the totals of this invocation that go into them
+	private final JsonPathActivityMetrics metrics;
+	private final AtomicLong charactersIn = new AtomicLong();
+	private final AtomicLong matchesOut = new AtomicLong();
+
+
+	JsonPathActivityInvocation(JSONPathQuerySet queries, JsonPathActivityConfigurationBean config,
+			Map<String,T2Reference> inputs, AsynchronousActivityCallback callback, JsonPathActivityMetrics metrics,
+			JsonPathActivityExecutor executor, JSONStringPool.Recycler stringPools)
+	{
+		this.queries = queries;
+		this.config = config;
+		this.inputs = inputs;
+		this.callback = callback;
+		this.executor = executor;
+		this.metrics = metrics;
+		this.jsonProvider = JSONPathUtils.createProvider(config.getJsonProvider());
+		this.defaultJsonProvider = JSONPathUtils.isDefaultProvider(config.getJsonProvider());
+		this.parallelThreshold = (config.getParallelThreshold() == 0 ?
+				JSONPathQuerySet.DEFAULT_PARALLEL_THRESHOLD : config.getParallelThreshold());
+		this.maxResults = getResultLimit();
+		this.memoFingerprint = (config.isResultMemoEnabled() ? getMemoFingerprint() : null);
+		this.stringPools = stringPools;
+	}
+
+
+	public void run()
+	{
+		final long startNanos = System.nanoTime();
+
+		final InvocationContext context = callback.getContext();
+		final ReferenceService referenceService = context.getReferenceService();
+
+		// the input is only sized if it counts against a budget of concurrently parsed bytes -
+		// if the inputs of other invocations leave no room for it, the invocation is queued
+		// (without holding on to this thread), and run again by the executor once they do
+		final long inputSize = (executor.hasBudget() ? getApproximateInputSize(referenceService) : 0);
+		Runnable admitted = new Runnable() {
+			public void run() {
+				try {
+					invoke(referenceService, context, startNanos);
+				} catch (RuntimeException e) {
+					// e.g. json-path rejects a path that the input document doesn't have - the
+					// invocation must fail, rather than leave the workflow waiting for it forever
+					fail(getMessage(e), e, metrics.newStageTimings(), startNanos);
+				} finally {
+					executor.release(inputSize);
+				}
+			}
+		};
+		if (executor.admit(inputSize, admitted, callback)) {
+			admitted.run();
+		}
+	}
+
+
+	/**
+	 * @return The approximate size (in bytes) of the input document(s), as far as the reference
+	 *         service knows it without resolving them - <code>0</code> if it doesn't.
+	 */
+	private long getApproximateInputSize(ReferenceService referenceService)
+	{
+		T2Reference inputReference = inputs.get(IN_JSON);
+		if (inputReference == null) {
+			return 0;
+		}
+
+		long size = 0;
+		for (T2Reference document : getDocuments(referenceService, inputReference)) {
+			ExternalReferenceSPI externalReference = JsonPathActivityInput.getCheapestExternalReference(referenceService, document);
+			Long documentSize = (externalReference == null ? null : externalReference.getApproximateSizeInBytes());
+			if (documentSize != null && documentSize > 0) {
+				size += documentSize;
+			}
+		}
+		return size;
+	}
+
+
+	private void invoke(ReferenceService referenceService, InvocationContext context, long startNanos)
+	{
+		if (config.isBatchMode()) {
+			runBatch(referenceService, context, startNanos);
+			return;
+		}
+		if (config.isNdjsonInput()) {
+			runRecords(referenceService, context, startNanos);
+			return;
+		}
+		if (memoFingerprint != null) {
+			runMemoized(referenceService, context, startNanos);
+			return;
+		}
+
+		JSONStringPool stringPool = acquireStringPool();
+		try {
+			invokeDocument(referenceService, context, stringPool, startNanos);
+		} finally {
+			releaseStringPool(stringPool);
+		}
+	}
+
+
+	/**
+	 * Applies the JsonPath expressions to the input document, and registers the outputs.
+	 *
+	 * @param stringPool The pool that repeated short strings are interned in, or <code>null</code>.
+	 */
+	private void invokeDocument(ReferenceService referenceService, InvocationContext context, JSONStringPool stringPool,
+			long startNanos)
+	{
+		StageTimings timings = metrics.newStageTimings();
+
+		// ---- RESOLVE AND PARSE INPUT ----
+
+		Map<Object, String> sources = newSourceMap();
+		Object jsonObject;
+		try {
+			jsonObject = readDocument(inputs.get(IN_JSON), referenceService, context, sources, stringPool, timings);
+		} catch (IOException e) {
+			fail(e.getMessage(), e, timings, startNanos);
+			return;
+		} catch (ParseException e) {
+			fail(e.getMessage(), e, timings, startNanos);
+			return;
+		} catch (InvalidJsonException e) {
+			fail(e.getMessage(), e, timings, startNanos);
+			return;
+		}
+
+		// only attempt to execute JsonPath expression if there is some input data
+		if (jsonObject == null) {
+			fail("Empty input", null, timings, startNanos);
+			return;
+		}
+
+
+		// ---- DO THE ACTUAL SERVICE INVOCATION ----
+
+		// all expressions are applied to the one parsed document
+		long evaluateStart = System.nanoTime();
+		Map<String, Object> resultValuesByName = queries.read(jsonProvider, jsonObject, parallelThreshold);
+		timings.add(Stage.EVALUATE, evaluateStart);
+
+
+		// ---- PREPARE AND REGISTER OUTPUTS ----
+
+		Map<String, T2Reference> outputs = new HashMap<String, T2Reference>();
+		for (Map.Entry<String, Object> resultValue : resultValuesByName.entrySet())
+		{
+			String textPort = resultValue.getKey();
+			List<?> resultValues = limitResults(toResultList(resultValue.getValue()));
+			matchesOut.addAndGet(resultValues.size());
+
+			if (config.isPipelineResults()) {
+				registerPipelinedOutputs(textPort, resultValues, outputs, sources, referenceService, context, timings);
+			}
+			else {
+				registerOutputs(textPort, resultValues, outputs, sources, stringPool, referenceService, context, timings);
+			}
+		}
+		recordInterning(stringPool);
+
+		// return map of output data, with empty index array as this is
+		// the only and final result (partial results, if any, have already
+		// been pushed with their own indices)
+		complete(outputs, timings, startNanos);
+	}
+
+
+	/**
+	 * Records the metrics of the invocation and passes the final outputs on.
+	 */
+	private void complete(Map<String, T2Reference> outputs, StageTimings timings, long startNanos)
+	{
+		timings.record();
+		metrics.recordInvocation(charactersIn.get(), matchesOut.get(), System.nanoTime() - startNanos);
+		callback.receiveResult(outputs, new int[0]);
+	}
+
+
+	/**
+	 * Records the metrics of the invocation and fails it.
+	 *
+	 * @param cause The cause of the failure, or <code>null</code>.
+	 */
+	private void fail(String message, Throwable cause, StageTimings timings, long startNanos)
+	{
+		timings.record();
+		metrics.recordFailure(message, System.nanoTime() - startNanos);
+		if (cause == null) {
+			callback.fail(message);
+		}
+		else {
+			callback.fail(message, cause);
+		}
+	}
+
+
+	/**
+	 * Resolves and parses the input document behind the given reference - streaming it, or
+	 * rendering it and parsing it completely (unless it is found in the document cache),
+	 * depending on the configuration.
+	 *
+	 * @param sources Where the text of matched objects and arrays in the input is kept, or <code>null</code>.
+	 * @param stringPool The pool that repeated short strings are interned in, or <code>null</code>.
+	 * @return The (projection of the) document, or <code>null</code> if the input is empty.
+	 */
+	private Object readDocument(T2Reference inputReference, ReferenceService referenceService, InvocationContext context,
+			Map<Object, String> sources, JSONStringPool stringPool, StageTimings timings) throws IOException, ParseException, InvalidJsonException
+	{
+		if (config.isStreamingEnabled())
+		{
+			// stream the input - only the parts of the document that the
+			// JsonPath expressions can reach get materialized
+			CountingReader jsonReader = null;
+			try {
+				long renderStart = System.nanoTime();
+				Reader reader = JsonPathActivityInput.openReader(referenceService, inputReference, context,
+						config.isByteInputEnabled());
+				timings.add(Stage.RENDER, renderStart);
+				if (reader == null) {
+					return null;
+				}
+				jsonReader = new CountingReader(reader);
+
+				long parseStart = System.nanoTime();
+				Object jsonObject = JSONPathStreamingEvaluator.parse(queries.getQueryPlans().values(), jsonReader, maxResults, sources, stringPool);
+				timings.add(Stage.PARSE, parseStart);
+				return jsonObject;
+			} finally {
+				JsonPathActivityInput.closeQuietly(jsonReader);
+				if (jsonReader != null) {
+					charactersIn.addAndGet(jsonReader.getCount());
+				}
+			}
+		}
+
+		// documents parsed before from the same reference can be reused as they are
+		Object jsonObject = (config.isDocumentCacheEnabled() ?
+				JsonPathDocumentCache.getInstance().get(inputReference, config.getJsonProvider()) : null);
+
+		if (jsonObject == null && config.isByteInputEnabled())
+		{
+			// parse straight from the bytes of the input - no String copy of it is made
+			CountingReader jsonReader = null;
+			try {
+				long renderStart = System.nanoTime();
+				Reader reader = JsonPathActivityInput.openReader(referenceService, inputReference, context, true);
+				timings.add(Stage.RENDER, renderStart);
+				if (reader == null) {
+					return null;
+				}
+				jsonReader = new CountingReader(reader);
+
+				PushbackReader input = new PushbackReader(jsonReader);
+				int first = input.read();
+				if (first == -1) {
+					return null;
+				}
+				input.unread(first);
+
+				long parseStart = System.nanoTime();
+				jsonObject = parse(input, stringPool);
+				timings.add(Stage.PARSE, parseStart);
+			} finally {
+				JsonPathActivityInput.closeQuietly(jsonReader);
+				if (jsonReader != null) {
+					charactersIn.addAndGet(jsonReader.getCount());
+				}
+			}
+
+			if (config.isDocumentCacheEnabled()) {
+				JsonPathDocumentCache.getInstance().put(inputReference, config.getJsonProvider(), jsonObject);
+			}
+		}
+		else if (jsonObject == null)
+		{
+			long renderStart = System.nanoTime();
+			String jsonInput = (String) referenceService.renderIdentifier(inputReference, String.class, context);
+			timings.add(Stage.RENDER, renderStart);
+			if ((jsonInput == null) || jsonInput.length() == 0) {
+				return null;
+			}
+			charactersIn.addAndGet(jsonInput.length());
+
+			long parseStart = System.nanoTime();
+			jsonObject = parse(jsonInput, stringPool);
+			timings.add(Stage.PARSE, parseStart);
+
+			if (config.isDocumentCacheEnabled()) {
+				JsonPathDocumentCache.getInstance().put(inputReference, config.getJsonProvider(), jsonObject);
+			}
+		}
+		return jsonObject;
+	}
+
+
+	// ---- RESULT MEMO ----
+
+	/**
+	 * Processes the input document like a single document of a batch - so that its output
+	 * values are memoized, or taken from the memo - and registers them node by node (pushing
+	 * the nodes downstream as they are registered, if results are pipelined).
+	 */
+	private void runMemoized(ReferenceService referenceService, InvocationContext context, long startNanos)
+	{
+		StageTimings timings = metrics.newStageTimings();
+
+		Object documentValue = processDocument(inputs.get(IN_JSON), referenceService, context, timings);
+		if (documentValue instanceof DocumentFailure) {
+			DocumentFailure failure = (DocumentFailure) documentValue;
+			fail(failure.message, failure.cause, timings, startNanos);
+			return;
+		}
+
+		@SuppressWarnings("unchecked")
+		Map<String, Object> values = (Map<String, Object>) documentValue;
+		Map<String, T2Reference> outputs = new HashMap<String, T2Reference>();
+		for (String textPort : queries.getQueryPlans().keySet()) {
+			registerMemoizedOutputs(textPort, values, outputs, referenceService, context, timings);
+		}
+
+		complete(outputs, timings, startNanos);
+	}
+
+
+	/**
+	 * Registers the serialized output values of one expression like
+	 * {@link #registerOutputs} and {@link #registerPipelinedOutputs} register the matched
+	 * nodes: each node on its own, then the lists made of them - and the single value
+	 * outputs reuse the reference to the first node of the lists.
+	 */
+	private void registerMemoizedOutputs(String textPort, Map<String, Object> values, Map<String, T2Reference> outputs,
+			ReferenceService referenceService, InvocationContext context, StageTimings timings)
+	{
+		String jsonPort = textPort + AS_JSON_SUFFIX;
+
+		long registerStart = System.nanoTime();
+		List<T2Reference> itemsText = registerValues((List<?>) values.get(textPort), referenceService, context);
+		List<T2Reference> itemsJSON = registerValues((List<?>) values.get(jsonPort), referenceService, context);
+		timings.add(Stage.REGISTER, registerStart);
+
+		if (config.isPipelineResults()) {
+			int count = Math.max(itemsText == null ? 0 : itemsText.size(), itemsJSON == null ? 0 : itemsJSON.size());
+			for (int index = 0; index < count; index++) {
+				Map<String, T2Reference> partialOutputs = new HashMap<String, T2Reference>();
+				if (itemsText != null) {
+					partialOutputs.put(textPort, itemsText.get(index));
+				}
+				if (itemsJSON != null) {
+					partialOutputs.put(jsonPort, itemsJSON.get(index));
+				}
+				callback.receiveResult(partialOutputs, new int[] { index });
+			}
+		}
+
+		registerStart = System.nanoTime();
+		if (itemsText != null) {
+			outputs.put(textPort, registerList(itemsText, referenceService, context));
+		}
+		if (itemsJSON != null) {
+			outputs.put(jsonPort, registerList(itemsJSON, referenceService, context));
+		}
+
+		if (hasSingleValueOutputs(textPort) && values.containsKey(SINGLE_VALUE_TEXT)) {
+			outputs.put(SINGLE_VALUE_TEXT, registerMemoizedValue(values.get(SINGLE_VALUE_TEXT), first(itemsText), referenceService, context));
+		}
+		if (hasSingleValueOutputs(textPort) && values.containsKey(SINGLE_VALUE_JSON)) {
+			outputs.put(SINGLE_VALUE_JSON, registerMemoizedValue(values.get(SINGLE_VALUE_JSON), first(itemsJSON), referenceService, context));
+		}
+		timings.add(Stage.REGISTER, registerStart);
+	}
+
+
+	/**
+	 * Registers the given serialized nodes one by one.
+	 *
+	 * @return The references to the registered nodes, in order - or <code>null</code> if
+	 *         there is no list of nodes (the output is not produced).
+	 */
+	private static List<T2Reference> registerValues(List<?> values, ReferenceService referenceService, InvocationContext context)
+	{
+		if (values == null) {
+			return null;
+		}
+		List<T2Reference> items = new ArrayList<T2Reference>(values.size());
+		for (Object value : values) {
+			items.add(referenceService.register(value, 0, true, context));
+		}
+		return items;
+	}
+
+
+	/**
+	 * Registers the serialized value of a single value output (or an error document, if
+	 * nothing matched) - or just returns the reference to the first node of the list
+	 * output in the same representation, if that has been registered already.
+	 */
+	private static T2Reference registerMemoizedValue(Object value, T2Reference firstItem, ReferenceService referenceService,
+			InvocationContext context)
+	{
+		if (value == null) {
+			return registerError("No value produced", null, 0, referenceService, context);
+		}
+		if (firstItem != null) {
+			return firstItem;
+		}
+		return referenceService.register(value, 0, true, context);
+	}
+
+
+	/**
+	 * @return Everything in the configuration that the output values of a document depend on.
+	 */
+	private String getMemoFingerprint()
+	{
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append(JSONPathUtils.isDefaultProvider(config.getJsonProvider()) ?
+				JSONPathUtils.JSON_SMART_PROVIDER : config.getJsonProvider().trim());
+		fingerprint.append('\n').append(maxResults);
+		// the streaming parser may reject (or accept) documents that the complete parse doesn't
+		fingerprint.append('\n').append(config.isStreamingEnabled());
+		fingerprint.append('\n').append(newSourceMap() != null);
+		for (Map.Entry<String, JSONPathQueryPlan> queryPlan : queries.getQueryPlans().entrySet()) {
+			fingerprint.append('\n').append(queryPlan.getKey()).append('=').append(queryPlan.getValue());
+		}
+		fingerprint.append('\n').append(getProducedOutputs());
+		return fingerprint.toString();
+	}
+
+
+	/**
+	 * @return The key of the output values of the given document text in the {@link JsonPathResultMemo}:
+	 *         two 64 bit hashes of the {@link #memoFingerprint} and the text, and the length of the
+	 *         text (as hex digits).
+	 */
+	private String getMemoKey(String jsonInput)
+	{
+		// FNV-1a, and a multiply-rotate hash with other constants - cheap to compute, unlike
+		// a cryptographic digest, and together wide enough that distinct inputs don't collide
+		// by chance (the memo is no defence against inputs crafted to collide)
+		long hash1 = 0xCBF29CE484222325L;
+		long hash2 = 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < memoFingerprint.length(); i++) {
+			char c = memoFingerprint.charAt(i);
+			hash1 = (hash1 ^ c) * 0x100000001B3L;
+			hash2 = Long.rotateLeft((hash2 ^ c) * 0xC2B2AE3D27D4EB4FL, 31);
+		}
+		for (int i = 0; i < jsonInput.length(); i++) {
+			char c = jsonInput.charAt(i);
+			hash1 = (hash1 ^ c) * 0x100000001B3L;
+			hash2 = Long.rotateLeft((hash2 ^ c) * 0xC2B2AE3D27D4EB4FL, 31);
+		}
+		return String.format("%016x%016x%x", hash1, hash2, jsonInput.length());
+	}
+
+
+	/**
+	 * Resolves the complete text of the input document behind the given reference, reading
+	 * it only once: the same text is hashed for the {@link JsonPathResultMemo} and, if its
+	 * output values are not memoized, parsed.
+	 *
+	 * @return The text of the document, or <code>null</code> if the input is empty.
+	 */
+	private String readText(T2Reference inputReference, ReferenceService referenceService, InvocationContext context)
+			throws IOException
+	{
+		String jsonInput;
+		if (config.isByteInputEnabled()) {
+			Reader reader = JsonPathActivityInput.openReader(referenceService, inputReference, context, true);
+			if (reader == null) {
+				return null;
+			}
+			try {
+				StringBuilder text = new StringBuilder();
+				char[] chars = new char[8192];
+				for (int n = reader.read(chars); n != -1; n = reader.read(chars)) {
+					text.append(chars, 0, n);
+				}
+				jsonInput = text.toString();
+			} finally {
+				JsonPathActivityInput.closeQuietly(reader);
+			}
+		}
+		else {
+			jsonInput = (String) referenceService.renderIdentifier(inputReference, String.class, context);
+		}
+		if (jsonInput == null || jsonInput.length() == 0) {
+			return null;
+		}
+		charactersIn.addAndGet(jsonInput.length());
+		return jsonInput;
+	}
+
+
+	/**
+	 * Parses the given text of the input document - streaming it, or parsing it completely,
+	 * depending on the configuration.
+	 */
+	private Object parseText(String jsonInput, Map<Object, String> sources, JSONStringPool stringPool, StageTimings timings)
+			throws IOException, ParseException, InvalidJsonException
+	{
+		long parseStart = System.nanoTime();
+		Object jsonObject;
+		if (config.isStreamingEnabled()) {
+			jsonObject = JSONPathStreamingEvaluator.parse(queries.getQueryPlans().values(), new StringReader(jsonInput), maxResults,
+					sources, stringPool);
+		}
+		else {
+			jsonObject = parse(jsonInput, stringPool);
+		}
+		timings.add(Stage.PARSE, parseStart);
+		return jsonObject;
+	}
+
+
+	/**
+	 * Failure to process one of the documents of a batch.
+	 */
+	private static class DocumentFailure
+	{
+		private final String message;
+		private final Throwable cause;
+
+		private DocumentFailure(String message, Throwable cause) {
+			this.message = message;
+			this.cause = cause;
+		}
+	}
+
+
+	/**
+	 * Applies the JsonPath expressions to each document in the input list, and registers
+	 * every output as a list with one item per document (in the order of the input list).
+	 * Documents that can't be read, parsed or queried get error documents in all outputs,
+	 * rather than failing the whole batch.
+	 */
+	private void runBatch(final ReferenceService referenceService, final InvocationContext context, long startNanos)
+	{
+		final List<T2Reference> documents = getDocuments(referenceService, inputs.get(IN_JSON));
+		final int documentCount = documents.size();
+
+		// the serialized output values of each document (by port name), or its failure
+		final Object[] documentValues = new Object[documentCount];
+
+		int parallelism = Math.min(config.getBatchParallelism(), documentCount);
+		if (parallelism < 2) {
+			processDocuments(documents, 0, documentCount, documentValues, referenceService, context);
+		}
+		else {
+			// contiguous chunks - one of them is processed on this thread, the rest on the
+			// backend of the activity (or on this thread as well, if no other thread got to them)
+			int chunkSize = (documentCount + parallelism - 1) / parallelism;
+			List<RunnableFuture<?>> chunks = new ArrayList<RunnableFuture<?>>();
+			for (int start = chunkSize; start < documentCount; start += chunkSize) {
+				final int from = start;
+				final int to = Math.min(start + chunkSize, documentCount);
+				chunks.add(executor.submit(new Runnable() {
+					public void run() {
+						processDocuments(documents, from, to, documentValues, referenceService, context);
+					}
+				}, callback));
+			}
+			processDocuments(documents, 0, chunkSize, documentValues, referenceService, context);
+
+			try {
+				for (RunnableFuture<?> chunk : chunks) {
+					chunk.run();
+					chunk.get();
+				}
+			} catch (ExecutionException e) {
+				cancelAll(chunks);
+				fail("Failed to process batch: " + e.getCause().getMessage(), e.getCause(), metrics.newStageTimings(), startNanos);
+				return;
+			} catch (InterruptedException e) {
+				cancelAll(chunks);
+				Thread.currentThread().interrupt();
+				fail("Interrupted while processing batch", e, metrics.newStageTimings(), startNanos);
+				return;
+			}
+		}
+
+		// ---- REGISTER OUTPUTS ----
+
+		StageTimings timings = metrics.newStageTimings();
+		long registerStart = System.nanoTime();
+
+		// one registration per output port, of the values for all documents at once
+		Map<String, T2Reference> outputs = new HashMap<String, T2Reference>();
+		for (String port : getProducedOutputs())
+		{
+			int depth = (isSingleValuePort(port) ? 0 : 1);
+
+			List<Object> values = new ArrayList<Object>(documentCount);
+			for (Object documentValue : documentValues) {
+				values.add(getOutputValue(documentValue, port, depth, referenceService, context));
+			}
+
+			outputs.put(port, referenceService.register(values, depth + 1, true, context));
+		}
+		timings.add(Stage.REGISTER, registerStart);
+
+		complete(outputs, timings, startNanos);
+	}
+
+
+	/**
+	 * @return The value of the given output port for a processed document - or an error
+	 *         document, if the document failed or the port got no value from it.
+	 */
+	private static Object getOutputValue(Object documentValue, String port, int depth,
+			ReferenceService referenceService, InvocationContext context)
+	{
+		if (documentValue instanceof DocumentFailure) {
+			DocumentFailure failure = (DocumentFailure) documentValue;
+			return registerError(failure.message, failure.cause, depth, referenceService, context);
+		}
+		Object value = ((Map<?, ?>) documentValue).get(port);
+		return (value == null ? registerError("No value produced", null, depth, referenceService, context) : value);
+	}
+
+
+	/**
+	 * Applies the JsonPath expressions to each record (line) of the newline-delimited JSON
+	 * input, and registers every output as a list with one item per record. Records that
+	 * can't be processed get error documents in all outputs; blank lines are skipped.
+	 * <p>
+	 * The input is read one record at a time, and the outputs of each record are registered
+	 * as soon as it has been processed (and pushed downstream straight away, if results are
+	 * pipelined), so only a single record is held in memory at any time.
+	 */
+	private void runRecords(ReferenceService referenceService, InvocationContext context, long startNanos)
+	{
+		StageTimings timings = metrics.newStageTimings();
+
+		List<String> ports = getProducedOutputs();
+		Map<String, List<T2Reference>> outputLists = new HashMap<String, List<T2Reference>>();
+		for (String port : ports) {
+			outputLists.put(port, new ArrayList<T2Reference>());
+		}
+
+		// the records share one pool - they repeat each other's strings, rather than their own
+		JSONStringPool stringPool = acquireStringPool();
+
+		CountingReader jsonReader = null;
+		try {
+			long renderStart = System.nanoTime();
+			Reader reader = JsonPathActivityInput.openReader(referenceService, inputs.get(IN_JSON), context,
+					config.isByteInputEnabled());
+			timings.add(Stage.RENDER, renderStart);
+			if (reader == null) {
+				fail("Empty input", null, timings, startNanos);
+				return;
+			}
+			jsonReader = new CountingReader(reader);
+			BufferedReader records = new BufferedReader(jsonReader);
+
+			int index = 0;
+			for (String record = records.readLine(); record != null; record = records.readLine())
+			{
+				if (record.trim().length() == 0) {
+					continue;
+				}
+
+				StageTimings recordTimings = metrics.newStageTimings();
+				Object recordValues = processRecord(record, stringPool, recordTimings);
+
+				long registerStart = System.nanoTime();
+				Map<String, T2Reference> recordOutputs = new HashMap<String, T2Reference>();
+				for (String port : ports) {
+					int depth = (isSingleValuePort(port) ? 0 : 1);
+					Object value = getOutputValue(recordValues, port, depth, referenceService, context);
+					T2Reference reference = (value instanceof T2Reference ?
+							(T2Reference) value : referenceService.register(value, depth, true, context));
+					recordOutputs.put(port, reference);
+					outputLists.get(port).add(reference);
+				}
+				recordTimings.add(Stage.REGISTER, registerStart);
+				recordTimings.record();
+
+				if (config.isPipelineResults() && !recordOutputs.isEmpty()) {
+					callback.receiveResult(recordOutputs, new int[] { index });
+				}
+				index++;
+			}
+		} catch (IOException e) {
+			fail(e.getMessage(), e, timings, startNanos);
+			return;
+		} finally {
+			JsonPathActivityInput.closeQuietly(jsonReader);
+			if (jsonReader != null) {
+				charactersIn.addAndGet(jsonReader.getCount());
+			}
+			recordInterning(stringPool);
+			releaseStringPool(stringPool);
+		}
+
+		// the records are all registered - only the lists of them are left
+		long registerStart = System.nanoTime();
+		Map<String, T2Reference> outputs = new HashMap<String, T2Reference>();
+		for (String port : ports) {
+			int depth = (isSingleValuePort(port) ? 1 : 2);
+			outputs.put(port, registerList(outputLists.get(port), depth, referenceService, context));
+		}
+		timings.add(Stage.REGISTER, registerStart);
+
+		complete(outputs, timings, startNanos);
+	}
+
+
+	/**
+	 * @return The serialized output values of the given NDJSON record (by port name), or its failure.
+	 */
+	private Object processRecord(String record, JSONStringPool stringPool, StageTimings timings)
+	{
+		Map<Object, String> sources = newSourceMap();
+		Object jsonObject;
+		try {
+			long parseStart = System.nanoTime();
+			if (config.isStreamingEnabled()) {
+				jsonObject = JSONPathStreamingEvaluator.parse(queries.getQueryPlans().values(), new StringReader(record), maxResults, sources, stringPool);
+			}
+			else {
+				jsonObject = parse(record, stringPool);
+			}
+			timings.add(Stage.PARSE, parseStart);
+		} catch (IOException e) {
+			return new DocumentFailure(e.getMessage(), e);
+		} catch (ParseException e) {
+			return new DocumentFailure(e.getMessage(), e);
+		} catch (InvalidJsonException e) {
+			return new DocumentFailure(e.getMessage(), e);
+		} catch (RuntimeException e) {
+			return new DocumentFailure(getMessage(e), e);
+		}
+
+		if (jsonObject == null) {
+			return new DocumentFailure("Empty input", null);
+		}
+
+		return evaluateDocument(jsonObject, sources, stringPool, timings);
+	}
+
+
+	/**
+	 * @return The message of the given exception - or its class, if it has no message.
+	 */
+	private static String getMessage(Throwable e) {
+		return (e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+	}
+
+
+	private static void cancelAll(List<? extends Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+
+	/**
+	 * @return The references to the documents in the input list (or to the single input
+	 *         document, if a plain value was passed to the input port).
+	 */
+	private static List<T2Reference> getDocuments(ReferenceService referenceService, T2Reference inputReference)
+	{
+		if (inputReference.getReferenceType() == T2ReferenceType.IdentifiedList) {
+			return referenceService.getListService().getList(inputReference);
+		}
+		return Collections.singletonList(inputReference);
+	}
+
+
+	/**
+	 * Processes the documents in the given range of the batch, putting the serialized
+	 * output values (or the failure) of each into <code>documentValues</code>.
+	 */
+	private void processDocuments(List<T2Reference> documents, int from, int to, Object[] documentValues,
+			ReferenceService referenceService, InvocationContext context)
+	{
+		for (int i = from; i < to; i++) {
+			StageTimings timings = metrics.newStageTimings();
+			documentValues[i] = processDocument(documents.get(i), referenceService, context, timings);
+			timings.record();
+		}
+	}
+
+
+	/**
+	 * @return The serialized output values of the given document (by port name), or its failure.
+	 */
+	private Object processDocument(T2Reference documentReference, ReferenceService referenceService, InvocationContext context,
+			StageTimings timings)
+	{
+		if (documentReference.containsErrors()) {
+			return new DocumentFailure("Input document is an error", null);
+		}
+
+		JSONStringPool stringPool = acquireStringPool();
+		try {
+			return processDocument(documentReference, referenceService, context, stringPool, timings);
+		} catch (RuntimeException e) {
+			// e.g. the reference service fails to render the document - only this document fails
+			return new DocumentFailure(getMessage(e), e);
+		} finally {
+			releaseStringPool(stringPool);
+		}
+	}
+
+
+	/**
+	 * @param stringPool The pool that repeated short strings are interned in, or <code>null</code>.
+	 * @return The serialized output values of the given document (by port name), or its failure.
+	 */
+	private Object processDocument(T2Reference documentReference, ReferenceService referenceService, InvocationContext context,
+			JSONStringPool stringPool, StageTimings timings)
+	{
+		Map<Object, String> sources = newSourceMap();
+		String memoKey = null;
+		Object jsonObject;
+		try {
+			if (memoFingerprint != null) {
+				// identical documents have been evaluated before - reuse their output values
+				long renderStart = System.nanoTime();
+				String jsonInput = readText(documentReference, referenceService, context);
+				timings.add(Stage.RENDER, renderStart);
+				if (jsonInput == null) {
+					return new DocumentFailure("Empty input", null);
+				}
+
+				long memoStart = System.nanoTime();
+				memoKey = getMemoKey(jsonInput);
+				Map<String, Object> memoized = JsonPathResultMemo.getInstance().get(memoKey);
+				timings.add(Stage.MEMO, memoStart);
+				if (memoized != null) {
+					return memoized;
+				}
+
+				jsonObject = parseText(jsonInput, sources, stringPool, timings);
+			}
+			else {
+				jsonObject = readDocument(documentReference, referenceService, context, sources, stringPool, timings);
+			}
+		} catch (IOException e) {
+			return new DocumentFailure(e.getMessage(), e);
+		} catch (ParseException e) {
+			return new DocumentFailure(e.getMessage(), e);
+		} catch (InvalidJsonException e) {
+			return new DocumentFailure(e.getMessage(), e);
+		}
+
+		if (jsonObject == null) {
+			return new DocumentFailure("Empty input", null);
+		}
+		Object documentValue = evaluateDocument(jsonObject, sources, stringPool, timings);
+		recordInterning(stringPool);
+		if (memoKey != null && !(documentValue instanceof DocumentFailure)) {
+			@SuppressWarnings("unchecked")
+			Map<String, Object> values = (Map<String, Object>) documentValue;
+			JsonPathResultMemo.getInstance().put(memoKey, values);
+		}
+		return documentValue;
+	}
+
+
+	/**
+	 * @return The serialized output values of the given parsed document (by port name), or its failure.
+	 */
+	private Object evaluateDocument(Object jsonObject, Map<Object, String> sources, JSONStringPool stringPool, StageTimings timings)
+	{
+		Map<String, Object> values = new HashMap<String, Object>();
+		try {
+			long evaluateStart = System.nanoTime();
+			Map<String, Object> resultValuesByName = queries.read(jsonProvider, jsonObject, parallelThreshold);
+			timings.add(Stage.EVALUATE, evaluateStart);
+
+			long serializeStart = System.nanoTime();
+			for (Map.Entry<String, Object> resultValue : resultValuesByName.entrySet()) {
+				List<?> resultValues = limitResults(toResultList(resultValue.getValue()));
+				matchesOut.addAndGet(resultValues.size());
+				serializeOutputs(resultValue.getKey(), resultValues, sources, stringPool, values);
+			}
+			timings.add(Stage.SERIALIZE, serializeStart);
+		} catch (RuntimeException e) {
+			// e.g. the document is a plain value, which JsonPath expressions can't be applied to, or
+			// json-path rejects a path that the document doesn't have (a missing property, an index
+			// out of range, a property of a list...)
+			return new DocumentFailure(getMessage(e), e);
+		}
+		return values;
+	}
+
+
+	/**
+	 * @return The names of the output ports that the activity produces, in the order of the expressions.
+	 */
+	private List<String> getProducedOutputs()
+	{
+		List<String> ports = new ArrayList<String>();
+		for (String textPort : queries.getQueryPlans().keySet()) {
+			if (hasSingleValueOutputs(textPort)) {
+				ports.add(SINGLE_VALUE_TEXT);
+				ports.add(SINGLE_VALUE_JSON);
+			}
+			ports.add(textPort);
+			ports.add(textPort + AS_JSON_SUFFIX);
+		}
+
+		for (Iterator<String> i = ports.iterator(); i.hasNext(); ) {
+			if (!config.isOutputProduced(i.next())) {
+				i.remove();
+			}
+		}
+		return ports;
+	}
+
+
+	/**
+	 * The result of a JsonPath expression is either a list of nodes or a single node.
+	 */
+	static List<?> toResultList(Object resultValue)
+	{
+		if (!(resultValue instanceof List)) {
+			return Collections.singletonList(resultValue);
+		}
+		return (List<?>) resultValue;
+	}
+
+
+	/**
+	 * @return A map for the text of the objects and arrays matched in an input document, if
+	 *         they are to be output as they are in the input; <code>null</code> otherwise.
+	 */
+	private Map<Object, String> newSourceMap()
+	{
+		if (config.isVerbatimJson() && config.isStreamingEnabled()) {
+			return new IdentityHashMap<Object, String>();
+		}
+		return null;
+	}
+
+
+	/**
+	 * @return The configured maximum number of results, or - when only the single value
+	 *         outputs are produced - <code>1</code>, as nothing but the first match is needed;
+	 *         <code>0</code> if all matches are needed.
+	 */
+	private int getResultLimit()
+	{
+		if (config.getMaxResults() > 0) {
+			return config.getMaxResults();
+		}
+		for (String textPort : queries.getQueryPlans().keySet()) {
+			if (config.isOutputProduced(textPort) || config.isOutputProduced(textPort + AS_JSON_SUFFIX)) {
+				return 0;
+			}
+		}
+		return 1;
+	}
+
+
+	/**
+	 * @return The first {@link #maxResults} of the given matched nodes.
+	 */
+	private List<?> limitResults(List<?> resultValues)
+	{
+		if (maxResults > 0 && resultValues.size() > maxResults) {
+			return resultValues.subList(0, maxResults);
+		}
+		return resultValues;
+	}
+
+
+	/**
+	 * The single value outputs only exist for the main JsonPath expression.
+	 */
+	private static boolean hasSingleValueOutputs(String textPort) {
+		return OUT_TEXT.equals(textPort);
+	}
+
+
+	private static boolean isSingleValuePort(String port) {
+		return SINGLE_VALUE_TEXT.equals(port) || SINGLE_VALUE_JSON.equals(port);
+	}
+
+
+	/**
+	 * Serializes the matched nodes that the produced outputs of one expression need: the
+	 * node lists go into <code>values</code> as lists of strings, the single values as
+	 * strings (or <code>null</code>, if nothing matched). Equal short strings in the node
+	 * lists share their instance, if strings are interned.
+	 */
+	private void serializeOutputs(String textPort, List<?> resultValues, Map<Object, String> sources, JSONStringPool stringPool,
+			Map<String, Object> values)
+	{
+		String jsonPort = textPort + AS_JSON_SUFFIX;
+		boolean singleValues = hasSingleValueOutputs(textPort);
+		boolean firstText = singleValues && config.isOutputProduced(SINGLE_VALUE_TEXT);
+		boolean firstJSON = singleValues && config.isOutputProduced(SINGLE_VALUE_JSON);
+		boolean listText = config.isOutputProduced(textPort);
+		boolean listJSON = config.isOutputProduced(jsonPort);
+
+		List<String> outNodesText = new ArrayList<String>();
+		List<String> outNodesJSON = new ArrayList<String>();
+
+		// the single value outputs only need the first node
+		int needed = (listText || listJSON ? resultValues.size() : (firstText || firstJSON ? 1 : 0));
+
+		for (Object o : resultValues.subList(0, Math.min(needed, resultValues.size()))) {
+			boolean first = outNodesText.isEmpty() && outNodesJSON.isEmpty();
+			if (listText || (firstText && first)) {
+				outNodesText.add(intern(toText(o), o, stringPool));
+			}
+			if (listJSON || (firstJSON && first)) {
+				outNodesJSON.add(intern(toJSON(o, sources), o, stringPool));
+			}
+		}
+
+		if (firstText) {
+			values.put(SINGLE_VALUE_TEXT, (outNodesText.isEmpty() ? null : outNodesText.get(0)));
+		}
+		if (firstJSON) {
+			values.put(SINGLE_VALUE_JSON, (outNodesJSON.isEmpty() ? null : outNodesJSON.get(0)));
+		}
+
+		if (listText) {
+			values.put(textPort, outNodesText);
+		}
+		if (listJSON) {
+			values.put(jsonPort, outNodesJSON);
+		}
+	}
+
+
+	/**
+	 * Serializes the matched nodes and registers each of them as soon as it has been
+	 * serialized - so the text of no more than one node is held on to at a time, only
+	 * the references to the registered nodes, until the complete lists are registered
+	 * from them. The single value outputs reuse the reference to the first node of the
+	 * lists, rather than registering it again. Only the representations (text / JSON)
+	 * needed by the outputs that the activity is configured to produce are built.
+	 */
+	private void registerOutputs(String textPort, List<?> resultValues, Map<String, T2Reference> outputs,
+			Map<Object, String> sources, JSONStringPool stringPool, ReferenceService referenceService, InvocationContext context,
+			StageTimings timings)
+	{
+		String jsonPort = textPort + AS_JSON_SUFFIX;
+		boolean singleValues = hasSingleValueOutputs(textPort);
+
+		List<T2Reference> itemsText = null;
+		List<T2Reference> itemsJSON = null;
+		if (config.isOutputProduced(textPort)) {
+			itemsText = registerNodes(resultValues, false, sources, stringPool, referenceService, context, timings);
+			outputs.put(textPort, registerNodeList(itemsText, referenceService, context, timings));
+		}
+		if (config.isOutputProduced(jsonPort)) {
+			itemsJSON = registerNodes(resultValues, true, sources, stringPool, referenceService, context, timings);
+			outputs.put(jsonPort, registerNodeList(itemsJSON, referenceService, context, timings));
+		}
+
+		if (singleValues && config.isOutputProduced(SINGLE_VALUE_TEXT)) {
+			outputs.put(SINGLE_VALUE_TEXT, registerFirstNode(resultValues, first(itemsText), false, sources, referenceService, context, timings));
+		}
+		if (singleValues && config.isOutputProduced(SINGLE_VALUE_JSON)) {
+			outputs.put(SINGLE_VALUE_JSON, registerFirstNode(resultValues, first(itemsJSON), true, sources, referenceService, context, timings));
+		}
+	}
+
+
+	/**
+	 * Serializes the given nodes (as text or as JSON) and registers them one by one.
+	 *
+	 * @return The references to the registered nodes, in order.
+	 */
+	private List<T2Reference> registerNodes(List<?> nodes, boolean asJSON, Map<Object, String> sources, JSONStringPool stringPool,
+			ReferenceService referenceService, InvocationContext context, StageTimings timings)
+	{
+		List<T2Reference> items = new ArrayList<T2Reference>(nodes.size());
+		for (Object o : nodes) {
+			long serializeStart = System.nanoTime();
+			String value = intern(asJSON ? toJSON(o, sources) : toText(o), o, stringPool);
+			timings.add(Stage.SERIALIZE, serializeStart);
+
+			long registerStart = System.nanoTime();
+			items.add(referenceService.register(value, 0, true, context));
+			timings.add(Stage.REGISTER, registerStart);
+		}
+		return items;
+	}
+
+
+	/**
+	 * Registers the list of the given (registered) nodes.
+	 */
+	private static T2Reference registerNodeList(List<T2Reference> items, ReferenceService referenceService,
+			InvocationContext context, StageTimings timings)
+	{
+		long registerStart = System.nanoTime();
+		T2Reference list = registerList(items, referenceService, context);
+		timings.add(Stage.REGISTER, registerStart);
+		return list;
+	}
+
+
+	/**
+	 * @return The first of the given references, or <code>null</code> if there are none (or no list of them).
+	 */
+	private static T2Reference first(List<T2Reference> items) {
+		return (items == null || items.isEmpty() ? null : items.get(0));
+	}
+
+
+	/**
+	 * Registers the first of the matched nodes (or an error document, if there are none) as
+	 * the value of a single value output - or just returns the reference to it, if it has
+	 * been registered already.
+	 *
+	 * @param firstItem The reference to the registered first node (in the same representation), or <code>null</code>.
+	 */
+	private T2Reference registerFirstNode(List<?> resultValues, T2Reference firstItem, boolean asJSON, Map<Object, String> sources,
+			ReferenceService referenceService, InvocationContext context, StageTimings timings)
+	{
+		if (resultValues.isEmpty()) {
+			return registerError("No value produced", null, 0, referenceService, context);
+		}
+		if (firstItem != null) {
+			return firstItem;
+		}
+
+		long serializeStart = System.nanoTime();
+		String value = (asJSON ? toJSON(resultValues.get(0), sources) : toText(resultValues.get(0)));
+		timings.add(Stage.SERIALIZE, serializeStart);
+
+		long registerStart = System.nanoTime();
+		T2Reference first = referenceService.register(value, 0, true, context);
+		timings.add(Stage.REGISTER, registerStart);
+		return first;
+	}
+
+
+	/**
+	 * Registers each matched node as soon as it has been serialized and pushes it
+	 * downstream as a partial result of the list outputs (at the index of the node
+	 * in the list), so that downstream processors can start on it straight away.
+	 * The complete lists are then assembled from the references already registered.
+	 */
+	private void registerPipelinedOutputs(String textPort, List<?> resultValues, Map<String, T2Reference> outputs,
+			Map<Object, String> sources, ReferenceService referenceService, InvocationContext context, StageTimings timings)
+	{
+		String jsonPort = textPort + AS_JSON_SUFFIX;
+		boolean singleValues = hasSingleValueOutputs(textPort);
+		boolean firstText = singleValues && config.isOutputProduced(SINGLE_VALUE_TEXT);
+		boolean firstJSON = singleValues && config.isOutputProduced(SINGLE_VALUE_JSON);
+		boolean listText = config.isOutputProduced(textPort);
+		boolean listJSON = config.isOutputProduced(jsonPort);
+
+		List<T2Reference> outNodesText = new ArrayList<T2Reference>();
+		List<T2Reference> outNodesJSON = new ArrayList<T2Reference>();
+
+		int index = 0;
+		for (Object o : resultValues) {
+			Map<String, T2Reference> partialOutputs = new HashMap<String, T2Reference>();
+
+			if (listText || (firstText && index == 0)) {
+				long serializeStart = System.nanoTime();
+				String text = toText(o);
+				timings.add(Stage.SERIALIZE, serializeStart);
+
+				long registerStart = System.nanoTime();
+				T2Reference textReference = referenceService.register(text, 0, true, context);
+				timings.add(Stage.REGISTER, registerStart);
+				outNodesText.add(textReference);
+				if (listText) {
+					partialOutputs.put(textPort, textReference);
+				}
+			}
+			if (listJSON || (firstJSON && index == 0)) {
+				long serializeStart = System.nanoTime();
+				String json = toJSON(o, sources);
+				timings.add(Stage.SERIALIZE, serializeStart);
+
+				long registerStart = System.nanoTime();
+				T2Reference jsonReference = referenceService.register(json, 0, true, context);
+				timings.add(Stage.REGISTER, registerStart);
+				outNodesJSON.add(jsonReference);
+				if (listJSON) {
+					partialOutputs.put(jsonPort, jsonReference);
+				}
+			}
+
+			if (partialOutputs.isEmpty()) {
+				// neither of the lists is produced - nothing to pipeline
+				break;
+			}
+			callback.receiveResult(partialOutputs, new int[] { index++ });
+		}
+
+		// the first nodes are already registered - no need to do that again
+		long registerStart = System.nanoTime();
+		if (firstText) {
+			outputs.put(SINGLE_VALUE_TEXT, registerFirst(outNodesText, referenceService, context));
+		}
+		if (firstJSON) {
+			outputs.put(SINGLE_VALUE_JSON, registerFirst(outNodesJSON, referenceService, context));
+		}
+
+		if (listText) {
+			outputs.put(textPort, registerList(outNodesText, referenceService, context));
+		}
+		if (listJSON) {
+			outputs.put(jsonPort, registerList(outNodesJSON, referenceService, context));
+		}
+		timings.add(Stage.REGISTER, registerStart);
+	}
+
+
+	/**
+	 * Registers the first of the given nodes (or an error document, if there are none)
+	 * as the value of a single value output.
+	 */
+	private T2Reference registerFirst(List<?> outNodes, ReferenceService referenceService, InvocationContext context)
+	{
+		if (outNodes.isEmpty()) {
+			return registerError("No value produced", null, 0, referenceService, context);
+		}
+		Object first = outNodes.get(0);
+		if (first instanceof T2Reference) {
+			return (T2Reference) first;
+		}
+		return referenceService.register(first, 0, true, context);
+	}
+
+
+	/**
+	 * Registers a list made of already registered items.
+	 */
+	static T2Reference registerList(List<T2Reference> items, ReferenceService referenceService, InvocationContext context)
+	{
+		return registerList(items, 1, referenceService, context);
+	}
+
+
+	/**
+	 * Registers a list (of the given depth) made of already registered items.
+	 */
+	static T2Reference registerList(List<T2Reference> items, int depth, ReferenceService referenceService,
+			InvocationContext context)
+	{
+		if (items.isEmpty()) {
+			return referenceService.register(items, depth, true, context);
+		}
+		return referenceService.getListService().registerList(items, context).getId();
+	}
+
+
+	/**
+	 * Parses the input document with the selected JSON provider - json-smart is
+	 * used directly, to keep its (checked) parse errors.
+	 */
+	private Object parse(String jsonInput, JSONStringPool stringPool) throws ParseException, InvalidJsonException {
+		if (stringPool != null && canIntern()) {
+			try {
+				return parseInterned(new StringReader(jsonInput), stringPool);
+			} catch (IOException e) {
+				throw new InvalidJsonException(e);
+			}
+		}
+		if (defaultJsonProvider) {
+			return JSONValue.parseWithException(jsonInput);
+		}
+		return jsonProvider.parse(jsonInput);
+	}
+
+
+	private Object parse(Reader jsonInput, JSONStringPool stringPool) throws IOException, ParseException, InvalidJsonException {
+		if (stringPool != null && canIntern()) {
+			return parseInterned(jsonInput, stringPool);
+		}
+		if (defaultJsonProvider) {
+			return JSONValue.parseWithException(jsonInput);
+		}
+		return jsonProvider.parse(jsonInput);
+	}
+
+
+	/**
+	 * Whether strings can be interned while parsing with the selected JSON provider - the
+	 * parsers of other providers than json-smart and the tape provider can't be given a pool.
+	 */
+	private boolean canIntern() {
+		return defaultJsonProvider || jsonProvider instanceof JSONTapeJsonProvider;
+	}
+
+
+	/**
+	 * Parses the input document with a {@link JSONStreamReader} that interns repeated short
+	 * strings in the given pool - into a tape, or into the same json-smart values as json-smart
+	 * would (though the reader doesn't accept the non-standard JSON that json-smart does).
+	 */
+	private Object parseInterned(Reader jsonInput, JSONStringPool stringPool) throws IOException {
+		if (!defaultJsonProvider) {
+			return JSONTape.parse(jsonInput, stringPool).getRoot();
+		}
+		JSONStreamReader reader = new JSONStreamReader(jsonInput, stringPool);
+		Object jsonObject = reader.readValue();
+		// make sure that there is nothing but whitespace after the document
+		reader.peek();
+		return jsonObject;
+	}
+
+
+	/**
+	 * @return An empty pool for the strings of an input document (reusing the table of a document
+	 *         that has been read before), or <code>null</code> if they are not to be interned.
+	 */
+	private JSONStringPool acquireStringPool() {
+		return (stringPools != null ? stringPools.acquire() : null);
+	}
+
+
+	/**
+	 * Gives back the given pool (if any), once the strings of its document have been interned.
+	 */
+	private void releaseStringPool(JSONStringPool stringPool) {
+		if (stringPool != null) {
+			stringPools.release(stringPool);
+		}
+	}
+
+
+	/**
+	 * Adds the lookups of the given pool (if any) to the metrics of the activity.
+	 */
+	private void recordInterning(JSONStringPool stringPool) {
+		if (stringPool != null) {
+			metrics.recordInterning(stringPool);
+		}
+	}
+
+
+	/**
+	 * @return The given text of a matched node - or the instance of an equal string from the
+	 *         pool, if strings are interned.
+	 */
+	private static String intern(String text, Object node, JSONStringPool stringPool) {
+		if (stringPool == null || text == node) {
+			// strings that are output as they are have been interned while parsing, if at all
+			return text;
+		}
+		return stringPool.intern(text);
+	}
+
+
+	private String toText(Object o) {
+		if (!defaultJsonProvider && jsonProvider.isContainer(o)) {
+			// only json-smart containers render themselves as JSON
+			return jsonProvider.toJson(o);
+		}
+		return (o == null ? NULL_VALUE_FOR_STRING : o.toString());
+	}
+
+
+	/**
+	 * @param sources The text of matched objects and arrays in the input, or <code>null</code>.
+	 */
+	private String toJSON(Object o, Map<Object, String> sources) {
+		String source = (sources == null ? null : sources.get(o));
+		if (source != null) {
+			// as it is in the input - no need to serialize it again
+			return source;
+		}
+		return toJSON(o);
+	}
+
+
+	private String toJSON(Object o) {
+		if (defaultJsonProvider) {
+			return JSONValue.toJSONString(o);
+		}
+		return JSONPathUtils.toJSONString(jsonProvider, o);
+	}
+
+
+	/**
+	 * Registers an error document of the given depth.
+	 *
+	 * @param cause The cause of the error, or <code>null</code>.
+	 */
+	private static T2Reference registerError(String message, Throwable cause, int depth,
+			ReferenceService referenceService, InvocationContext context)
+	{
+		ErrorDocumentService errorDocService = referenceService.getErrorDocumentService();
+		if (cause == null) {
+			return errorDocService.registerError(message, depth, context).getId();
+		}
+		return errorDocService.registerError(message, cause, depth, context).getId();
+	}
+
+}
@@ -0,0 +1,510 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONStringPool;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runtime metrics of a single {@link JsonPathActivity}: counters of invocations, failures,
+ * characters read and nodes matched, of the strings that were shared through interning
+ * (see {@link JsonPathActivityConfigurationBean#getStringInterning()}), and latency histograms
+ * of complete invocations and of each of their {@link Stage stages}.
+ * <p>
+ * The metrics of an activity are exposed as an MXBean on the platform MBean server while the
+ * activity is configured to (see {@link JsonPathActivityConfigurationBean#isMetricsMBeanEnabled()}),
+ * under {@link #OBJECT_NAME_PREFIX} with the JsonPath expression of the activity as the
+ * {@link #JSON_PATH_KEY} key. Measurements are passed on to {@link JsonPathActivityMetricsListener
+ * listeners} as they are taken, whether the metrics are registered or not.
+ * <p>
+ * All methods are thread-safe and non-blocking.
+ */
+public class JsonPathActivityMetrics implements JsonPathActivityMetricsMXBean
+{
+  private static final Logger logger = Logger.getLogger(JsonPathActivityMetrics.class);
+
+  // approximate size (in bytes) of a String object and its character array, apart from the characters
+  private static final long STRING_OVERHEAD_BYTES = 56;
+
+  /** Prefix of the JMX object names of the metrics; the name of the metrics is appended to it. */
+  public static final String OBJECT_NAME_PREFIX = "net.sf.taverna.t2.activities.jsonpath:type=JsonPathActivity,name=";
+
+  /** Key of the JMX object names of the metrics that holds the JsonPath expression of the activity. */
+  public static final String JSON_PATH_KEY = "jsonPath";
+
+
+  /**
+   * The stages of an invocation.
+   */
+  public static enum Stage {
+    /** Rendering the input reference into JSON text (or opening a stream over it). */
+    RENDER,
+    /** Parsing the JSON text. */
+    PARSE,
+    /** Applying the JsonPath expressions to the parsed document. */
+    EVALUATE,
+    /** Converting the matched nodes to text / JSON. */
+    SERIALIZE,
+    /** Registering the outputs with the reference service. */
+    REGISTER,
+    /** Hashing the input and looking up its output values in the {@link JsonPathResultMemo}. */
+    MEMO
+  }
+
+
+  /**
+   * Histogram of latencies, with buckets of exponentially growing width: bucket <code>i</code>
+   * counts the latencies of at least <code>2^i</code> and less than <code>2^(i+1)</code> nanoseconds.
+   */
+  static class LatencyHistogram
+  {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+
+      long max;
+      while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+        // retry - another thread has recorded a new maximum in the meantime
+      }
+    }
+
+    LatencySnapshot snapshot() {
+      long[] counts = new long[buckets.length()];
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = buckets.get(i);
+      }
+      return new LatencySnapshot(count.get(), totalNanos.get(), maxNanos.get(), counts);
+    }
+
+    void reset() {
+      for (int i = 0; i < buckets.length(); i++) {
+        buckets.set(i, 0);
+      }
+      count.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+    }
+  }
+
+
+  /**
+   * A point-in-time copy of a latency histogram.
+   */
+  public static class LatencySnapshot
+  {
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long[] buckets;
+
+    LatencySnapshot(long count, long totalNanos, long maxNanos, long[] buckets) {
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.maxNanos = maxNanos;
+      this.buckets = buckets;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getTotalNanos() {
+      return totalNanos;
+    }
+
+    public long getMeanNanos() {
+      return (count == 0 ? 0 : totalNanos / count);
+    }
+
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    /** @return Approximate median (the upper bound of the bucket that holds it). */
+    public long getP50Nanos() {
+      return getPercentileNanos(0.50);
+    }
+
+    /** @return Approximate 90th percentile (the upper bound of the bucket that holds it). */
+    public long getP90Nanos() {
+      return getPercentileNanos(0.90);
+    }
+
+    /** @return Approximate 99th percentile (the upper bound of the bucket that holds it). */
+    public long getP99Nanos() {
+      return getPercentileNanos(0.99);
+    }
+
+    /**
+     * @return Counts of the buckets of the histogram - bucket <code>i</code> holds the latencies
+     *         of at least <code>2^i</code> and less than <code>2^(i+1)</code> nanoseconds.
+     */
+    public long[] getBuckets() {
+      return buckets.clone();
+    }
+
+    private long getPercentileNanos(double percentile) {
+      long total = 0;
+      for (long bucket : buckets) {
+        total += bucket;
+      }
+      if (total == 0) {
+        return 0;
+      }
+
+      long rank = (long) Math.ceil(percentile * total);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          // never above the largest latency actually recorded
+          return Math.min((i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1), maxNanos);
+        }
+      }
+      return maxNanos;
+    }
+  }
+
+
+  /**
+   * Time spent in each stage by one invocation (or by one document of a batch), recorded as
+   * one measurement per stage that was entered. Instances must be confined to a single thread.
+   */
+  class StageTimings
+  {
+    private final long[] nanos = new long[Stage.values().length];
+    private final boolean[] entered = new boolean[Stage.values().length];
+
+    /**
+     * Adds the time from <code>startNanos</code> (a value of {@link System#nanoTime()}) until now to the given stage.
+     */
+    void add(Stage stage, long startNanos) {
+      nanos[stage.ordinal()] += System.nanoTime() - startNanos;
+      entered[stage.ordinal()] = true;
+    }
+
+    /**
+     * Records the accumulated time of each stage that was entered.
+     */
+    void record() {
+      for (Stage stage : Stage.values()) {
+        if (entered[stage.ordinal()]) {
+          recordStage(stage, nanos[stage.ordinal()]);
+        }
+      }
+    }
+  }
+
+
+  // listeners of all activities, declared in META-INF/services
+  private static class ServiceListeners {
+    private static final List<JsonPathActivityMetricsListener> instance = loadServiceListeners();
+  }
+
+  private static final AtomicInteger nextId = new AtomicInteger();
+
+
+  private final String name;
+  private volatile ObjectName objectName;
+  private volatile String jsonPath;
+
+  private final AtomicLong invocationCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+  private final AtomicLong charactersIn = new AtomicLong();
+  private final AtomicLong matchesOut = new AtomicLong();
+  private final AtomicLong internedStrings = new AtomicLong();
+  private final AtomicLong internedCharacters = new AtomicLong();
+  private final AtomicLong internMisses = new AtomicLong();
+
+  private final LatencyHistogram invocationLatency = new LatencyHistogram();
+  private final Map<Stage, LatencyHistogram> stageLatencies = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+  private final List<JsonPathActivityMetricsListener> listeners = new CopyOnWriteArrayList<JsonPathActivityMetricsListener>();
+
+
+  /**
+   * Creates metrics with a name that is unique in this JVM.
+   */
+  public JsonPathActivityMetrics() {
+    this("JsonPathActivity-" + nextId.incrementAndGet());
+  }
+
+  JsonPathActivityMetrics(String name) {
+    this.name = name;
+    for (Stage stage : Stage.values()) {
+      stageLatencies.put(stage, new LatencyHistogram());
+    }
+  }
+
+
+  // ---- RECORDING ----
+
+  StageTimings newStageTimings() {
+    return new StageTimings();
+  }
+
+  void recordStage(Stage stage, long durationNanos) {
+    stageLatencies.get(stage).record(durationNanos);
+    for (JsonPathActivityMetricsListener listener : getAllListeners()) {
+      try {
+        listener.stageCompleted(this, stage, durationNanos);
+      }
+      catch (RuntimeException e) {
+        logger.warn("JsonPath activity metrics listener failed: " + listener, e);
+      }
+    }
+  }
+
+  void recordInvocation(long characters, long matches, long durationNanos) {
+    invocationCount.incrementAndGet();
+    charactersIn.addAndGet(characters);
+    matchesOut.addAndGet(matches);
+    invocationLatency.record(durationNanos);
+    for (JsonPathActivityMetricsListener listener : getAllListeners()) {
+      try {
+        listener.invocationCompleted(this, characters, matches, durationNanos);
+      }
+      catch (RuntimeException e) {
+        logger.warn("JsonPath activity metrics listener failed: " + listener, e);
+      }
+    }
+  }
+
+  /**
+   * Records the lookups of a pool of strings that an input document (or several) was parsed
+   * and serialized with - nothing is passed on to the listeners.
+   */
+  void recordInterning(JSONStringPool stringPool) {
+    internedStrings.addAndGet(stringPool.getHitCount());
+    internedCharacters.addAndGet(stringPool.getSavedCharacters());
+    internMisses.addAndGet(stringPool.getMissCount());
+  }
+
+  void recordFailure(String message, long durationNanos) {
+    invocationCount.incrementAndGet();
+    failureCount.incrementAndGet();
+    invocationLatency.record(durationNanos);
+    for (JsonPathActivityMetricsListener listener : getAllListeners()) {
+      try {
+        listener.invocationFailed(this, message, durationNanos);
+      }
+      catch (RuntimeException e) {
+        logger.warn("JsonPath activity metrics listener failed: " + listener, e);
+      }
+    }
+  }
+
+
+  // ---- LISTENERS ----
+
+  /**
+   * Adds a listener that is called for measurements of this activity only.
+   */
+  public void addListener(JsonPathActivityMetricsListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(JsonPathActivityMetricsListener listener) {
+    listeners.remove(listener);
+  }
+
+  private List<JsonPathActivityMetricsListener> getAllListeners() {
+    if (listeners.isEmpty()) {
+      return ServiceListeners.instance;
+    }
+    List<JsonPathActivityMetricsListener> all = new ArrayList<JsonPathActivityMetricsListener>(ServiceListeners.instance);
+    all.addAll(listeners);
+    return all;
+  }
+
+  private static List<JsonPathActivityMetricsListener> loadServiceListeners() {
+    List<JsonPathActivityMetricsListener> serviceListeners = new ArrayList<JsonPathActivityMetricsListener>();
+    Iterator<JsonPathActivityMetricsListener> i = ServiceLoader.load(JsonPathActivityMetricsListener.class,
+        JsonPathActivityMetrics.class.getClassLoader()).iterator();
+    while (true) {
+      try {
+        if (!i.hasNext()) {
+          break;
+        }
+        serviceListeners.add(i.next());
+      }
+      catch (ServiceConfigurationError e) {
+        // skip the listener that can't be loaded, but keep the others
+        logger.warn("Could not load JsonPath activity metrics listener", e);
+      }
+    }
+    return Collections.unmodifiableList(serviceListeners);
+  }
+
+
+  // ---- JMX ----
+
+  /**
+   * Registers these metrics with the platform MBean server, unless they are registered already.
+   * Failure to register is logged, but otherwise ignored.
+   */
+  public void register()
+  {
+    if (objectName == null) {
+      register(jsonPath);
+    }
+  }
+
+  /**
+   * Registers these metrics with the platform MBean server, under a name that holds the given
+   * JsonPath expression - if they are registered under a different expression already (as after
+   * a reconfiguration of the activity), they are unregistered from the old name first.
+   * Failure to register is logged, but otherwise ignored.
+   *
+   * @param jsonPath The JsonPath expression of the activity, or <code>null</code> to leave it out of the name.
+   */
+  public void register(String jsonPath)
+  {
+    if (objectName != null) {
+      if (jsonPath == null ? this.jsonPath == null : jsonPath.equals(this.jsonPath)) {
+        return;
+      }
+      unregister();
+    }
+    this.jsonPath = jsonPath;
+    try {
+      ObjectName newObjectName = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(name) +
+          (jsonPath == null ? "" : "," + JSON_PATH_KEY + "=" + ObjectName.quote(jsonPath)));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, newObjectName);
+      objectName = newObjectName;
+    }
+    catch (JMException e) {
+      logger.warn("Could not register JsonPath activity metrics " + name + " with the MBean server", e);
+    }
+  }
+
+  /**
+   * @return The name that these metrics are registered with on the platform MBean server, or <code>null</code> if they aren't.
+   */
+  public ObjectName getObjectName() {
+    return objectName;
+  }
+
+  /**
+   * Removes these metrics from the platform MBean server, if they are registered.
+   */
+  public void unregister()
+  {
+    ObjectName registeredObjectName = objectName;
+    if (registeredObjectName == null) {
+      return;
+    }
+    objectName = null;
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mbeanServer.isRegistered(registeredObjectName)) {
+        mbeanServer.unregisterMBean(registeredObjectName);
+      }
+    }
+    catch (JMException e) {
+      logger.warn("Could not unregister JsonPath activity metrics " + name + " from the MBean server", e);
+    }
+  }
+
+
+  // ---- MXBEAN ----
+
+  public String getName() {
+    return name;
+  }
+
+  public String getJsonPath() {
+    return jsonPath;
+  }
+
+  public long getInvocationCount() {
+    return invocationCount.get();
+  }
+
+  public long getFailureCount() {
+    return failureCount.get();
+  }
+
+  public long getCharactersIn() {
+    return charactersIn.get();
+  }
+
+  public long getMatchesOut() {
+    return matchesOut.get();
+  }
+
+  public long getInternedStrings() {
+    return internedStrings.get();
+  }
+
+  public long getInternMisses() {
+    return internMisses.get();
+  }
+
+  public long getInternSavedBytes() {
+    return internedStrings.get() * STRING_OVERHEAD_BYTES + internedCharacters.get() * 2;
+  }
+
+  public long getParseCharactersPerSecond() {
+    long parseNanos = stageLatencies.get(Stage.PARSE).snapshot().getTotalNanos();
+    return (parseNanos == 0 ? 0 : (long) (charactersIn.get() * 1e9 / parseNanos));
+  }
+
+  public LatencySnapshot getInvocationLatency() {
+    return invocationLatency.snapshot();
+  }
+
+  public LatencySnapshot getStageLatency(Stage stage) {
+    return stageLatencies.get(stage).snapshot();
+  }
+
+  public Map<String, LatencySnapshot> getStageLatencies() {
+    Map<String, LatencySnapshot> snapshots = new LinkedHashMap<String, LatencySnapshot>();
+    for (Map.Entry<Stage, LatencyHistogram> stageLatency : stageLatencies.entrySet()) {
+      snapshots.put(stageLatency.getKey().name(), stageLatency.getValue().snapshot());
+    }
+    return snapshots;
+  }
+
+  public void reset() {
+    invocationCount.set(0);
+    failureCount.set(0);
+    charactersIn.set(0);
+    matchesOut.set(0);
+    internedStrings.set(0);
+    internedCharacters.set(0);
+    internMisses.set(0);
+    invocationLatency.reset();
+    for (LatencyHistogram histogram : stageLatencies.values()) {
+      histogram.reset();
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+/**
+ * Receives the measurements of {@link JsonPathActivity} invocations as they are taken,
+ * e.g. to forward them to an external metrics system.
+ * <p>
+ * Listeners are either registered with the metrics of a particular activity
+ * ({@link JsonPathActivityMetrics#addListener(JsonPathActivityMetricsListener)}), or with
+ * all of them, by listing the implementation class in
+ * <code>META-INF/services/net.sf.taverna.t2.activities.jsonpath.JsonPathActivityMetricsListener</code>.
+ * <p>
+ * Listeners are called on the threads that run the invocations, so they must be thread-safe
+ * and quick; exceptions that they throw are logged and otherwise ignored.
+ */
+public interface JsonPathActivityMetricsListener
+{
+  /**
+   * Called when a stage of an invocation has completed.
+   *
+   * @param metrics The metrics of the activity.
+   */
+  void stageCompleted(JsonPathActivityMetrics metrics, JsonPathActivityMetrics.Stage stage, long durationNanos);
+
+  /**
+   * Called when an invocation has completed successfully.
+   *
+   * @param metrics The metrics of the activity.
+   * @param charactersIn Number of characters of JSON text read by the invocation.
+   * @param matchesOut Number of nodes matched by the JsonPath expressions.
+   */
+  void invocationCompleted(JsonPathActivityMetrics metrics, long charactersIn, long matchesOut, long durationNanos);
+
+  /**
+   * Called when an invocation has failed.
+   *
+   * @param metrics The metrics of the activity.
+   */
+  void invocationFailed(JsonPathActivityMetrics metrics, String message, long durationNanos);
+}
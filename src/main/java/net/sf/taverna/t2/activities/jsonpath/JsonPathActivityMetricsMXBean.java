@@ -0,0 +1,55 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link JsonPathActivityMetrics} of a {@link JsonPathActivity},
+ * as exposed through JMX.
+ */
+public interface JsonPathActivityMetricsMXBean
+{
+  /**
+   * @return The name that the metrics are registered with (unique in this JVM).
+   */
+  String getName();
+
+  /**
+   * @return The JsonPath expression of the activity, as of its latest configuration.
+   */
+  String getJsonPath();
+
+  /** @return Number of invocations that completed (successfully or not). */
+  long getInvocationCount();
+
+  /** @return Number of invocations that failed. */
+  long getFailureCount();
+
+  /** @return Number of characters of JSON text read. */
+  long getCharactersIn();
+
+  /** @return Number of nodes matched by the JsonPath expressions. */
+  long getMatchesOut();
+
+  /** @return Number of strings read or output that shared an instance with an equal one, rather than being copied. */
+  long getInternedStrings();
+
+  /** @return Number of strings that were looked up for interning, but were not found. */
+  long getInternMisses();
+
+  /** @return Approximate number of bytes of memory that interned strings did not take up. */
+  long getInternSavedBytes();
+
+  /** @return Characters of JSON text read per second of parsing (over all invocations). */
+  long getParseCharactersPerSecond();
+
+  /** @return Latencies of complete invocations. */
+  JsonPathActivityMetrics.LatencySnapshot getInvocationLatency();
+
+  /** @return Latencies of each stage of the invocations, by name of the stage. */
+  Map<String, JsonPathActivityMetrics.LatencySnapshot> getStageLatencies();
+
+  /**
+   * Resets all counters and histograms.
+   */
+  void reset();
+}
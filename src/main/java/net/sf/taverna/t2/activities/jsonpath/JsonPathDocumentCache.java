@@ -0,0 +1,244 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
+import net.sf.taverna.t2.reference.T2Reference;
+
+/**
+ * A cache of parsed JSON documents, keyed by the {@link T2Reference} of the JSON text
+ * they were parsed from (and the JSON provider that parsed it), and shared by all
+ * {@link JsonPathActivity} instances in the JVM.
+ * <p>
+ * The cache is bounded by the total weight of its entries - the estimated heap size of
+ * each parsed document (see {@link JSONPathUtils#estimateHeapSize(Object)}), which is
+ * several times the length of the JSON text it was parsed from for json-smart and Jackson
+ * trees, and about as much for tapes. Least recently used entries are evicted first.
+ * Entries also expire after a fixed time-to-live, and are only softly referenced, so that
+ * they can be reclaimed by the garbage collector when memory runs low.
+ * <p>
+ * Only complete documents are cached: inputs that are streamed are neither looked up
+ * nor added, as the projections they are parsed into depend on the expressions.
+ * <p>
+ * Cached documents are shared between concurrent invocations, so they must be treated
+ * as immutable: nothing that reads a document obtained from this cache may modify it.
+ * <p>
+ * Limits can be set with the system properties named by {@link #MAX_WEIGHT_PROPERTY}
+ * and {@link #TIME_TO_LIVE_PROPERTY}, or at runtime.
+ */
+public class JsonPathDocumentCache
+{
+  /** System property with the maximum total weight of the cache (in bytes of estimated heap size). */
+  public static final String MAX_WEIGHT_PROPERTY = "net.sf.taverna.t2.activities.jsonpath.documentCache.maxWeight";
+
+  /** System property with the time-to-live of cache entries (in milliseconds). */
+  public static final String TIME_TO_LIVE_PROPERTY = "net.sf.taverna.t2.activities.jsonpath.documentCache.ttl";
+
+  public static final long DEFAULT_MAX_WEIGHT = 256L * 1024 * 1024;
+  public static final long DEFAULT_TIME_TO_LIVE = 5L * 60 * 1000;
+
+
+  private static class Entry {
+    private final SoftReference<Object> document;
+    private final long weight;
+    private final long expiresAt;
+
+    private Entry(Object document, long weight, long expiresAt) {
+      this.document = new SoftReference<Object>(document);
+      this.weight = weight;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+
+  // access-ordered, so that iteration starts from the least recently used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private long maxWeight;
+  private long timeToLive;
+  private long totalWeight;
+
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+
+  private static class Singleton {
+    private static JsonPathDocumentCache instance = new JsonPathDocumentCache(
+        Long.getLong(MAX_WEIGHT_PROPERTY, DEFAULT_MAX_WEIGHT),
+        Long.getLong(TIME_TO_LIVE_PROPERTY, DEFAULT_TIME_TO_LIVE));
+  }
+
+  /**
+   * @return The cache shared by all JsonPath activities in this JVM.
+   */
+  public static JsonPathDocumentCache getInstance() {
+    return Singleton.instance;
+  }
+
+
+  JsonPathDocumentCache(long maxWeight, long timeToLive) {
+    this.maxWeight = maxWeight;
+    this.timeToLive = timeToLive;
+  }
+
+
+  /**
+   * @param jsonProvider The name of the JSON provider that parsed the document.
+   * @return The parsed document for the given reference, or <code>null</code> if it isn't cached.
+   */
+  public synchronized Object get(T2Reference reference, String jsonProvider)
+  {
+    String key = keyFor(reference, jsonProvider);
+    Entry entry = entries.get(key);
+
+    Object document = null;
+    if (entry != null) {
+      if (entry.expiresAt > System.currentTimeMillis()) {
+        document = entry.document.get();
+      }
+      if (document == null) {
+        // expired, or reclaimed by the garbage collector
+        remove(key);
+        evictionCount++;
+      }
+    }
+
+    if (document == null) {
+      missCount++;
+    }
+    else {
+      hitCount++;
+    }
+    return document;
+  }
+
+
+  /**
+   * Caches the parsed document for the given reference, weighted by its estimated heap size.
+   *
+   * @param jsonProvider The name of the JSON provider that parsed the document.
+   */
+  public void put(T2Reference reference, String jsonProvider, Object document)
+  {
+    if (document != null) {
+      // walk the document outside the lock
+      put(reference, jsonProvider, document, JSONPathUtils.estimateHeapSize(document));
+    }
+  }
+
+
+  /**
+   * Caches the parsed document for the given reference.
+   *
+   * @param jsonProvider The name of the JSON provider that parsed the document.
+   * @param weight The weight of the document (its size in bytes.)
+   */
+  synchronized void put(T2Reference reference, String jsonProvider, Object document, long weight)
+  {
+    if (document == null || weight > maxWeight) {
+      // would evict everything else and still not fit
+      return;
+    }
+
+    String key = keyFor(reference, jsonProvider);
+    remove(key);
+    entries.put(key, new Entry(document, weight, System.currentTimeMillis() + timeToLive));
+    totalWeight += weight;
+
+    evictToFit();
+  }
+
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    totalWeight = 0;
+  }
+
+
+  private void remove(String key) {
+    Entry entry = entries.remove(key);
+    if (entry != null) {
+      totalWeight -= entry.weight;
+    }
+  }
+
+
+  private void evictToFit()
+  {
+    Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+    while (totalWeight > maxWeight && leastRecentlyUsed.hasNext()) {
+      totalWeight -= leastRecentlyUsed.next().getValue().weight;
+      leastRecentlyUsed.remove();
+      evictionCount++;
+    }
+  }
+
+
+  private static String keyFor(T2Reference reference, String jsonProvider) {
+    // documents parsed by different providers are represented differently
+    String providerKey = (JSONPathUtils.isDefaultProvider(jsonProvider) ? JSONPathUtils.JSON_SMART_PROVIDER : jsonProvider.trim());
+    return reference.toUri().toString() + " " + providerKey;
+  }
+
+
+  // ---- LIMITS ----
+
+  public synchronized long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public synchronized void setMaxWeight(long maxWeight) {
+    this.maxWeight = maxWeight;
+    evictToFit();
+  }
+
+  public synchronized long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * @param timeToLive Time-to-live (in milliseconds) of entries added from now on.
+   */
+  public synchronized void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+  }
+
+
+  // ---- STATISTICS ----
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  public synchronized long getWeight() {
+    return totalWeight;
+  }
+
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return The ratio of lookups that found a cached document, or <code>0</code> if there were none.
+   */
+  public synchronized double getHitRate() {
+    long lookups = hitCount + missCount;
+    return (lookups == 0 ? 0.0 : (double) hitCount / lookups);
+  }
+
+}
@@ -0,0 +1,562 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A memo of the output values that {@link JsonPathActivity} invocations produced, keyed by
+ * a hash of the content of their input document and of everything in the configuration
+ * that the output values depend on (see {@link JsonPathActivityInvocation}), and shared by
+ * all JsonPath activities in the JVM - so that identical inputs, in later invocations or
+ * in later runs of a workflow, don't have to be parsed and evaluated again.
+ * <p>
+ * The memo has two tiers:
+ * <ul>
+ * <li>in memory - bounded by the total weight of its entries (the number of characters of
+ *     the output values), least recently used entries are evicted first;</li>
+ * <li>on disk (optional) - one file per entry in a local directory, bounded by the total size
+ *     of the files; entries found there are moved back into memory, and the files that were
+ *     least recently used are deleted first.</li>
+ * </ul>
+ * The files of the disk tier hold nothing but strings, in a plain format: a magic number,
+ * the number of output ports, then for each port its name, the type of its value (none,
+ * string or list) and the value - every string as its length in bytes (<code>-1</code> for
+ * <code>null</code>) followed by its UTF-8 bytes. Files that don't follow this format are
+ * deleted rather than read.
+ * Memoized output values are shared between invocations, so they must be treated as
+ * immutable.
+ * <p>
+ * Limits and the directory of the disk tier can be set with the system properties named by
+ * {@link #MAX_WEIGHT_PROPERTY}, {@link #DIRECTORY_PROPERTY} and {@link #MAX_DISK_SIZE_PROPERTY},
+ * or at runtime.
+ */
+public class JsonPathResultMemo
+{
+  /** System property with the maximum total weight of the memory tier (in characters of output values). */
+  public static final String MAX_WEIGHT_PROPERTY = "net.sf.taverna.t2.activities.jsonpath.resultMemo.maxWeight";
+
+  /** System property with the directory of the disk tier - the disk tier is not used if it isn't set. */
+  public static final String DIRECTORY_PROPERTY = "net.sf.taverna.t2.activities.jsonpath.resultMemo.directory";
+
+  /** System property with the maximum total size of the disk tier (in bytes). */
+  public static final String MAX_DISK_SIZE_PROPERTY = "net.sf.taverna.t2.activities.jsonpath.resultMemo.maxDiskSize";
+
+  public static final long DEFAULT_MAX_WEIGHT = 32L * 1024 * 1024;
+  public static final long DEFAULT_MAX_DISK_SIZE = 1024L * 1024 * 1024;
+
+  private static final String FILE_SUFFIX = ".memo";
+
+  // the format of the files of the disk tier
+  private static final int FILE_MAGIC = 0x4A504D31;  // "JPM1"
+  private static final byte NULL_VALUE = 0;
+  private static final byte STRING_VALUE = 1;
+  private static final byte LIST_VALUE = 2;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final Logger logger = Logger.getLogger(JsonPathResultMemo.class);
+
+
+  private static class Entry {
+    private final Map<String, Object> values;
+    private final long weight;
+
+    private Entry(Map<String, Object> values, long weight) {
+      this.values = values;
+      this.weight = weight;
+    }
+  }
+
+
+  // access-ordered, so that iteration starts from the least recently used entry
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private long maxWeight;
+  private long totalWeight;
+
+  // the disk tier has a lock of its own, so that file access doesn't hold up the memory tier
+  private final Object diskLock = new Object();
+  private File directory;
+  private long maxDiskSize;
+  private long diskSize = -1;  // not known until the directory is first used
+
+  private long memoryHitCount;
+  private long diskHitCount;
+  private long missCount;
+  private long evictionCount;
+
+
+  private static class Singleton {
+    private static JsonPathResultMemo instance = new JsonPathResultMemo(
+        Long.getLong(MAX_WEIGHT_PROPERTY, DEFAULT_MAX_WEIGHT),
+        (System.getProperty(DIRECTORY_PROPERTY) == null ? null : new File(System.getProperty(DIRECTORY_PROPERTY))),
+        Long.getLong(MAX_DISK_SIZE_PROPERTY, DEFAULT_MAX_DISK_SIZE));
+  }
+
+  /**
+   * @return The memo shared by all JsonPath activities in this JVM.
+   */
+  public static JsonPathResultMemo getInstance() {
+    return Singleton.instance;
+  }
+
+
+  JsonPathResultMemo(long maxWeight, File directory, long maxDiskSize) {
+    this.maxWeight = maxWeight;
+    this.directory = directory;
+    this.maxDiskSize = maxDiskSize;
+  }
+
+
+  /**
+   * @param key The hash of the input document and the configuration (a string of hex digits).
+   * @return The memoized output values (by port name), or <code>null</code> if there are none.
+   */
+  public Map<String, Object> get(String key)
+  {
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        memoryHitCount++;
+        return entry.values;
+      }
+    }
+
+    Map<String, Object> values = readFromDisk(key);
+    synchronized (this) {
+      if (values == null) {
+        missCount++;
+      }
+      else {
+        diskHitCount++;
+        putInMemory(key, values);
+      }
+    }
+    return values;
+  }
+
+
+  /**
+   * Memoizes the output values produced for the given key - in memory, and on disk if the
+   * disk tier is used.
+   *
+   * @param values The output values by port name: strings, lists of strings or <code>null</code>s.
+   */
+  public void put(String key, Map<String, Object> values)
+  {
+    synchronized (this) {
+      putInMemory(key, values);
+    }
+    writeToDisk(key, values);
+  }
+
+
+  /**
+   * Removes all entries from the memory tier (the disk tier is left as it is).
+   */
+  public synchronized void clear() {
+    entries.clear();
+    totalWeight = 0;
+  }
+
+
+  private void putInMemory(String key, Map<String, Object> values)
+  {
+    long weight = weigh(values);
+    if (weight > maxWeight) {
+      // would evict everything else and still not fit
+      return;
+    }
+
+    Entry previous = entries.put(key, new Entry(values, weight));
+    if (previous != null) {
+      totalWeight -= previous.weight;
+    }
+    totalWeight += weight;
+
+    evictToFit();
+  }
+
+
+  private void evictToFit()
+  {
+    Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+    while (totalWeight > maxWeight && leastRecentlyUsed.hasNext()) {
+      totalWeight -= leastRecentlyUsed.next().getValue().weight;
+      leastRecentlyUsed.remove();
+      evictionCount++;
+    }
+  }
+
+
+  /**
+   * @return The number of characters of the given output values.
+   */
+  private static long weigh(Map<String, Object> values)
+  {
+    long weight = 0;
+    for (Object value : values.values()) {
+      if (value instanceof String) {
+        weight += ((String) value).length();
+      }
+      else if (value instanceof List) {
+        for (Object item : (List<?>) value) {
+          weight += (item == null ? 0 : item.toString().length());
+        }
+      }
+    }
+    return weight;
+  }
+
+
+  // ---- DISK TIER ----
+
+  private Map<String, Object> readFromDisk(String key)
+  {
+    synchronized (diskLock) {
+      if (directory == null) {
+        return null;
+      }
+
+      File file = new File(directory, key + FILE_SUFFIX);
+      if (!file.isFile()) {
+        return null;
+      }
+
+      DataInputStream in = null;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        Map<String, Object> values = readValues(in, file.length());
+        // keep track of when it was last used - the least recently used files are deleted first
+        file.setLastModified(System.currentTimeMillis());
+        return values;
+      }
+      catch (IOException e) {
+        logger.warn("Could not read memoized JsonPath results from " + file, e);
+      }
+      finally {
+        closeQuietly(in);
+      }
+
+      // corrupt or unreadable - don't try again
+      deleteFile(file);
+      return null;
+    }
+  }
+
+
+  private void writeToDisk(String key, Map<String, Object> values)
+  {
+    synchronized (diskLock) {
+      if (directory == null || (!directory.isDirectory() && !directory.mkdirs())) {
+        return;
+      }
+      if (diskSize < 0) {
+        diskSize = 0;
+        for (File file : listFiles()) {
+          diskSize += file.length();
+        }
+      }
+
+      File file = new File(directory, key + FILE_SUFFIX);
+      if (file.isFile()) {
+        return;
+      }
+
+      // written to a temporary file first, so that other processes sharing the directory never see a partial entry
+      File temporaryFile = new File(directory, key + FILE_SUFFIX + ".tmp");
+      DataOutputStream out = null;
+      try {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+        writeValues(values, out);
+        out.close();
+        out = null;
+        if (!temporaryFile.renameTo(file)) {
+          deleteFile(temporaryFile);
+          return;
+        }
+        diskSize += file.length();
+      }
+      catch (IOException e) {
+        logger.warn("Could not write memoized JsonPath results to " + file, e);
+        closeQuietly(out);
+        deleteFile(temporaryFile);
+        return;
+      }
+
+      evictFromDisk();
+    }
+  }
+
+
+  /**
+   * Reads output values in the format of the disk tier.
+   *
+   * @param length The number of bytes that can be read at most - no string is longer.
+   */
+  static Map<String, Object> readValues(DataInputStream in, long length) throws IOException
+  {
+    if (in.readInt() != FILE_MAGIC) {
+      throw new IOException("Not a memo file");
+    }
+
+    int count = readCount(in, length);
+    Map<String, Object> values = new HashMap<String, Object>();
+    for (int i = 0; i < count; i++) {
+      String port = readString(in, length);
+      byte type = in.readByte();
+      if (type == NULL_VALUE) {
+        values.put(port, null);
+      }
+      else if (type == STRING_VALUE) {
+        values.put(port, readString(in, length));
+      }
+      else if (type == LIST_VALUE) {
+        int size = readCount(in, length);
+        List<String> items = new ArrayList<String>(size);
+        for (int j = 0; j < size; j++) {
+          items.add(readString(in, length));
+        }
+        values.put(port, items);
+      }
+      else {
+        throw new IOException("Unknown type of value: " + type);
+      }
+    }
+    return values;
+  }
+
+
+  /**
+   * Writes output values in the format of the disk tier.
+   */
+  static void writeValues(Map<String, Object> values, DataOutputStream out) throws IOException
+  {
+    out.writeInt(FILE_MAGIC);
+    out.writeInt(values.size());
+    for (Map.Entry<String, Object> value : values.entrySet()) {
+      writeString(value.getKey(), out);
+      if (value.getValue() == null) {
+        out.writeByte(NULL_VALUE);
+      }
+      else if (value.getValue() instanceof String) {
+        out.writeByte(STRING_VALUE);
+        writeString((String) value.getValue(), out);
+      }
+      else if (value.getValue() instanceof List) {
+        List<?> items = (List<?>) value.getValue();
+        out.writeByte(LIST_VALUE);
+        out.writeInt(items.size());
+        for (Object item : items) {
+          writeString((String) item, out);
+        }
+      }
+      else {
+        throw new IOException("Can't write value of type " + value.getValue().getClass().getName());
+      }
+    }
+  }
+
+
+  private static int readCount(DataInputStream in, long length) throws IOException
+  {
+    int count = in.readInt();
+    if (count < 0 || count > length) {
+      throw new IOException("Invalid count: " + count);
+    }
+    return count;
+  }
+
+
+  private static String readString(DataInputStream in, long length) throws IOException
+  {
+    int byteCount = in.readInt();
+    if (byteCount == -1) {
+      return null;
+    }
+    if (byteCount < 0 || byteCount > length) {
+      throw new IOException("Invalid string length: " + byteCount);
+    }
+    byte[] bytes = new byte[byteCount];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+
+  // not DataOutputStream.writeUTF(), which only takes strings of up to 64K bytes
+  private static void writeString(String string, DataOutputStream out) throws IOException
+  {
+    if (string == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = string.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+
+  private void evictFromDisk()
+  {
+    if (diskSize <= maxDiskSize) {
+      return;
+    }
+
+    File[] files = listFiles();
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File file1, File file2) {
+        long lastModified1 = file1.lastModified();
+        long lastModified2 = file2.lastModified();
+        return (lastModified1 < lastModified2 ? -1 : (lastModified1 == lastModified2 ? 0 : 1));
+      }
+    });
+
+    for (int i = 0; i < files.length && diskSize > maxDiskSize; i++) {
+      long length = files[i].length();
+      if (deleteFile(files[i])) {
+        diskSize -= length;
+      }
+    }
+  }
+
+
+  private File[] listFiles()
+  {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+
+    int count = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(FILE_SUFFIX)) {
+        files[count++] = file;
+      }
+    }
+    return Arrays.copyOf(files, count);
+  }
+
+
+  private static boolean deleteFile(File file)
+  {
+    if (!file.delete() && file.exists()) {
+      logger.warn("Could not delete " + file);
+      return false;
+    }
+    return true;
+  }
+
+
+  private static void closeQuietly(Closeable closeable)
+  {
+    if (closeable != null) {
+      try {
+        closeable.close();
+      }
+      catch (IOException e) {
+        // nothing useful can be done about this
+      }
+    }
+  }
+
+
+  // ---- LIMITS ----
+
+  public synchronized long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public synchronized void setMaxWeight(long maxWeight) {
+    this.maxWeight = maxWeight;
+    evictToFit();
+  }
+
+  /**
+   * @return The directory of the disk tier, or <code>null</code> if the disk tier is not used.
+   */
+  public File getDirectory() {
+    synchronized (diskLock) {
+      return directory;
+    }
+  }
+
+  /**
+   * @param directory The directory of the disk tier (created if need be), or <code>null</code> not to use the disk tier.
+   */
+  public void setDirectory(File directory) {
+    synchronized (diskLock) {
+      this.directory = directory;
+      this.diskSize = -1;
+    }
+  }
+
+  public long getMaxDiskSize() {
+    synchronized (diskLock) {
+      return maxDiskSize;
+    }
+  }
+
+  public void setMaxDiskSize(long maxDiskSize) {
+    synchronized (diskLock) {
+      this.maxDiskSize = maxDiskSize;
+      if (directory != null && diskSize >= 0) {
+        evictFromDisk();
+      }
+    }
+  }
+
+
+  // ---- STATISTICS ----
+
+  public synchronized int getSize() {
+    return entries.size();
+  }
+
+  public synchronized long getWeight() {
+    return totalWeight;
+  }
+
+  public synchronized long getMemoryHitCount() {
+    return memoryHitCount;
+  }
+
+  public synchronized long getDiskHitCount() {
+    return diskHitCount;
+  }
+
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return The ratio of lookups that found memoized results (in either tier), or <code>0</code> if there were none.
+   */
+  public synchronized double getHitRate() {
+    long hits = memoryHitCount + diskHitCount;
+    long lookups = hits + missCount;
+    return (lookups == 0 ? 0.0 : (double) hits / lookups);
+  }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.util.List;
+
+import com.jayway.jsonpath.internal.filter.ArrayIndexFilter;
+import com.jayway.jsonpath.internal.filter.FieldFilter;
+import com.jayway.jsonpath.internal.filter.PathTokenFilter;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Compiled form of a "definite" JSONPath expression - one that consists of property names and
+ * array indices only, e.g. <code>$.response.data.user.id</code> or <code>$.items[0].name</code>,
+ * and therefore selects at most one value.
+ * <p>
+ * json-path applies such an expression as a chain of interpreted filters, each of which checks
+ * the kind of filter it is, the "array context" and the type of its input. The accessor walks
+ * the document with direct key and index lookups instead: the steps are held in two flat arrays
+ * (the property name or the index of each step), and are applied in a single loop that allocates
+ * nothing.
+ * <p>
+ * The accessor follows the filters of json-path 0.8.1 for the cases where every step finds a
+ * value, and leaves every other case to them (see {@link #MISSING}):
+ * <ul>
+ * <li>a property name (a {@link FieldFilter}) applied to a list gives <code>null</code> - or, in
+ *     array context (after an index), the values of the property in the maps of the list - so
+ *     lists are left to the filter, and the array context makes no difference to the rest;</li>
+ * <li>applied to a map, it gives the value of the property, as looked up in the <code>Map</code> of
+ *     the JSON provider - or fails, if the map has no such property;</li>
+ * <li>an index (an {@link ArrayIndexFilter}) applied to a list gives its element at that index -
+ *     or an empty list, if the list is empty, and fails if the index is out of range;</li>
+ * <li>anything else (e.g. a property name applied to a string) fails.</li>
+ * </ul>
+ * A step that finds <code>null</code> is left to the filters as well, whether the property is
+ * missing or <code>null</code>.
+ * <p>
+ * Instances are immutable and can be shared by any number of threads.
+ */
+final class JSONPathDefiniteAccessor {
+
+	/**
+	 * Returned by {@link #read(Object, JsonProvider)} when a step doesn't find a value, and the
+	 * expression must be applied as usual.
+	 */
+	static final Object MISSING = new Object();
+
+	/**
+	 * For each step, the property name - or <code>null</code>, if the step is an array index.
+	 */
+	private final String[] names;
+
+	/**
+	 * For each step, the array index - or <code>-1</code>, if the step is a property name.
+	 */
+	private final int[] indices;
+
+	/**
+	 * Compiles the given steps, if they are all property names or array indices.
+	 *
+	 * @param steps  The steps following the root, or <code>null</code> if the expression is not made of simple steps.
+	 * @param pathTokenFilters  The interpreted filters of the expression (including the root.)
+	 * @return  The accessor, or <code>null</code> if the expression is not definite.
+	 */
+	static JSONPathDefiniteAccessor compile(final JSONPathStep[] steps, final PathTokenFilter[] pathTokenFilters) {
+		if (steps == null || steps.length == 0 || pathTokenFilters.length != steps.length + 1) {
+			return null;
+		}
+
+		final String[] names = new String[steps.length];
+		final int[] indices = new int[steps.length];
+
+		for (int i = 0; i < steps.length; i++) {
+			// the rules above are those of these filters only
+			final PathTokenFilter pathTokenFilter = pathTokenFilters[i + 1];
+			switch (steps[i].getKind()) {
+				case FIELD:
+					if (!(pathTokenFilter instanceof FieldFilter)) {
+						return null;
+					}
+					names[i] = steps[i].getName();
+					indices[i] = -1;
+					break;
+				case INDEX:
+					if (!(pathTokenFilter instanceof ArrayIndexFilter)) {
+						return null;
+					}
+					indices[i] = steps[i].getIndex();
+					break;
+				default:
+					return null;
+			}
+		}
+
+		return new JSONPathDefiniteAccessor(names, indices);
+	}
+
+	private JSONPathDefiniteAccessor(final String[] names, final int[] indices) {
+		super();
+
+		this.names = names;
+		this.indices = indices;
+	}
+
+	/**
+	 * Applies the expression to the given value.
+	 *
+	 * @param value  The JSON value (a container.)
+	 * @param jsonProvider  The JSON provider.
+	 * @return  The selected value, or {@link #MISSING} if a step doesn't find a value - the caller
+	 *          should apply the expression as usual.
+	 */
+	Object read(final Object value, final JsonProvider jsonProvider) {
+		Object current = value;
+		for (int i = 0; i < names.length; i++) {
+			final String name = names[i];
+			if (name != null) {
+				// lists first, as json-path checks them first
+				if (jsonProvider.isList(current) || !jsonProvider.isMap(current)) {
+					return MISSING;
+				}
+				current = jsonProvider.toMap(current).get(name);
+			} else {
+				if (!jsonProvider.isList(current)) {
+					return MISSING;
+				}
+				final List<Object> list = jsonProvider.toList(current);
+				final int index = indices[i];
+				current = (index < list.size() ? list.get(index) : null);
+			}
+
+			if (current == null) {
+				// missing, out of range or null - whatever json-path makes of it
+				return MISSING;
+			}
+		}
+
+		return current;
+	}
+
+}
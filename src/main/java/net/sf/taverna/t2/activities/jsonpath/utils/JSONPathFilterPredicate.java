@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jayway.jsonpath.internal.filter.ArrayEvalFilter;
+import com.jayway.jsonpath.internal.filter.PathTokenFilter;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Compiled form of a filter expression that compares a property of the elements of a list with
+ * a literal, e.g. <code>[?(@.price &lt; 10)]</code> or <code>[?(@.type == 'book')]</code>.
+ * <p>
+ * json-path interprets such a filter (an {@link ArrayEvalFilter}) for every list it is applied
+ * to, and converts the literal to the type of the property for every element. The compiled
+ * predicate parses the condition and converts the literal once, when it is created, following
+ * the rules of json-path 0.8.1 to the letter:
+ * <ul>
+ * <li>the condition is the fragment with <code>['</code> replaced by <code>.</code> and
+ *     <code>']</code> removed, less its first five and last two characters (<code>[?(@.</code>
+ *     and <code>)]</code>);</li>
+ * <li>it is split into property name, operator and literal by {@link #CONDITION_PATTERN} - the
+ *     operator is any run of <code>=</code>, <code>&lt;</code> and <code>&gt;</code> (so there is
+ *     no <code>!=</code>: <code>@.a != 1</code> compares property <code>"a !"</code> by
+ *     <code>=</code>), and the literal loses its first and last character if it starts with a
+ *     quote;</li>
+ * <li>an element matches if it is a map that has the property, with a value that is not
+ *     <code>null</code> and not a container, and the comparison holds for it;</li>
+ * <li>a {@link Long} value is compared with <code>Long.parseLong</code> of the (trimmed)
+ *     literal, an {@link Integer} value with <code>Integer.parseInt</code>, a {@link Double}
+ *     value with <code>Double.parseDouble</code> - by <code>==</code>, <code>!=</code> (also
+ *     <code>&lt;&gt;</code>), <code>&lt;</code>, <code>&lt;=</code>, <code>&gt;</code> and
+ *     <code>&gt;=</code> on the primitive values; if the literal can't be parsed so, the
+ *     interpreted filter fails with a {@link NumberFormatException};</li>
+ * <li>a {@link String} value is compared with the trimmed literal, less a leading and a trailing
+ *     quote, by <code>==</code> (equality) and <code>!=</code> / <code>&lt;&gt;</code> only - a
+ *     numeric literal is compared as text, and any other operator never holds;</li>
+ * <li>values of any other type (including booleans) never match.</li>
+ * </ul>
+ * The array context of the filter makes no difference. The predicate leaves lists to the
+ * interpreted filter whenever that would fail on them, so that it fails the same way.
+ * <p>
+ * Instances are immutable and can be shared by any number of threads.
+ */
+final class JSONPathFilterPredicate {
+
+	/**
+	 * The pattern that json-path splits conditions with.
+	 */
+	private static final Pattern CONDITION_PATTERN = Pattern.compile("(.*?)\\s?([=<>]+)\\s?(.*)");
+
+	// Comparisons, by operator.
+	private static final int NONE = 0;
+	private static final int EQ = 1;
+	private static final int NE = 2;
+	private static final int LT = 3;
+	private static final int LE = 4;
+	private static final int GT = 5;
+	private static final int GE = 6;
+
+	private final String field;
+
+	private final String operator;
+
+	private final int comparison;
+
+	/**
+	 * The literal, as passed to the comparison of json-path.
+	 */
+	private final String expected;
+
+	// The literal, as compared with values of each type - unless it can't be parsed as such.
+	private final boolean longExpectedValid;
+	private final long longExpected;
+	private final boolean intExpectedValid;
+	private final int intExpected;
+	private final boolean doubleExpectedValid;
+	private final double doubleExpected;
+	private final String stringExpected;
+
+	/**
+	 * Compiles the given filter, if it compares a property with a literal.
+	 *
+	 * @param fragment  The fragment of the path token.
+	 * @param pathTokenFilter  The interpreted filter of the fragment.
+	 * @return  The compiled predicate, or <code>null</code> if the filter is of another kind, or
+	 *          its condition is one that json-path rejects.
+	 */
+	static JSONPathFilterPredicate compile(final String fragment, final PathTokenFilter pathTokenFilter) {
+		if (fragment == null || !(pathTokenFilter instanceof ArrayEvalFilter)) {
+			return null;
+		}
+
+		try {
+			String condition = fragment;
+			if (condition.contains("['")) {
+				condition = condition.replace("['", ".").replace("']", "");
+			}
+			condition = condition.substring(5, condition.length() - 2);
+
+			final Matcher matcher = CONDITION_PATTERN.matcher(condition);
+			if (!matcher.matches()) {
+				return null;
+			}
+
+			String expected = matcher.group(3);
+			if (expected.startsWith("'")) {
+				expected = expected.substring(1, expected.length() - 1);
+			}
+			return new JSONPathFilterPredicate(matcher.group(1), matcher.group(2).trim(), expected);
+		} catch (IndexOutOfBoundsException e) {
+			// too short to be trimmed - the interpreted filter fails on it
+			return null;
+		}
+	}
+
+	private JSONPathFilterPredicate(final String field, final String operator, final String expected) {
+		super();
+
+		this.field = field;
+		this.operator = operator;
+		this.expected = expected;
+
+		if ("==".equals(operator)) {
+			comparison = EQ;
+		} else if ("!=".equals(operator) || "<>".equals(operator)) {
+			comparison = NE;
+		} else if ("<".equals(operator)) {
+			comparison = LT;
+		} else if ("<=".equals(operator)) {
+			comparison = LE;
+		} else if (">".equals(operator)) {
+			comparison = GT;
+		} else if (">=".equals(operator)) {
+			comparison = GE;
+		} else {
+			comparison = NONE;
+		}
+
+		final String trimmed = expected.trim();
+
+		boolean valid;
+		long longValue = 0;
+		try {
+			longValue = Long.parseLong(trimmed);
+			valid = true;
+		} catch (NumberFormatException e) {
+			valid = false;
+		}
+		longExpectedValid = valid;
+		longExpected = longValue;
+
+		int intValue = 0;
+		try {
+			intValue = Integer.parseInt(trimmed);
+			valid = true;
+		} catch (NumberFormatException e) {
+			valid = false;
+		}
+		intExpectedValid = valid;
+		intExpected = intValue;
+
+		double doubleValue = 0;
+		try {
+			doubleValue = Double.parseDouble(trimmed);
+			valid = true;
+		} catch (NumberFormatException e) {
+			valid = false;
+		}
+		doubleExpectedValid = valid;
+		doubleExpected = doubleValue;
+
+		String stringValue = trimmed;
+		if (stringValue.startsWith("'")) {
+			stringValue = stringValue.substring(1);
+		}
+		if (stringValue.endsWith("'")) {
+			stringValue = stringValue.substring(0, stringValue.length() - 1);
+		}
+		stringExpected = stringValue;
+	}
+
+	/**
+	 * Applies the predicate to the elements of the given list.
+	 *
+	 * @param value  The value that the filter is applied to.
+	 * @param jsonProvider  The JSON provider.
+	 * @return  The list of matching elements, or <code>null</code> if the value is not a list, or the
+	 *          interpreted filter would fail on one of its elements (the caller should apply the
+	 *          filter as usual.)
+	 */
+	Object filter(final Object value, final JsonProvider jsonProvider) {
+		if (!jsonProvider.isList(value)) {
+			return null;
+		}
+
+		final List<Object> result = jsonProvider.createList();
+		for (final Object element : jsonProvider.toList(value)) {
+			if (!jsonProvider.isMap(element)) {
+				continue;
+			}
+
+			// a missing property is no different from a null one
+			final Map<String, Object> map = jsonProvider.toMap(element);
+			final Object propertyValue = map.get(field);
+			if (propertyValue == null || jsonProvider.isContainer(propertyValue)) {
+				continue;
+			}
+
+			if (propertyValue instanceof Long) {
+				if (!longExpectedValid) {
+					return null;
+				}
+				final long actual = ((Long) propertyValue).longValue();
+				if (holds(actual < longExpected, actual == longExpected)) {
+					result.add(element);
+				}
+			} else if (propertyValue instanceof Integer) {
+				if (!intExpectedValid) {
+					return null;
+				}
+				final int actual = ((Integer) propertyValue).intValue();
+				if (holds(actual < intExpected, actual == intExpected)) {
+					result.add(element);
+				}
+			} else if (propertyValue instanceof Double) {
+				if (!doubleExpectedValid) {
+					return null;
+				}
+				if (holds(((Double) propertyValue).doubleValue(), doubleExpected)) {
+					result.add(element);
+				}
+			} else if (propertyValue instanceof String) {
+				if ((comparison == EQ || comparison == NE) && (comparison == EQ) == propertyValue.equals(stringExpected)) {
+					result.add(element);
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return  Whether the comparison holds for integers that compare as given.
+	 */
+	private boolean holds(final boolean less, final boolean equal) {
+		switch (comparison) {
+			case EQ:
+				return equal;
+			case NE:
+				return !equal;
+			case LT:
+				return less;
+			case LE:
+				return less || equal;
+			case GT:
+				return !less && !equal;
+			case GE:
+				return !less;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @return  Whether the comparison holds for the given doubles (by primitive comparison, as json-path does.)
+	 */
+	private boolean holds(final double actual, final double expected) {
+		switch (comparison) {
+			case EQ:
+				return actual == expected;
+			case NE:
+				return actual != expected;
+			case LT:
+				return actual < expected;
+			case LE:
+				return actual <= expected;
+			case GT:
+				return actual > expected;
+			case GE:
+				return actual >= expected;
+			default:
+				return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[?(@." + field + " " + operator + " " + expected + ")]";
+	}
+
+}
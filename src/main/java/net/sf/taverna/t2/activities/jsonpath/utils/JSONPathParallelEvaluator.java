@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import com.jayway.jsonpath.internal.filter.PathTokenFilter;
+import com.jayway.jsonpath.internal.filter.ScanFilter;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Fork/join support for evaluating JSONPath expressions over large documents.
+ * <p>
+ * Two kinds of work are spread over the threads of a shared {@link ForkJoinPool}:
+ * <ul>
+ * <li>the filters that follow a large list, if each of them is applied to the elements of the
+ *     list independently (see {@link #isDecomposable(String, boolean)}) - the list is split into
+ *     chunks, the filters are applied to each chunk and the results are concatenated in order;</li>
+ * <li>deep scans (<code>..</code>) - the subtrees of large containers are scanned in parallel
+ *     and the results are concatenated in document order.</li>
+ * </ul>
+ * Both give exactly the results of the sequential evaluation.
+ * <p>
+ * The split of deep scans follows the deep scan filter of json-path 0.8.1 ({@link ScanFilter}),
+ * which walks a container as follows:
+ * <ul>
+ * <li>a map is added to the result, followed by the results of scanning those of its values
+ *     that are containers (in the order of the map);</li>
+ * <li>a list is <em>not</em> added to the result - only the results of scanning those of its
+ *     elements that are containers are (in order);</li>
+ * <li>values that are not containers are skipped, whatever the array context.</li>
+ * </ul>
+ * So the scan of a container is the container itself, if it is a map, followed by the scans of
+ * its child containers - which can be computed independently of each other.
+ */
+final class JSONPathParallelEvaluator {
+
+	/**
+	 * The fragment of a deep scan.
+	 */
+	static final String SCAN_FRAGMENT = "..";
+
+	/**
+	 * Holder of the pool that all parallel evaluations share, created the first time it is needed.
+	 */
+	private static class Pool {
+		private static final ForkJoinPool instance = new ForkJoinPool();
+	}
+
+	/**
+	 * How deep below the scanned value large containers are looked for, before a deep scan is parallelized.
+	 */
+	private static final int LARGE_CONTAINER_DEPTH = 3;
+
+	/**
+	 * Returns whether the filter of the given fragment can be applied to the chunks of a list
+	 * separately, with the concatenation of the results being the result for the whole list.
+	 * <p>
+	 * That is the case for wildcards and filter expressions (which select elements of the list),
+	 * and for field names in array context (which are looked up in each element of the list.)
+	 * It is not the case for indices and slices, which depend on the positions of the elements,
+	 * nor for deep scans, which may include the list itself in their result.
+	 *
+	 * @param fragment  The fragment of a path token.
+	 * @param arrayContext  Whether the filter is applied in array context.
+	 * @return  <code>true</code> if the filter is element-wise; <code>false</code> otherwise.
+	 */
+	static boolean isDecomposable(final String fragment, final boolean arrayContext) {
+		if (fragment.startsWith("[?(")) {
+			return true;
+		}
+
+		final JSONPathStep step = JSONPathStep.parse(fragment, arrayContext);
+		if (step == null) {
+			return false;
+		}
+
+		switch (step.getKind()) {
+			case WILDCARD:
+				return true;
+			case FIELD:
+				return arrayContext;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Applies the given deep scan filter to <code>container</code>, scanning the subtrees of containers
+	 * with at least <code>threshold</code> children in parallel.
+	 *
+	 * @param scanFilter  The filter of a deep scan, applied outside array context.
+	 * @param container  The value to scan.
+	 * @param jsonProvider  The JSON provider.
+	 * @param threshold  The number of children above which the children of a container are scanned in parallel.
+	 * @return  The result of the scan, or <code>null</code> if it can't be parallelized (the caller should apply the filter as usual.)
+	 */
+	static Object scan(final PathTokenFilter scanFilter, final Object container, final JsonProvider jsonProvider, final int threshold) {
+		if (!(scanFilter instanceof ScanFilter)) {
+			// not the filter whose walk is described above
+			return null;
+		}
+
+		if (!jsonProvider.isContainer(container) || !hasLargeContainer(jsonProvider, container, threshold, LARGE_CONTAINER_DEPTH)) {
+			// nothing worth splitting near the top of the document
+			return null;
+		}
+
+		final List<Object> result = jsonProvider.createList();
+		result.addAll(invoke(new ScanTask(scanFilter, container, jsonProvider, threshold)));
+		return result;
+	}
+
+	/**
+	 * Runs the given tasks in the shared pool (joining it, when called from one of its threads), and waits for all of them.
+	 */
+	static void invokeAll(final Collection<? extends ForkJoinTask<?>> tasks) {
+		if (ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(tasks);
+		} else {
+			Pool.instance.invoke(new RecursiveAction() {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					ForkJoinTask.invokeAll(tasks);
+				}
+
+			});
+		}
+	}
+
+	/**
+	 * @return  The number of chunks to split <code>size</code> elements into, given the parallel <code>threshold</code>.
+	 */
+	static int chunkCount(final int size, final int threshold) {
+		// a few chunks per thread, so that uneven chunks even out
+		return Math.max(1, Math.min((size + threshold - 1) / threshold, 4 * Pool.instance.getParallelism()));
+	}
+
+	private static <T> T invoke(final ForkJoinTask<T> task) {
+		if (ForkJoinTask.inForkJoinPool()) {
+			return task.invoke();
+		}
+		return Pool.instance.invoke(task);
+	}
+
+	/**
+	 * Returns whether <code>container</code>, or any container below it (down to the given
+	 * <code>depth</code>), has at least <code>threshold</code> children.
+	 */
+	private static boolean hasLargeContainer(final JsonProvider jsonProvider, final Object container, final int threshold, final int depth) {
+		if (childCount(jsonProvider, container) >= threshold) {
+			return true;
+		}
+
+		if (depth > 0) {
+			for (final Object child : children(jsonProvider, container)) {
+				if (jsonProvider.isContainer(child) && hasLargeContainer(jsonProvider, child, threshold, depth - 1)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static int childCount(final JsonProvider jsonProvider, final Object container) {
+		return (jsonProvider.isMap(container) ? jsonProvider.toMap(container).size() : jsonProvider.toList(container).size());
+	}
+
+	private static Collection<Object> children(final JsonProvider jsonProvider, final Object container) {
+		if (jsonProvider.isMap(container)) {
+			return jsonProvider.toMap(container).values();
+		}
+		return jsonProvider.toList(container);
+	}
+
+	private static List<Object> sequentialScan(final PathTokenFilter scanFilter, final Object container, final JsonProvider jsonProvider) {
+		return jsonProvider.toList(scanFilter.filter(container, jsonProvider, JSONPathUtils.getContextFilters(), false));
+	}
+
+	/**
+	 * Deep scan of a container whose children are scanned in parallel.
+	 */
+	private static final class ScanTask extends RecursiveTask<List<Object>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final PathTokenFilter scanFilter;
+
+		private final Object container;
+
+		private final JsonProvider jsonProvider;
+
+		private final int threshold;
+
+		private ScanTask(final PathTokenFilter scanFilter, final Object container, final JsonProvider jsonProvider, final int threshold) {
+			this.scanFilter = scanFilter;
+			this.container = container;
+			this.jsonProvider = jsonProvider;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected List<Object> compute() {
+			// Large child containers get their own tasks; runs of small ones are scanned in chunks.
+			final List<ForkJoinTask<List<Object>>> subtasks = new ArrayList<ForkJoinTask<List<Object>>>();
+			List<Object> chunk = new ArrayList<Object>();
+
+			for (final Object child : children(jsonProvider, container)) {
+				if (!jsonProvider.isContainer(child)) {
+					continue;
+				}
+
+				if (childCount(jsonProvider, child) >= threshold) {
+					if (!chunk.isEmpty()) {
+						subtasks.add(new ChunkScanTask(scanFilter, chunk, jsonProvider));
+						chunk = new ArrayList<Object>();
+					}
+					subtasks.add(new ScanTask(scanFilter, child, jsonProvider, threshold));
+				} else {
+					chunk.add(child);
+					if (chunk.size() >= threshold) {
+						subtasks.add(new ChunkScanTask(scanFilter, chunk, jsonProvider));
+						chunk = new ArrayList<Object>();
+					}
+				}
+			}
+			if (!chunk.isEmpty()) {
+				subtasks.add(new ChunkScanTask(scanFilter, chunk, jsonProvider));
+			}
+
+			ForkJoinTask.invokeAll(subtasks);
+
+			final List<Object> result = new ArrayList<Object>();
+			if (jsonProvider.isMap(container)) {
+				// maps are part of the scan, lists aren't
+				result.add(container);
+			}
+			for (final ForkJoinTask<List<Object>> subtask : subtasks) {
+				result.addAll(subtask.join());
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * Sequential deep scans of a run of sibling containers.
+	 */
+	private static final class ChunkScanTask extends RecursiveTask<List<Object>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final PathTokenFilter scanFilter;
+
+		private final List<Object> containers;
+
+		private final JsonProvider jsonProvider;
+
+		private ChunkScanTask(final PathTokenFilter scanFilter, final List<Object> containers, final JsonProvider jsonProvider) {
+			this.scanFilter = scanFilter;
+			this.containers = containers;
+			this.jsonProvider = jsonProvider;
+		}
+
+		@Override
+		protected List<Object> compute() {
+			final List<Object> result = new ArrayList<Object>();
+			for (final Object container : containers) {
+				result.addAll(sequentialScan(scanFilter, container, jsonProvider));
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * Sole constructor.
+	 */
+	private JSONPathParallelEvaluator() {
+		super();
+	}
+
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.jayway.jsonpath.InvalidPathException;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.internal.PathToken;
+import com.jayway.jsonpath.internal.PathTokenizer;
+import com.jayway.jsonpath.internal.filter.PathTokenFilter;
+
+/**
+ * Pre-compiled form of a JSONPath expression (a "query plan").
+ * <p>
+ * Compiling the expression, tokenizing its path and resolving the chain of {@link PathTokenFilter}s
+ * is done once, when the plan is created. Instances are immutable and can therefore be shared by
+ * any number of threads and applied to any number of JSON values.
+ *
+ * @see JSONPathUtils#read(JSONPathQueryPlan, Object)
+ */
+public final class JSONPathQueryPlan {
+
+	/**
+	 * Maximum number of fragments of a streamable expression (the root and 63 steps), so that
+	 * the steps a path has reached can be tracked as the bits of a <code>long</code>.
+	 */
+	static final int MAX_STEPS = 64;
+
+	/**
+	 * The original JSONPath expression.
+	 */
+	private final String expression;
+
+	/**
+	 * The compiled JSONPath expression.
+	 */
+	private final JsonPath jsonPath;
+
+	/**
+	 * The resolved filter chain, in the order in which the filters must be applied.
+	 */
+	final PathTokenFilter[] pathTokenFilters;
+
+	/**
+	 * For each filter in {@link #pathTokenFilters}, the path fragment it was created from.
+	 */
+	final String[] fragments;
+
+	/**
+	 * For each filter in {@link #pathTokenFilters}, whether it is applied in "array context"
+	 * (i.e. whether any of the preceding filters is an array filter.)
+	 */
+	final boolean[] arrayContexts;
+
+	/**
+	 * For each filter in {@link #pathTokenFilters}, its compiled predicate (or <code>null</code>,
+	 * if it is not a filter expression that can be compiled.)
+	 */
+	final JSONPathFilterPredicate[] predicates;
+
+	/**
+	 * The steps of the expression following the root, or <code>null</code> if the expression
+	 * contains anything other than simple steps (filters, slices, etc.)
+	 */
+	final JSONPathStep[] steps;
+
+	/**
+	 * The longest prefix of the expression (following the root) that consists of simple steps -
+	 * all of {@link #steps}, if the expression is streamable.
+	 */
+	final JSONPathStep[] prefixSteps;
+
+	/**
+	 * The compiled accessor, or <code>null</code> if the expression is not {@link #isDefinite() definite}.
+	 */
+	final JSONPathDefiniteAccessor definiteAccessor;
+
+	/**
+	 * Compiles the given JSONPath <code>expression</code> into a query plan.
+	 *
+	 * @param expression  The JSONPath expression.
+	 * @return  The query plan.
+	 * @throws IllegalArgumentException  If <code>expression == null</code>.
+	 * @throws InvalidPathException  If the expression is invalid / ill-formed.
+	 */
+	public static final JSONPathQueryPlan compile(final String expression) throws IllegalArgumentException, InvalidPathException {
+		if (expression == null) {
+			throw new IllegalArgumentException(new NullPointerException("expression"));
+		}
+
+		return compile(JsonPath.compile(expression));
+	}
+
+	/**
+	 * Creates a query plan for the given (already compiled) <code>jsonPath</code>.
+	 *
+	 * @param jsonPath  The JSONPath expression.
+	 * @return  The query plan.
+	 * @throws IllegalArgumentException  If <code>jsonPath == null</code>.
+	 */
+	public static final JSONPathQueryPlan compile(final JsonPath jsonPath) throws IllegalArgumentException {
+		if (jsonPath == null) {
+			throw new IllegalArgumentException(new NullPointerException("jsonPath"));
+		}
+
+		return new JSONPathQueryPlan(jsonPath);
+	}
+
+	/**
+	 * Sole constructor.
+	 *
+	 * @param jsonPath  The JSONPath expression.
+	 */
+	private JSONPathQueryPlan(final JsonPath jsonPath) {
+		super();
+
+		this.expression = jsonPath.getPath();
+		this.jsonPath = jsonPath;
+
+		final List<PathTokenFilter> filters = new ArrayList<PathTokenFilter>();
+		final List<String> fragments = new ArrayList<String>();
+
+		for (final PathToken pathToken : new PathTokenizer(expression).getPathTokens()) {
+			if (pathToken != null) {
+				final PathTokenFilter pathTokenFilter = pathToken.getFilter();
+
+				if (pathTokenFilter != null) {
+					filters.add(pathTokenFilter);
+					fragments.add(pathToken.getFragment());
+				}
+			}
+		}
+
+		this.pathTokenFilters = filters.toArray(new PathTokenFilter[filters.size()]);
+		this.fragments = fragments.toArray(new String[fragments.size()]);
+		this.arrayContexts = new boolean[pathTokenFilters.length];
+
+		boolean arrayFilter = false;
+
+		for (int i = 0; i < pathTokenFilters.length; i++) {
+			arrayContexts[i] = arrayFilter;
+
+			arrayFilter = arrayFilter || pathTokenFilters[i].isArrayFilter();
+		}
+
+		this.predicates = new JSONPathFilterPredicate[pathTokenFilters.length];
+
+		for (int i = 0; i < pathTokenFilters.length; i++) {
+			predicates[i] = JSONPathFilterPredicate.compile(this.fragments[i], pathTokenFilters[i]);
+		}
+
+		this.prefixSteps = parseSteps(fragments, arrayContexts);
+		this.steps = (prefixSteps.length == fragments.size() - 1 ? prefixSteps : null);
+		this.definiteAccessor = JSONPathDefiniteAccessor.compile(steps, pathTokenFilters);
+	}
+
+	/**
+	 * Classifies the fragments of a tokenized expression as simple steps, as far as possible.
+	 * <p>
+	 * A deep scan only counts as a simple step if it is not applied in array context, and
+	 * is followed by property names only (as in <code>$..id</code> or <code>$.data..name.first</code>.)
+	 *
+	 * @return  The steps following the root, up to the first fragment that is not a simple step.
+	 */
+	private static JSONPathStep[] parseSteps(final List<String> fragments, final boolean[] arrayContexts) {
+		final List<JSONPathStep> result = new ArrayList<JSONPathStep>();
+
+		if (fragments.isEmpty() || !"$".equals(fragments.get(0))) {
+			return new JSONPathStep[0];
+		}
+
+		boolean scanned = false;
+
+		for (int i = 1; i < fragments.size() && i < MAX_STEPS; i++) {
+			final JSONPathStep step = JSONPathStep.parse(fragments.get(i), arrayContexts[i]);
+
+			if (step == null) {
+				break;
+			} else if (scanned && step.getKind() != JSONPathStep.Kind.FIELD) {
+				break;
+			} else if (step.getKind() == JSONPathStep.Kind.SCAN) {
+				if (step.isArrayContext()) {
+					break;
+				}
+				scanned = true;
+			}
+
+			result.add(step);
+		}
+
+		return result.toArray(new JSONPathStep[result.size()]);
+	}
+
+	/**
+	 * Returns the original JSONPath expression.
+	 *
+	 * @return  The JSONPath expression.
+	 */
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Returns the compiled JSONPath expression.
+	 *
+	 * @return  The compiled JSONPath expression.
+	 */
+	public JsonPath getJsonPath() {
+		return jsonPath;
+	}
+
+	/**
+	 * Returns the resolved filter chain of this plan.
+	 *
+	 * @return  An unmodifiable list of filters, in the order in which they are applied.
+	 */
+	public List<PathTokenFilter> getPathTokenFilters() {
+		return Collections.unmodifiableList(Arrays.asList(pathTokenFilters));
+	}
+
+	/**
+	 * Returns whether the expression consists of simple steps only (property names, array
+	 * indices, wildcards and deep scans for property names), and can therefore be evaluated
+	 * by streaming over its input.
+	 *
+	 * @return  <code>true</code> if the expression can be streamed; <code>false</code> otherwise.
+	 * @see JSONPathStreamingEvaluator
+	 */
+	public boolean isStreamable() {
+		return (steps != null);
+	}
+
+	/**
+	 * Returns whether the expression consists of property names and array indices only (e.g.
+	 * <code>$.response.data.user.id</code>), and is therefore applied by direct lookups rather
+	 * than by interpreting its filters.
+	 *
+	 * @return  <code>true</code> if the expression is definite; <code>false</code> otherwise.
+	 * @see JSONPathDefiniteAccessor
+	 */
+	public boolean isDefinite() {
+		return (definiteAccessor != null);
+	}
+
+	/**
+	 * Returns the simple steps of the expression that follow the root.
+	 *
+	 * @return  An unmodifiable list of steps, or <code>null</code> if the expression is not {@link #isStreamable() streamable}.
+	 */
+	public List<JSONPathStep> getSteps() {
+		return (steps == null ? null : Collections.unmodifiableList(Arrays.asList(steps)));
+	}
+
+	/**
+	 * Returns the number of deep scans (<code>..</code>) in the expression - each of them visits
+	 * the whole subtree of every value it is applied to.
+	 *
+	 * @return  The number of deep scans.
+	 */
+	public int getDeepScanCount() {
+		int count = 0;
+		for (int i = 0; i < fragments.length; i++) {
+			if (JSONPathParallelEvaluator.SCAN_FRAGMENT.equals(fragments[i])) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of wildcards (<code>*</code>, <code>[*]</code>) in the expression - each
+	 * of them selects all the children of every value it is applied to.
+	 *
+	 * @return  The number of wildcards.
+	 */
+	public int getWildcardCount() {
+		int count = 0;
+		for (int i = 0; i < fragments.length; i++) {
+			final JSONPathStep step = JSONPathStep.parse(fragments[i], arrayContexts[i]);
+			if (step != null && step.getKind() == JSONPathStep.Kind.WILDCARD) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of filter expressions (<code>[?(...)]</code>) in the expression that are
+	 * applied in array context - i.e. to all the values selected by a preceding deep scan, wildcard
+	 * or filter, rather than to a single array of the document.
+	 *
+	 * @return  The number of filter expressions applied in array context.
+	 */
+	public int getArrayContextFilterCount() {
+		int count = 0;
+		for (int i = 0; i < fragments.length; i++) {
+			if (fragments[i].startsWith("[?(") && arrayContexts[i]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+import com.jayway.jsonpath.internal.filter.PathTokenFilter;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * A named set of pre-compiled JSONPath expressions that are evaluated together against the same JSON value.
+ * <p>
+ * The filter chains of the expressions are merged into a tree, so that a path prefix shared by
+ * several expressions (e.g. <code>$.response.data</code> in <code>$.response.data.id</code> and
+ * <code>$.response.data.name</code>) is applied only once per evaluation. Definite expressions
+ * (property names and array indices only) are not part of the tree - they are applied by direct
+ * lookups instead, and only interpreted on their own where a lookup doesn't find a value.
+ * <p>
+ * Instances are immutable and can be shared by any number of threads.
+ */
+public final class JSONPathQuerySet {
+
+	/**
+	 * A node of the merged filter tree.
+	 */
+	private static final class Node {
+
+		private final PathTokenFilter pathTokenFilter;
+
+		private final boolean arrayContext;
+
+		/**
+		 * The compiled form of the filter, or <code>null</code>.
+		 */
+		private final JSONPathFilterPredicate predicate;
+
+		/**
+		 * Whether the filter is a deep scan, which can be parallelized.
+		 */
+		private final boolean scan;
+
+		/**
+		 * Whether the filter is applied to the elements of a list independently.
+		 */
+		private final boolean decomposable;
+
+		/**
+		 * Whether all filters below this node are {@link #decomposable}, so that they can be
+		 * applied to chunks of the value of this node (if it is a list) in parallel.
+		 */
+		private boolean splittable;
+
+		private final Map<String, Node> children = new LinkedHashMap<String, Node>();
+
+		/**
+		 * Names of the expressions whose filter chains end at this node.
+		 */
+		private final List<String> names = new ArrayList<String>();
+
+		private Node(final PathTokenFilter pathTokenFilter, final JSONPathFilterPredicate predicate, final String fragment, final boolean arrayContext) {
+			this.pathTokenFilter = pathTokenFilter;
+			this.predicate = predicate;
+			this.arrayContext = arrayContext;
+			this.scan = JSONPathParallelEvaluator.SCAN_FRAGMENT.equals(fragment);
+			this.decomposable = (fragment != null && JSONPathParallelEvaluator.isDecomposable(fragment, arrayContext));
+		}
+
+		/**
+		 * Applies the filter of this node to the given value - using its compiled predicate, where possible.
+		 */
+		private Object filter(final Object value, final JsonProvider jsonProvider) {
+			final Object result = (predicate == null ? null : predicate.filter(value, jsonProvider));
+			if (result != null) {
+				return result;
+			}
+			return pathTokenFilter.filter(value, jsonProvider, JSONPathUtils.getContextFilters(), arrayContext);
+		}
+
+		/**
+		 * Works out {@link #splittable} for this node and the nodes below it.
+		 *
+		 * @return  <code>true</code> if this node and all nodes below it are decomposable.
+		 */
+		private boolean computeSplittable() {
+			boolean childrenDecomposable = true;
+			for (final Node child : children.values()) {
+				childrenDecomposable = child.computeSplittable() && childrenDecomposable;
+			}
+
+			splittable = !children.isEmpty() && childrenDecomposable;
+			return decomposable && childrenDecomposable;
+		}
+
+		/**
+		 * Collects the names of the expressions whose filter chains end below this node.
+		 */
+		private void collectNamesBelow(final List<String> namesBelow) {
+			for (final Node child : children.values()) {
+				namesBelow.addAll(child.names);
+				child.collectNamesBelow(namesBelow);
+			}
+		}
+
+	}
+
+	/**
+	 * Default number of elements of a list (or children of a container, for deep scans) from which
+	 * on the filters that follow it are applied in parallel.
+	 */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 10000;
+
+	private final Map<String, JSONPathQueryPlan> queryPlans;
+
+	private final Node root = new Node(null, null, null, false);
+
+	/**
+	 * The {@link JSONPathQueryPlan#isDefinite() definite} query plans, by name.
+	 */
+	private final Map<String, JSONPathQueryPlan> definitePlans = new LinkedHashMap<String, JSONPathQueryPlan>();
+
+	/**
+	 * Creates a set of the given named query plans.
+	 *
+	 * @param queryPlans  The query plans, by name. The iteration order of the map is preserved.
+	 * @throws IllegalArgumentException  If <code>queryPlans == null</code> or it contains <code>null</code> plans.
+	 */
+	public JSONPathQuerySet(final Map<String, JSONPathQueryPlan> queryPlans) throws IllegalArgumentException {
+		super();
+
+		if (queryPlans == null) {
+			throw new IllegalArgumentException(new NullPointerException("queryPlans"));
+		}
+
+		this.queryPlans = Collections.unmodifiableMap(new LinkedHashMap<String, JSONPathQueryPlan>(queryPlans));
+
+		for (final Map.Entry<String, JSONPathQueryPlan> entry : this.queryPlans.entrySet()) {
+			final JSONPathQueryPlan queryPlan = entry.getValue();
+
+			if (queryPlan == null) {
+				throw new IllegalArgumentException(new NullPointerException(entry.getKey()));
+			}
+
+			if (queryPlan.isDefinite()) {
+				definitePlans.put(entry.getKey(), queryPlan);
+				continue;
+			}
+
+			// Identical fragments at identical positions resolve to identical filters (and array contexts), so they can be shared.
+			Node node = root;
+			for (int i = 0; i < queryPlan.pathTokenFilters.length; i++) {
+				Node child = node.children.get(queryPlan.fragments[i]);
+				if (child == null) {
+					child = new Node(queryPlan.pathTokenFilters[i], queryPlan.predicates[i], queryPlan.fragments[i], queryPlan.arrayContexts[i]);
+					node.children.put(queryPlan.fragments[i], child);
+				}
+				node = child;
+			}
+			node.names.add(entry.getKey());
+		}
+
+		root.computeSplittable();
+	}
+
+	/**
+	 * Returns the query plans in this set.
+	 *
+	 * @return  An unmodifiable map of the query plans, by name.
+	 */
+	public Map<String, JSONPathQueryPlan> getQueryPlans() {
+		return queryPlans;
+	}
+
+	/**
+	 * Returns the query plan with the given name.
+	 *
+	 * @param name  The name of the query plan.
+	 * @return  The query plan, or <code>null</code> if there is no plan with that name.
+	 */
+	public JSONPathQueryPlan getQueryPlan(final String name) {
+		return queryPlans.get(name);
+	}
+
+	/**
+	 * Applies all expressions in this set to the given <code>jsonValue</code> using the given <code>jsonProvider</code>.
+	 *
+	 * @param jsonProvider  The JSON provider.
+	 * @param jsonValue  The JSON value.
+	 * @return  The result of each expression, by name (in the order of {@link #getQueryPlans()}.)
+	 * @throws IllegalArgumentException  If <code>jsonProvider == null</code>, or <code>jsonValue</code> is not a container.
+	 * @see JSONPathUtils#read(JsonProvider, JSONPathQueryPlan, Object)
+	 */
+	public Map<String, Object> read(final JsonProvider jsonProvider, final Object jsonValue) throws IllegalArgumentException {
+		return read(jsonProvider, jsonValue, -1);
+	}
+
+	/**
+	 * Applies all expressions in this set to the given <code>jsonValue</code> using the given <code>jsonProvider</code>,
+	 * spreading the evaluation over several threads where the document is large enough.
+	 * <p>
+	 * Where a list with at least <code>parallelThreshold</code> elements is followed only by filters that
+	 * apply to its elements independently (field names, wildcards and filter expressions), the list is
+	 * split into chunks that are processed in parallel. Deep scans of containers with at least
+	 * <code>parallelThreshold</code> children are parallelized as well. The results, including the order
+	 * of the matching nodes, are the same as those of the sequential evaluation.
+	 *
+	 * @param jsonProvider  The JSON provider.
+	 * @param jsonValue  The JSON value.
+	 * @param parallelThreshold  The size of lists from which on they are processed in parallel; <code>0</code> or less for sequential evaluation.
+	 * @return  The result of each expression, by name (in the order of {@link #getQueryPlans()}.)
+	 * @throws IllegalArgumentException  If <code>jsonProvider == null</code>, or <code>jsonValue</code> is not a container.
+	 */
+	public Map<String, Object> read(final JsonProvider jsonProvider, final Object jsonValue, final int parallelThreshold) throws IllegalArgumentException {
+		if (jsonProvider == null) {
+			throw new IllegalArgumentException(new NullPointerException("jsonProvider"));
+		}
+
+		if (!jsonProvider.isContainer(jsonValue)) {
+			// For reasons unknown, JSONPath expressions can only be applied to lists or maps (referred to as "containers".)
+			throw new IllegalArgumentException("Invalid container object");
+		}
+
+		final Map<String, Object> results = new LinkedHashMap<String, Object>();
+		for (final String name : queryPlans.keySet()) {
+			results.put(name, null);
+		}
+
+		read(root, jsonValue, jsonProvider, parallelThreshold, results);
+
+		for (final Map.Entry<String, JSONPathQueryPlan> entry : definitePlans.entrySet()) {
+			Object result = entry.getValue().definiteAccessor.read(jsonValue, jsonProvider);
+			if (result == JSONPathDefiniteAccessor.MISSING) {
+				result = JSONPathUtils.interpret(jsonProvider, entry.getValue(), jsonValue);
+			}
+			results.put(entry.getKey(), result);
+		}
+
+		return results;
+	}
+
+	private static void read(final Node node, final Object value, final JsonProvider jsonProvider, final int parallelThreshold, final Map<String, Object> results) {
+		for (final String name : node.names) {
+			results.put(name, value);
+		}
+
+		if (parallelThreshold > 0 && node.splittable && jsonProvider.isList(value) && jsonProvider.toList(value).size() >= parallelThreshold) {
+			readInParallel(node, jsonProvider.toList(value), jsonProvider, parallelThreshold, results);
+			return;
+		}
+
+		for (final Node child : node.children.values()) {
+			Object childValue = null;
+			if (parallelThreshold > 0 && child.scan && !child.arrayContext) {
+				childValue = JSONPathParallelEvaluator.scan(child.pathTokenFilter, value, jsonProvider, parallelThreshold);
+			}
+			if (childValue == null) {
+				childValue = child.filter(value, jsonProvider);
+			}
+
+			read(child, childValue, jsonProvider, parallelThreshold, results);
+		}
+	}
+
+	/**
+	 * Applies the filters below <code>node</code> to chunks of its value in parallel, and concatenates the results.
+	 */
+	private static void readInParallel(final Node node, final List<Object> value, final JsonProvider jsonProvider, final int parallelThreshold, final Map<String, Object> results) {
+		final int size = value.size();
+		final int chunkCount = JSONPathParallelEvaluator.chunkCount(size, parallelThreshold);
+
+		final List<ChunkTask> chunks = new ArrayList<ChunkTask>(chunkCount);
+		for (int i = 0; i < chunkCount; i++) {
+			chunks.add(new ChunkTask(node, value.subList((int) ((long) size * i / chunkCount), (int) ((long) size * (i + 1) / chunkCount)), jsonProvider));
+		}
+
+		JSONPathParallelEvaluator.invokeAll(chunks);
+
+		final List<String> namesBelow = new ArrayList<String>();
+		node.collectNamesBelow(namesBelow);
+
+		final Map<String, Object> mergedResults = new HashMap<String, Object>();
+		for (final String name : namesBelow) {
+			final List<Object> merged = jsonProvider.createList();
+			for (final ChunkTask chunk : chunks) {
+				final Object chunkResult = chunk.join().get(name);
+				if (!jsonProvider.isList(chunkResult)) {
+					// not a list of nodes after all - can't be merged, so do it all again sequentially
+					for (final Node child : node.children.values()) {
+						read(child, child.filter(value, jsonProvider), jsonProvider, -1, results);
+					}
+					return;
+				}
+				merged.addAll(jsonProvider.toList(chunkResult));
+			}
+			mergedResults.put(name, merged);
+		}
+
+		results.putAll(mergedResults);
+	}
+
+	/**
+	 * Sequential evaluation of the filters below a node, for a chunk of the value of the node.
+	 */
+	private static final class ChunkTask extends RecursiveTask<Map<String, Object>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Node node;
+
+		private final List<Object> elements;
+
+		private final JsonProvider jsonProvider;
+
+		private ChunkTask(final Node node, final List<Object> elements, final JsonProvider jsonProvider) {
+			this.node = node;
+			this.elements = elements;
+			this.jsonProvider = jsonProvider;
+		}
+
+		@Override
+		protected Map<String, Object> compute() {
+			// the filters expect a list of the JSON provider, not a view of one
+			final List<Object> chunk = jsonProvider.createList();
+			chunk.addAll(elements);
+
+			final Map<String, Object> chunkResults = new HashMap<String, Object>();
+			for (final Node child : node.children.values()) {
+				read(child, child.filter(chunk, jsonProvider), jsonProvider, -1, chunkResults);
+			}
+			return chunkResults;
+		}
+
+	}
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single "simple" step of a JSONPath expression: a property name, an array index, a wildcard
+ * or a deep scan.
+ * <p>
+ * Expressions that consist of simple steps only (e.g. <code>$.results[*].id</code> or
+ * <code>$..id</code>) can be evaluated without looking at any part of the document that is
+ * not on the path - see {@link JSONPathStreamingEvaluator}.
+ */
+public final class JSONPathStep {
+
+	/**
+	 * Kinds of simple step.
+	 */
+	public static enum Kind {
+		/** Selects the named property of an object: <code>.name</code> or <code>['name']</code>. */
+		FIELD,
+		/** Selects the element at the given (non-negative) index of an array: <code>[n]</code>. */
+		INDEX,
+		/** Selects all properties of an object / elements of an array: <code>.*</code> or <code>[*]</code>. */
+		WILDCARD,
+		/** Selects the value and all containers nested in it, at any depth: <code>..</code> */
+		SCAN
+	}
+
+	private static final Pattern INDEX_PATTERN = Pattern.compile("\\[(\\d{1,9})\\]");
+
+	private static final Pattern QUOTED_FIELD_PATTERN = Pattern.compile("\\['([^']+)'\\]");
+
+	private static final Pattern FIELD_PATTERN = Pattern.compile("[^\\[\\]().*?@,:'\"\\s]+");
+
+	private final Kind kind;
+
+	private final String name;
+
+	private final int index;
+
+	private final boolean arrayContext;
+
+	/**
+	 * Parses a fragment of a tokenized JSONPath expression.
+	 *
+	 * @param fragment  The path fragment (e.g. <code>name</code>, <code>[0]</code> or <code>[*]</code>.)
+	 * @param arrayContext  Whether the step is applied in "array context" (i.e. after an array filter.)
+	 * @return  The step, or <code>null</code> if the fragment is not a simple step.
+	 */
+	static JSONPathStep parse(final String fragment, final boolean arrayContext) {
+		if (fragment == null) {
+			return null;
+		}
+
+		if (JSONPathParallelEvaluator.SCAN_FRAGMENT.equals(fragment)) {
+			return new JSONPathStep(Kind.SCAN, null, -1, arrayContext);
+		}
+
+		if ("*".equals(fragment) || "[*]".equals(fragment)) {
+			return new JSONPathStep(Kind.WILDCARD, null, -1, arrayContext);
+		}
+
+		Matcher matcher = INDEX_PATTERN.matcher(fragment);
+		if (matcher.matches()) {
+			return new JSONPathStep(Kind.INDEX, null, Integer.parseInt(matcher.group(1)), arrayContext);
+		}
+
+		matcher = QUOTED_FIELD_PATTERN.matcher(fragment);
+		if (matcher.matches()) {
+			return new JSONPathStep(Kind.FIELD, matcher.group(1), -1, arrayContext);
+		}
+
+		if (!"$".equals(fragment) && FIELD_PATTERN.matcher(fragment).matches()) {
+			return new JSONPathStep(Kind.FIELD, fragment, -1, arrayContext);
+		}
+
+		return null;
+	}
+
+	private JSONPathStep(final Kind kind, final String name, final int index, final boolean arrayContext) {
+		super();
+
+		this.kind = kind;
+		this.name = name;
+		this.index = index;
+		this.arrayContext = arrayContext;
+	}
+
+	/**
+	 * @return  The kind of this step.
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return  The property name, for {@link Kind#FIELD} steps; <code>null</code> otherwise.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return  The array index, for {@link Kind#INDEX} steps; <code>-1</code> otherwise.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return  Whether this step is applied in "array context" (i.e. after an array filter.)
+	 */
+	public boolean isArrayContext() {
+		return arrayContext;
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+			case FIELD:
+				return "['" + name + "']";
+			case INDEX:
+				return "[" + index + "]";
+			case SCAN:
+				return "..";
+			default:
+				return "[*]";
+		}
+	}
+
+}
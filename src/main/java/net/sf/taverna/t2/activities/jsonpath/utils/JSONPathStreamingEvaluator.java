@@ -0,0 +1,522 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Evaluates JSONPath expressions over a stream of JSON text, without materializing the whole document.
+ * <p>
+ * For {@link JSONPathQueryPlan#isStreamable() streamable} expressions, the document is read with a
+ * {@link JSONStreamReader} and only a "projection" of it is built: the containers on the path
+ * from the root to the matching values (holding just the properties / elements the path goes
+ * through), and the matching values themselves. Below a deep scan, that is every container (but
+ * none of the other values, unless they match). Everything else is skipped as it is read. The
+ * expression is then applied to the projection by the regular tree engine, so the results are
+ * exactly those that would be obtained from the complete document.
+ * <p>
+ * When only the first few matches are needed, reading can stop as soon as each expression has
+ * matched that many values, as long as they are found in the order of its results - see
+ * {@link #parse(Collection, Reader, int)}.
+ * <p>
+ * Of expressions that cannot be streamed completely (filters, slices, etc.), the longest prefix of
+ * simple steps is streamed instead: the values that the prefix leads to are materialized completely,
+ * and the rest of the expression is left to the tree engine. Properties that no path goes on
+ * through are skipped without their names being read into strings.
+ */
+public final class JSONPathStreamingEvaluator {
+
+	/**
+	 * Returned by {@link #project(JSONStreamReader, Projection, long[])} for values that were skipped.
+	 */
+	private static final Object SKIPPED = new Object();
+
+	/**
+	 * The paths being followed while a document is projected, and the matches found so far.
+	 * <p>
+	 * The steps of a path that have been reached at a value are tracked as the bits of a
+	 * <code>long</code>: bit <code>i</code> for the step at index <code>i</code>, and bit
+	 * <code>steps.length</code> for the end of the path. A value reached by none of the steps
+	 * of any path is not part of the projection.
+	 */
+	private static final class Projection {
+
+		private final JSONPathStep[][] paths;
+
+		private final int maxMatches;
+
+		private final int[] matches;
+
+		/**
+		 * Which paths are only prefixes of their expressions - the values they lead to are not
+		 * necessarily matches, so they never complete the projection.
+		 */
+		private final boolean[] partial;
+
+		/**
+		 * Where the text of matched objects and arrays is kept, or <code>null</code> if it is not needed.
+		 */
+		private final Map<Object, String> sources;
+
+		/**
+		 * Number of paths that haven't matched {@link #maxMatches} values yet.
+		 */
+		private int pending;
+
+		/**
+		 * Whether the values matched so far have been found in the order that the expressions give
+		 * them in - that of the document, unless they are reached through a deep scan or through a
+		 * wildcard over the properties of an object, which json-path gives in the order of its maps.
+		 */
+		private boolean ordered;
+
+		private Projection(final JSONPathStep[][] paths, final boolean[] partial, final int maxMatches, final Map<Object, String> sources) {
+			this.paths = paths;
+			this.partial = partial;
+			this.maxMatches = maxMatches;
+			this.sources = sources;
+			this.matches = new int[paths.length];
+			this.pending = paths.length;
+			this.ordered = isOrdered(paths);
+		}
+
+		/**
+		 * @return  Whether the given paths match values one by one in document order, unless they go through
+		 *          objects by wildcards: not if they have deep scans, or wildcards after an array filter (which
+		 *          json-path applies to the list of values selected before, rather than to each of them.)
+		 */
+		private static boolean isOrdered(final JSONPathStep[][] paths) {
+			for (final JSONPathStep[] steps : paths) {
+				for (final JSONPathStep step : steps) {
+					if (step.getKind() == JSONPathStep.Kind.SCAN || (step.getKind() == JSONPathStep.Kind.WILDCARD && step.isArrayContext())) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return  Whether path <code>p</code> ends in a match (rather than in a value the rest of its expression is applied to.)
+		 */
+		private boolean matched(final int p) {
+			if (partial[p]) {
+				return false;
+			} else if (++matches[p] == maxMatches) {
+				pending--;
+			}
+			return true;
+		}
+
+		/**
+		 * @return  Whether every path has matched as many values as are needed (the first ones of its
+		 *          results), so that the rest of the document can be left unread.
+		 */
+		private boolean isComplete() {
+			return (maxMatches > 0 && pending == 0 && ordered);
+		}
+
+	}
+
+	/**
+	 * Reads the JSON document provided by <code>jsonReader</code>, materializing only the parts of
+	 * it that are needed to evaluate the given <code>queryPlan</code>.
+	 *
+	 * @param queryPlan  The pre-compiled JSONPath expression.
+	 * @param jsonReader  The source of the JSON document.
+	 * @return  The projection of the document.
+	 * @throws IllegalArgumentException  If <code>queryPlan == null || jsonReader == null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final Object parse(final JSONPathQueryPlan queryPlan, final Reader jsonReader) throws IllegalArgumentException, IOException {
+		if (queryPlan == null) {
+			throw new IllegalArgumentException(new NullPointerException("queryPlan"));
+		}
+
+		return parse(Collections.singletonList(queryPlan), jsonReader);
+	}
+
+	/**
+	 * Reads the JSON document provided by <code>jsonReader</code>, materializing only the parts of
+	 * it that are needed to evaluate all of the given <code>queryPlans</code>.
+	 * <p>
+	 * The projection holds the union of the paths of the expressions, so each of them gives the
+	 * same result on it as it would on the complete document.
+	 *
+	 * @param queryPlans  The pre-compiled JSONPath expressions.
+	 * @param jsonReader  The source of the JSON document.
+	 * @return  The projection of the document (or the complete document, if any of the expressions is not streamable.)
+	 * @throws IllegalArgumentException  If <code>queryPlans == null || jsonReader == null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final Object parse(final Collection<JSONPathQueryPlan> queryPlans, final Reader jsonReader) throws IllegalArgumentException, IOException {
+		return parse(queryPlans, jsonReader, 0);
+	}
+
+	/**
+	 * Reads the JSON document provided by <code>jsonReader</code>, materializing only the parts of
+	 * it that are needed to find (at least) the first <code>maxMatches</code> values matched by
+	 * each of the given <code>queryPlans</code>.
+	 * <p>
+	 * Reading stops as soon as every expression has matched <code>maxMatches</code> values - the
+	 * rest of the document is neither read nor checked for being well-formed - provided that the
+	 * values have been found in the order that the expressions give them in: that of the document,
+	 * for property names, array indices and wildcards over arrays. The values reached through a
+	 * deep scan or a wildcard over the properties of an object are given in the order of the maps
+	 * of json-path instead, so documents are read completely for expressions with deep scans (or
+	 * with wildcards after an array filter, which don't select values one by one), and from the
+	 * first wildcard over an object on. Either way, the first <code>maxMatches</code>
+	 * results of each expression on the projection are the first of its results on the complete document.
+	 *
+	 * @param queryPlans  The pre-compiled JSONPath expressions.
+	 * @param jsonReader  The source of the JSON document.
+	 * @param maxMatches  The number of matches needed of each expression; <code>0</code> or less for all of them.
+	 * @return  The projection of (the beginning of) the document.
+	 * @throws IllegalArgumentException  If <code>queryPlans == null || jsonReader == null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final Object parse(final Collection<JSONPathQueryPlan> queryPlans, final Reader jsonReader, final int maxMatches) throws IllegalArgumentException, IOException {
+		return parse(queryPlans, jsonReader, maxMatches, null);
+	}
+
+	/**
+	 * Reads the JSON document provided by <code>jsonReader</code> like
+	 * {@link #parse(Collection, Reader, int)}, keeping the text of the objects and arrays that
+	 * the expressions match as it appears in the input (see {@link JSONStreamReader#readValue(Map)}.)
+	 * <p>
+	 * The text is only kept for whole matched values, not for the values nested in them.
+	 *
+	 * @param queryPlans  The pre-compiled JSONPath expressions.
+	 * @param jsonReader  The source of the JSON document.
+	 * @param maxMatches  The number of matches needed of each expression; <code>0</code> or less for all of them.
+	 * @param sources  The map (by identity, e.g. an {@link java.util.IdentityHashMap}) that the text of matched
+	 *                 objects and arrays is put into, keyed by the matched values; <code>null</code> if the text is not needed.
+	 * @return  The projection of (the beginning of) the document, or the complete document if any of the expressions is not streamable.
+	 * @throws IllegalArgumentException  If <code>queryPlans == null || jsonReader == null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final Object parse(final Collection<JSONPathQueryPlan> queryPlans, final Reader jsonReader, final int maxMatches, final Map<Object, String> sources) throws IllegalArgumentException, IOException {
+		return parse(queryPlans, jsonReader, maxMatches, sources, null);
+	}
+
+	/**
+	 * Reads the JSON document provided by <code>jsonReader</code> like
+	 * {@link #parse(Collection, Reader, int, Map)}, sharing the instances of repeated short strings
+	 * in the projection through the given pool.
+	 *
+	 * @param queryPlans  The pre-compiled JSONPath expressions.
+	 * @param jsonReader  The source of the JSON document.
+	 * @param maxMatches  The number of matches needed of each expression; <code>0</code> or less for all of them.
+	 * @param sources  The map (by identity) that the text of matched objects and arrays is put into; <code>null</code> if the text is not needed.
+	 * @param stringPool  The pool of strings, or <code>null</code>.
+	 * @return  The projection of (the beginning of) the document.
+	 * @throws IllegalArgumentException  If <code>queryPlans == null || jsonReader == null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final Object parse(final Collection<JSONPathQueryPlan> queryPlans, final Reader jsonReader, final int maxMatches, final Map<Object, String> sources,
+			final JSONStringPool stringPool) throws IllegalArgumentException, IOException {
+		if (queryPlans == null) {
+			throw new IllegalArgumentException(new NullPointerException("queryPlans"));
+		} else if (jsonReader == null) {
+			throw new IllegalArgumentException(new NullPointerException("jsonReader"));
+		}
+
+		final JSONPathStep[][] paths = new JSONPathStep[queryPlans.size()][];
+		final boolean[] partial = new boolean[paths.length];
+
+		int i = 0;
+		for (final JSONPathQueryPlan queryPlan : queryPlans) {
+			partial[i] = !queryPlan.isStreamable();
+			paths[i++] = queryPlan.prefixSteps;
+		}
+
+		final JSONStreamReader reader = new JSONStreamReader(jsonReader, stringPool);
+		final Projection projection = new Projection(paths, partial, maxMatches, sources);
+		final long[] reached = new long[paths.length];
+		Arrays.fill(reached, 1L);
+
+		final Object result = project(reader, projection, reached);
+
+		if (!projection.isComplete()) {
+			// make sure that the document is well-formed up to its end
+			reader.peek();
+		}
+
+		return (result == SKIPPED ? null : result);
+	}
+
+	/**
+	 * Applies the given <code>queryPlan</code> to the JSON document provided by <code>jsonReader</code>.
+	 * <p>
+	 * Equivalent to: <code>JSONPathUtils.read(jsonProvider, queryPlan, parse(queryPlan, jsonReader));</code>
+	 *
+	 * @param <T>  expected return type
+	 * @param jsonProvider  The JSON provider.
+	 * @param queryPlan  The pre-compiled JSONPath expression.
+	 * @param jsonReader  The source of the JSON document.
+	 * @return  The result of the application.
+	 * @throws IllegalArgumentException  If any of the arguments is <code>null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final <T> T read(final JsonProvider jsonProvider, final JSONPathQueryPlan queryPlan, final Reader jsonReader) throws IllegalArgumentException, IOException {
+		return JSONPathUtils.<T>read(jsonProvider, queryPlan, parse(queryPlan, jsonReader));
+	}
+
+	/**
+	 * Builds the projection of the value at the current position of <code>reader</code>.
+	 * <p>
+	 * <code>reached</code> holds the steps of each of the paths of the <code>projection</code>
+	 * that have reached this value; paths that do not reach it have none.
+	 *
+	 * @return  The projection of the value, or {@link #SKIPPED} if it is not needed.
+	 */
+	private static Object project(final JSONStreamReader reader, final Projection projection, final long[] reached) throws IOException {
+		final JSONPathStep[][] paths = projection.paths;
+		final JSONStreamReader.Token token = reader.peek();
+		final boolean container = (token == JSONStreamReader.Token.BEGIN_OBJECT || token == JSONStreamReader.Token.BEGIN_ARRAY);
+
+		boolean ended = false;
+		boolean needed = false;
+		int maxIndex = -1;
+
+		for (int p = 0; p < paths.length; p++) {
+			if (container) {
+				reached[p] = includeScannedContainer(paths[p], reached[p]);
+			}
+
+			for (long steps = reached[p]; steps != 0; steps &= steps - 1) {
+				final int s = Long.numberOfTrailingZeros(steps);
+				if (s == paths[p].length) {
+					ended = true;
+					continue;
+				}
+
+				final JSONPathStep step = paths[p][s];
+				if (step.getKind() == JSONPathStep.Kind.INDEX) {
+					if (token == JSONStreamReader.Token.BEGIN_OBJECT || step.isArrayContext()) {
+						// indexing into an object, or indices after an array filter (which are not
+						// applied element-wise) - leave it to the tree engine to decide what that means
+						needed = true;
+						maxIndex = Integer.MAX_VALUE;
+						continue;
+					}
+					maxIndex = Math.max(maxIndex, step.getIndex());
+				}
+				if (step.getKind() != JSONPathStep.Kind.SCAN) {
+					needed = true;
+				}
+			}
+		}
+
+		if (ended) {
+			// end of a path - this is (part of) a result, so it is materialized completely
+			boolean matched = false;
+			for (int p = 0; p < paths.length; p++) {
+				if ((reached[p] & (1L << paths[p].length)) != 0) {
+					matched = projection.matched(p) || matched;
+				}
+			}
+			// the text is only needed for matches, not for values the rest of an expression is applied to
+			return (matched ? reader.readValue(projection.sources) : reader.readValue());
+		} else if (!container) {
+			if (!needed) {
+				// deep scans only look for containers
+				reader.skipValue();
+				return SKIPPED;
+			}
+			// scalar values are cheap - keep them as they are
+			return reader.readValue();
+		} else if (maxIndex == Integer.MAX_VALUE) {
+			return reader.readValue();
+		}
+
+		final long[] childReached = new long[paths.length];
+
+		if (token == JSONStreamReader.Token.BEGIN_OBJECT) {
+			// when the paths only go on through named properties, the other names need not be read at all
+			final String[] names = fieldNames(paths, reached);
+
+			final JSONObject object = new JSONObject();
+			reader.beginObject();
+			while (!projection.isComplete() && reader.hasNext()) {
+				final String name;
+				if (names == null) {
+					name = reader.nextName();
+				} else {
+					final int index = reader.nextName(names);
+					if (index == -1) {
+						reader.skipValue();
+						continue;
+					}
+					name = names[index];
+				}
+
+				boolean reachedAny = false;
+				for (int p = 0; p < paths.length; p++) {
+					long child = 0;
+					for (long steps = reached[p]; steps != 0; steps &= steps - 1) {
+						final int s = Long.numberOfTrailingZeros(steps);
+						final JSONPathStep step = paths[p][s];
+						switch (step.getKind()) {
+							case FIELD:
+								if (name.equals(step.getName())) {
+									child |= 1L << (s + 1);
+								}
+								break;
+
+							case WILDCARD:
+								child |= 1L << (s + 1);
+								// json-path gives the properties in the order of its map, not of the document
+								projection.ordered = false;
+								break;
+
+							case SCAN:
+								// the scan goes on in the value of every property
+								child |= 1L << s;
+								break;
+
+							default:
+								break;
+						}
+					}
+					childReached[p] = child;
+					reachedAny = reachedAny || child != 0;
+				}
+
+				final Object value = (reachedAny ? project(reader, projection, childReached) : skip(reader));
+				if (value != SKIPPED) {
+					object.put(name, value);
+				}
+			}
+			if (!projection.isComplete()) {
+				reader.endObject();
+			}
+			return object;
+		}
+
+		final JSONArray array = new JSONArray();
+		reader.beginArray();
+		for (int i = 0; !projection.isComplete() && reader.hasNext(); i++) {
+			final boolean objectElement = (reader.peek() == JSONStreamReader.Token.BEGIN_OBJECT);
+
+			boolean reachedAny = false;
+			for (int p = 0; p < paths.length; p++) {
+				long child = 0;
+				for (long steps = reached[p]; steps != 0; steps &= steps - 1) {
+					final int s = Long.numberOfTrailingZeros(steps);
+					final JSONPathStep step = paths[p][s];
+					switch (step.getKind()) {
+						case FIELD:
+							// properties of arrays are looked up in their elements - same step again
+							// (only objects have properties, so nothing else can match)
+							if (objectElement) {
+								child |= 1L << s;
+							}
+							break;
+
+						case WILDCARD:
+							child |= 1L << (s + 1);
+							break;
+
+						case SCAN:
+							child |= 1L << s;
+							break;
+
+						default:
+							if (i == step.getIndex()) {
+								child |= 1L << (s + 1);
+							}
+							break;
+					}
+				}
+				childReached[p] = child;
+				reachedAny = reachedAny || child != 0;
+			}
+
+			final Object element = (reachedAny ? project(reader, projection, childReached) : skip(reader));
+			if (element != SKIPPED) {
+				array.add(element);
+			} else if (i < maxIndex) {
+				// keep the positions of the following elements intact
+				array.add(null);
+			}
+		}
+		if (!projection.isComplete()) {
+			reader.endArray();
+		}
+		return array;
+	}
+
+	/**
+	 * A deep scan includes the container it is applied to, so the steps following a deep scan
+	 * that has reached a container apply to the container itself as well.
+	 */
+	private static long includeScannedContainer(final JSONPathStep[] steps, final long reached) {
+		long result = reached;
+		for (int s = 0; s < steps.length; s++) {
+			if (steps[s].getKind() == JSONPathStep.Kind.SCAN && (reached & (1L << s)) != 0) {
+				result |= 1L << (s + 1);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return  The property names that the given steps go on through, or <code>null</code> if any of the
+	 *          steps goes on through every property (wildcards, deep scans.)
+	 */
+	private static String[] fieldNames(final JSONPathStep[][] paths, final long[] reached) {
+		final List<String> result = new ArrayList<String>();
+
+		for (int p = 0; p < paths.length; p++) {
+			for (long steps = reached[p]; steps != 0; steps &= steps - 1) {
+				final JSONPathStep step = paths[p][Long.numberOfTrailingZeros(steps)];
+				switch (step.getKind()) {
+					case FIELD:
+						if (!result.contains(step.getName())) {
+							result.add(step.getName());
+						}
+						break;
+
+					case WILDCARD:
+					case SCAN:
+						return null;
+
+					default:
+						break;
+				}
+			}
+		}
+
+		return result.toArray(new String[result.size()]);
+	}
+
+	private static Object skip(final JSONStreamReader reader) throws IOException {
+		reader.skipValue();
+		return SKIPPED;
+	}
+
+	/**
+	 * Sole constructor.
+	 */
+	private JSONPathStreamingEvaluator() {
+		super();
+	}
+
+}
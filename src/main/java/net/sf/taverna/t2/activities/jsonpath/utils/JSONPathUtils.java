@@ -6,12 +6,18 @@
  */
 package net.sf.taverna.t2.activities.jsonpath.utils;
 
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.minidev.json.JSONValue;
 
 import com.jayway.jsonpath.Filter;
 import com.jayway.jsonpath.JsonPath;
-import com.jayway.jsonpath.internal.PathToken;
-import com.jayway.jsonpath.internal.PathTokenizer;
 import com.jayway.jsonpath.internal.filter.PathTokenFilter;
 import com.jayway.jsonpath.spi.JsonProvider;
 import com.jayway.jsonpath.spi.JsonProviderFactory;
@@ -26,9 +32,69 @@ import com.jayway.jsonpath.spi.JsonProviderFactory;
 public final class JSONPathUtils {
 	
 	/**
-	 * Default JSON provider (an interface used by JSONPath.)
+	 * Name of the default JSON provider, backed by json-smart.
+	 */
+	public static final String JSON_SMART_PROVIDER = "json-smart";
+	
+	/**
+	 * Name of the JSON provider backed by Jackson.
+	 */
+	public static final String JACKSON_PROVIDER = "jackson";
+	
+	/**
+	 * Name of the JSON provider that parses documents into compact, read-only {@link JSONTape}s.
+	 */
+	public static final String TAPE_PROVIDER = "tape";
+	
+	/**
+	 * Class names of the JSON providers that can be referred to by their short names.
+	 */
+	private static final Map<String, String> PROVIDER_CLASS_NAMES = new HashMap<String, String>();
+	
+	static {
+		PROVIDER_CLASS_NAMES.put(JSON_SMART_PROVIDER, "com.jayway.jsonpath.spi.impl.JsonSmartJsonProvider");
+		PROVIDER_CLASS_NAMES.put(JACKSON_PROVIDER, "com.jayway.jsonpath.spi.impl.JacksonProvider");
+		PROVIDER_CLASS_NAMES.put(TAPE_PROVIDER, JSONTapeJsonProvider.class.getName());
+	}
+	
+	/**
+	 * JSON providers that have been created by name.
+	 */
+	private static final ConcurrentMap<String, JsonProvider> namedProviders = new ConcurrentHashMap<String, JsonProvider>();
+	
+	/**
+	 * Maximum number of query plans kept for {@link #read(JsonProvider, JsonPath, Object)}.
 	 */
-	private static JsonProvider defaultProvider;
+	private static final int MAX_CACHED_QUERY_PLANS = 256;
+	
+	/**
+	 * Query plans compiled by {@link #read(JsonProvider, JsonPath, Object)}, by JSONPath expression.
+	 */
+	private static final ConcurrentMap<String, JSONPathQueryPlan> cachedQueryPlans = new ConcurrentHashMap<String, JSONPathQueryPlan>();
+	
+	/**
+	 * Context filters of the evaluations on the current thread.
+	 * <p>
+	 * The filters never hold on to the list beyond a single call, and an evaluation never triggers another
+	 * one on the same thread, so a single list per thread can be reused (after clearing it) by every evaluation.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final ThreadLocal<LinkedList<Filter>> contextFilters = new ThreadLocal<LinkedList<Filter>>() {
+		
+		@Override
+		protected LinkedList<Filter> initialValue() {
+			return new LinkedList<Filter>();
+		}
+		
+	};
+	
+	/**
+	 * Holder of the default JSON provider (an interface used by JSONPath), created and safely
+	 * published by the class loader the first time it is needed.
+	 */
+	private static class DefaultProvider {
+		private static final JsonProvider instance = JsonProviderFactory.createProvider();
+	}
 	
 	/**
 	 * Returns the default JSON provider.
@@ -36,11 +102,168 @@ public final class JSONPathUtils {
 	 * @return  The default JSON provider.
 	 */
 	public static final JsonProvider createProvider() {
-		if (defaultProvider == null) {
-			defaultProvider = JsonProviderFactory.createProvider();
+		return DefaultProvider.instance;
+	}
+	
+	/**
+	 * Returns the JSON provider with the given name.
+	 * <p>
+	 * The name is either one of the short names {@link #JSON_SMART_PROVIDER}, {@link #JACKSON_PROVIDER} and {@link #TAPE_PROVIDER},
+	 * or the fully qualified name of a class that implements {@link JsonProvider} and has a public
+	 * no-argument constructor. Providers are created once and shared, so they must be thread-safe.
+	 * 
+	 * @param name  The name of the JSON provider, or <code>null</code> for the default JSON provider.
+	 * @return  The JSON provider.
+	 * @throws IllegalArgumentException  If the JSON provider cannot be found or created.
+	 */
+	public static final JsonProvider createProvider(final String name) throws IllegalArgumentException {
+		if (isDefaultProvider(name)) {
+			return createProvider();
+		}
+		
+		final String trimmedName = name.trim();
+		
+		JsonProvider jsonProvider = namedProviders.get(trimmedName);
+		if (jsonProvider == null) {
+			final String className = PROVIDER_CLASS_NAMES.containsKey(trimmedName) ? PROVIDER_CLASS_NAMES.get(trimmedName) : trimmedName;
+			
+			try {
+				// the class is only initialized once it is known to be a JSON provider
+				final Class<? extends JsonProvider> providerClass = Class.forName(className, false, JSONPathUtils.class.getClassLoader()).asSubclass(JsonProvider.class);
+				jsonProvider = providerClass.newInstance();
+			} catch (ClassNotFoundException e) {
+				throw new IllegalArgumentException("JSON provider not found: " + trimmedName, e);
+			} catch (ClassCastException e) {
+				throw new IllegalArgumentException("Not a JSON provider: " + className, e);
+			} catch (InstantiationException e) {
+				throw new IllegalArgumentException("Cannot create JSON provider: " + className, e);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Cannot create JSON provider: " + className, e);
+			} catch (LinkageError e) {
+				// e.g. the library that backs the provider is missing
+				throw new IllegalArgumentException("Cannot create JSON provider: " + className, e);
+			}
+			
+			final JsonProvider existingProvider = namedProviders.putIfAbsent(trimmedName, jsonProvider);
+			if (existingProvider != null) {
+				jsonProvider = existingProvider;
+			}
+		}
+		
+		return jsonProvider;
+	}
+	
+	/**
+	 * Returns whether the given name refers to a JSON provider that {@link #createProvider(String)} can create:
+	 * one of the short names, or the name of a concrete class that implements {@link JsonProvider} and has a
+	 * public no-argument constructor.
+	 * <p>
+	 * The class is loaded, but not initialized (nor instantiated), so no code of it is run.
+	 * 
+	 * @param name  The name of a JSON provider.
+	 * @return  <code>true</code> if the name is valid; <code>false</code> otherwise.
+	 */
+	public static final boolean isValidProvider(final String name) {
+		if (isDefaultProvider(name) || PROVIDER_CLASS_NAMES.containsKey(name.trim()) || namedProviders.containsKey(name.trim())) {
+			return true;
+		}
+		
+		try {
+			final Class<?> providerClass = Class.forName(name.trim(), false, JSONPathUtils.class.getClassLoader());
+			
+			if (!JsonProvider.class.isAssignableFrom(providerClass) || !Modifier.isPublic(providerClass.getModifiers())
+					|| providerClass.isInterface() || Modifier.isAbstract(providerClass.getModifiers())) {
+				return false;
+			}
+			
+			// throws unless there is a public no-argument constructor
+			providerClass.getConstructor();
+			
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (NoSuchMethodException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns whether the given name refers to the default JSON provider.
+	 * 
+	 * @param name  The name of a JSON provider.
+	 * @return  <code>true</code> if <code>name</code> is <code>null</code>, empty or {@link #JSON_SMART_PROVIDER}; <code>false</code> otherwise.
+	 */
+	public static final boolean isDefaultProvider(final String name) {
+		return (name == null || name.trim().length() == 0 || JSON_SMART_PROVIDER.equals(name.trim()));
+	}
+	
+	/**
+	 * Serializes the given JSON value using the given <code>jsonProvider</code>.
+	 * <p>
+	 * Containers (lists and maps) are serialized by the JSON provider; all other values (which the
+	 * JSON providers are not required to support) are serialized by json-smart.
+	 * 
+	 * @param jsonProvider  The JSON provider.
+	 * @param jsonValue  The JSON value.
+	 * @return  The JSON text.
+	 * @throws IllegalArgumentException  If <code>jsonProvider == null</code>.
+	 */
+	public static final String toJSONString(final JsonProvider jsonProvider, final Object jsonValue) throws IllegalArgumentException {
+		if (jsonProvider == null) {
+			throw new IllegalArgumentException(new NullPointerException("jsonProvider"));
+		}
+		
+		if (jsonProvider.isContainer(jsonValue)) {
+			return jsonProvider.toJson(jsonValue);
 		}
 		
-		return defaultProvider;
+		return JSONValue.toJSONString(jsonValue);
+	}
+	
+	/**
+	 * Estimates the number of bytes of heap that the given JSON value takes up, assuming a 64-bit
+	 * JVM with compressed references.
+	 * <p>
+	 * Maps are counted as hash maps and lists as array lists (as json-smart and Jackson represent
+	 * them), strings as arrays of UTF-16 characters and numbers as boxed values; {@link JSONTape}
+	 * documents by the size of their arrays. Strings and numbers that are shared by several values
+	 * (e.g. interned property names) are counted for each of them, so the estimate errs on the high side.
+	 *
+	 * @param jsonValue  The JSON value.
+	 * @return  The estimated size of the value, in bytes.
+	 */
+	public static final long estimateHeapSize(final Object jsonValue) {
+		final JSONTape tape = JSONTape.of(jsonValue);
+		if (tape != null) {
+			return tape.getHeapSize();
+		}
+		
+		if (jsonValue instanceof Map) {
+			final Map<?, ?> map = (Map<?, ?>) jsonValue;
+			// the map and its table (at the default load factor), and an entry per property
+			long size = 64 + 4L * Integer.highestOneBit(Math.max(1, map.size() * 4 / 3) * 2 - 1);
+			for (final Map.Entry<?, ?> entry : map.entrySet()) {
+				size += 32 + estimateHeapSize(entry.getKey()) + estimateHeapSize(entry.getValue());
+			}
+			return size;
+		} else if (jsonValue instanceof List) {
+			final List<?> list = (List<?>) jsonValue;
+			long size = 40 + 4L * list.size();
+			for (final Object element : list) {
+				size += estimateHeapSize(element);
+			}
+			return size;
+		} else if (jsonValue instanceof String) {
+			return 40 + 2L * ((String) jsonValue).length();
+		} else if (jsonValue == null || jsonValue instanceof Boolean) {
+			// shared instances
+			return 0;
+		} else if (jsonValue instanceof Integer) {
+			return 16;
+		}
+		return 24;
 	}
 	
 	/**
@@ -77,31 +300,100 @@ public final class JSONPathUtils {
 			throw new IllegalArgumentException(new NullPointerException("jsonPath"));
 		} 
 		
+		final String expression = jsonPath.getPath();
+		
+		JSONPathQueryPlan queryPlan = cachedQueryPlans.get(expression);
+		if (queryPlan == null) {
+			queryPlan = JSONPathQueryPlan.compile(jsonPath);
+			
+			// The cache is not evicted from - once it is full, further expressions are simply compiled every time.
+			if (cachedQueryPlans.size() < MAX_CACHED_QUERY_PLANS) {
+				cachedQueryPlans.putIfAbsent(expression, queryPlan);
+			}
+		}
+		
+		return read(jsonProvider, queryPlan, jsonValue);
+	}
+	
+	/**
+	 * Applies the given <code>queryPlan</code> to the given <code>jsonValue</code> using the default JSON provider.
+	 * <p>
+	 * Equivalent to: <code>read(createProvider(), queryPlan, jsonValue);</code>
+	 * 
+	 * @param <T>  expected return type
+	 * @param queryPlan  The pre-compiled JSONPath expression.
+	 * @param jsonValue  The JSON value.
+	 * @return  The result of the application. 
+	 * @see JsonPath#read(Object)
+	 * @throws IllegalArguemntException  If <code>queryPlan == null</code>.
+	 */
+	public static final <T> T read(final JSONPathQueryPlan queryPlan, final Object jsonValue) throws IllegalArgumentException {
+		return read(createProvider(), queryPlan, jsonValue);
+	}
+	
+	/**
+	 * Applies the given <code>queryPlan</code> to the given <code>jsonValue</code> using the given <code>jsonProvider</code>.
+	 * 
+	 * @param <T>  expected return type
+	 * @param jsonProvider  The JSON provider.
+	 * @param queryPlan  The pre-compiled JSONPath expression.
+	 * @param jsonValue  The JSON value.
+	 * @return  The result of the application. 
+	 * @see JsonPath#read(Object)
+	 * @throws IllegalArguemntException  If <code>jsonProvider == null || queryPlan == null</code>.
+	 */
+	public static final <T> T read(final JsonProvider jsonProvider, final JSONPathQueryPlan queryPlan, final Object jsonValue) throws IllegalArgumentException {
+		if (jsonProvider == null) {
+			throw new IllegalArgumentException(new NullPointerException("jsonProvider"));
+		} else if (queryPlan == null) {
+			throw new IllegalArgumentException(new NullPointerException("queryPlan"));
+		} 
+		
 		if (!jsonProvider.isContainer(jsonValue)) {
 			// For reasons unknown, JSONPath expressions can only be applied to lists or maps (referred to as "containers".) 
 			throw new IllegalArgumentException("Invalid container object");
 		}
 		
+		// Definite expressions are applied by direct lookups, as long as every step finds a value.
+		if (queryPlan.definiteAccessor != null) {
+			final Object result = queryPlan.definiteAccessor.read(jsonValue, jsonProvider);
+			
+			if (result != JSONPathDefiniteAccessor.MISSING) {
+				@SuppressWarnings("unchecked")
+				final T castResult = (T) result;
+				
+				return castResult;
+			}
+		}
+		
+		return interpret(jsonProvider, queryPlan, jsonValue);
+	}
+	
+	/**
+	 * Applies the filter chain of the given <code>queryPlan</code> to the given <code>jsonValue</code> (a container.)
+	 * 
+	 * @param <T>  expected return type
+	 * @param jsonProvider  The JSON provider.
+	 * @param queryPlan  The pre-compiled JSONPath expression.
+	 * @param jsonValue  The JSON value.
+	 * @return  The result of the application. 
+	 */
+	static final <T> T interpret(final JsonProvider jsonProvider, final JSONPathQueryPlan queryPlan, final Object jsonValue) {
 		// Initialize the 'result' object to be the given 'jsonValue'.
 		Object result = jsonValue;
 		
-		boolean arrayFilter = false;
-		
-		// This object must be an instance of LinkedList to satisfy the PathTokenFilter#filter(Object, JsonProvider, LinkedList<Filter>, boolean) interface.
 		@SuppressWarnings("rawtypes")
-		final LinkedList<Filter> contextFilters = new LinkedList<Filter>();
+		final LinkedList<Filter> contextFilters = getContextFilters();
 		
-		for (final PathToken pathToken : new PathTokenizer(jsonPath.getPath()).getPathTokens()) {
-			if (pathToken != null) {
-				final PathTokenFilter pathTokenFilter = pathToken.getFilter();
-				
-				if (pathTokenFilter != null) {
-					// Apply the next filter to the current 'result' object.
-					result = pathTokenFilter.filter(result, jsonProvider, contextFilters, arrayFilter);
-					
-					arrayFilter = arrayFilter || pathTokenFilter.isArrayFilter();
-				}
-			}
+		// The filter chain (and the "array context" of each filter) was resolved when the plan was compiled.
+		final PathTokenFilter[] pathTokenFilters = queryPlan.pathTokenFilters;
+		final boolean[] arrayContexts = queryPlan.arrayContexts;
+		final JSONPathFilterPredicate[] predicates = queryPlan.predicates;
+		
+		for (int i = 0; i < pathTokenFilters.length; i++) {
+			// Apply the next filter to the current 'result' object - compiled, where possible.
+			final Object filtered = (predicates[i] == null ? null : predicates[i].filter(result, jsonProvider));
+			result = (filtered != null ? filtered : pathTokenFilters[i].filter(result, jsonProvider, contextFilters, arrayContexts[i]));
 		}
 		
 		@SuppressWarnings("unchecked")
@@ -110,6 +402,21 @@ public final class JSONPathUtils {
 		return castResult;
 	}
 	
+	/**
+	 * Returns the (empty) list of context filters for an evaluation on the current thread.
+	 * <p>
+	 * This object must be an instance of LinkedList to satisfy the PathTokenFilter#filter(Object, JsonProvider, LinkedList<Filter>, boolean) interface.
+	 * 
+	 * @return  The list of context filters of the current thread.
+	 */
+	@SuppressWarnings("rawtypes")
+	static final LinkedList<Filter> getContextFilters() {
+		final LinkedList<Filter> filters = contextFilters.get();
+		filters.clear();
+		
+		return filters;
+	}
+	
 	/**
 	 * Sole constructor.
 	 */
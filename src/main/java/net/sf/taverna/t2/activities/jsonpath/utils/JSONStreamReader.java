@@ -0,0 +1,755 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.Map;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+/**
+ * Pull-style reader of a JSON document, consuming its input one token at a time.
+ * <p>
+ * Only the values that are explicitly read are materialized - {@link #skipValue()} steps over a
+ * value (including whole objects and arrays) without building it. Values that are read are
+ * represented the same way as by json-smart: {@link JSONObject}, {@link JSONArray},
+ * {@link String}, {@link Integer} / {@link Long} / {@link BigInteger}, {@link Double},
+ * {@link Boolean} and <code>null</code>.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @see <a href="http://www.ietf.org/rfc/rfc4627.txt">RFC 4627</a>
+ */
+public final class JSONStreamReader implements Closeable {
+
+	/**
+	 * Kinds of token that can be encountered in a JSON document.
+	 */
+	public static enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	// Lexical scopes of the reader.
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Reader in;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+
+	private int pos = 0;
+
+	private int limit = 0;
+
+	/**
+	 * Number of characters consumed before the start of {@link #buffer}.
+	 */
+	private long bufferOffset = 0;
+
+	private int[] stack = new int[32];
+
+	private int stackSize = 0;
+
+	/**
+	 * The next token, if it has been peeked at but not consumed yet.
+	 */
+	private Token peeked = null;
+
+	/**
+	 * Scratch buffer used to collect strings and numbers that span several reads.
+	 */
+	private final StringBuilder scratch = new StringBuilder();
+
+	/**
+	 * The text of the value being read by {@link #readValue(Map)} that has been consumed from
+	 * previous fills of {@link #buffer}, or <code>null</code> if no text is being kept.
+	 */
+	private StringBuilder source = null;
+
+	/**
+	 * Position in {@link #buffer} from which on the text of the value being read by
+	 * {@link #readValue(Map)} is still to be added to {@link #source}.
+	 */
+	private int sourceStart = 0;
+
+	/**
+	 * The pool that short strings (property names and values) are looked up in, or <code>null</code>.
+	 */
+	private final JSONStringPool stringPool;
+
+	/**
+	 * Creates a reader of the JSON document provided by <code>in</code>.
+	 *
+	 * @param in  The source of the JSON document.
+	 * @throws IllegalArgumentException  If <code>in == null</code>.
+	 */
+	public JSONStreamReader(final Reader in) throws IllegalArgumentException {
+		this(in, null);
+	}
+
+	/**
+	 * Creates a reader of the JSON document provided by <code>in</code> that shares the instances
+	 * of repeated short strings through the given pool.
+	 *
+	 * @param in  The source of the JSON document.
+	 * @param stringPool  The pool of strings, or <code>null</code> to create a new instance of every string.
+	 * @throws IllegalArgumentException  If <code>in == null</code>.
+	 */
+	public JSONStreamReader(final Reader in, final JSONStringPool stringPool) throws IllegalArgumentException {
+		super();
+
+		if (in == null) {
+			throw new IllegalArgumentException(new NullPointerException("in"));
+		}
+
+		this.in = in;
+		this.stringPool = stringPool;
+
+		stack[stackSize++] = EMPTY_DOCUMENT;
+	}
+
+	/**
+	 * Returns the kind of the next token, without consuming it.
+	 *
+	 * @return  The kind of the next token.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public Token peek() throws IOException {
+		if (peeked != null) {
+			return peeked;
+		}
+
+		final int scope = stack[stackSize - 1];
+		int c;
+
+		switch (scope) {
+			case EMPTY_ARRAY:
+				stack[stackSize - 1] = NONEMPTY_ARRAY;
+				c = nextNonWhitespace(true);
+				if (c == ']') {
+					return peeked = Token.END_ARRAY;
+				}
+				pos--;
+				return peeked = peekValue();
+
+			case NONEMPTY_ARRAY:
+				c = nextNonWhitespace(true);
+				if (c == ']') {
+					return peeked = Token.END_ARRAY;
+				} else if (c != ',') {
+					throw syntaxError("Expected ',' or ']'");
+				}
+				return peeked = peekValue();
+
+			case EMPTY_OBJECT:
+			case NONEMPTY_OBJECT:
+				stack[stackSize - 1] = DANGLING_NAME;
+				c = nextNonWhitespace(true);
+				if (c == '}') {
+					return peeked = Token.END_OBJECT;
+				}
+				if (scope == NONEMPTY_OBJECT) {
+					if (c != ',') {
+						throw syntaxError("Expected ',' or '}'");
+					}
+					c = nextNonWhitespace(true);
+				}
+				if (c != '"') {
+					throw syntaxError("Expected name");
+				}
+				return peeked = Token.NAME;
+
+			case DANGLING_NAME:
+				stack[stackSize - 1] = NONEMPTY_OBJECT;
+				c = nextNonWhitespace(true);
+				if (c != ':') {
+					throw syntaxError("Expected ':'");
+				}
+				return peeked = peekValue();
+
+			case EMPTY_DOCUMENT:
+				if (nextNonWhitespace(false) == -1) {
+					throw new EOFException("Empty input");
+				}
+				pos--;
+				stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+				return peeked = peekValue();
+
+			case NONEMPTY_DOCUMENT:
+				if (nextNonWhitespace(false) == -1) {
+					return peeked = Token.END_DOCUMENT;
+				}
+				pos--;
+				throw syntaxError("Unexpected content after the end of the document");
+
+			default:
+				throw new IllegalStateException("JSONStreamReader is closed");
+		}
+	}
+
+	/**
+	 * Consumes the start of an object.
+	 *
+	 * @throws IOException  If the next token is not the start of an object.
+	 */
+	public void beginObject() throws IOException {
+		expect(Token.BEGIN_OBJECT);
+		push(EMPTY_OBJECT);
+	}
+
+	/**
+	 * Consumes the end of an object.
+	 *
+	 * @throws IOException  If the next token is not the end of an object.
+	 */
+	public void endObject() throws IOException {
+		expect(Token.END_OBJECT);
+		stackSize--;
+	}
+
+	/**
+	 * Consumes the start of an array.
+	 *
+	 * @throws IOException  If the next token is not the start of an array.
+	 */
+	public void beginArray() throws IOException {
+		expect(Token.BEGIN_ARRAY);
+		push(EMPTY_ARRAY);
+	}
+
+	/**
+	 * Consumes the end of an array.
+	 *
+	 * @throws IOException  If the next token is not the end of an array.
+	 */
+	public void endArray() throws IOException {
+		expect(Token.END_ARRAY);
+		stackSize--;
+	}
+
+	/**
+	 * Returns whether the current object or array has more elements.
+	 *
+	 * @return  <code>true</code> if there is another element; <code>false</code> otherwise.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public boolean hasNext() throws IOException {
+		final Token token = peek();
+		return (token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT);
+	}
+
+	/**
+	 * Consumes the name of the next property of the current object.
+	 *
+	 * @return  The property name.
+	 * @throws IOException  If the next token is not a property name.
+	 */
+	public String nextName() throws IOException {
+		expect(Token.NAME);
+		return readString();
+	}
+
+	/**
+	 * Consumes the name of the next property of the current object, and looks it up in the given
+	 * <code>names</code> - without materializing it, unless it contains escapes or does not fit
+	 * in what is left of the input buffer.
+	 *
+	 * @param names  The property names of interest.
+	 * @return  The index of the property name in <code>names</code>, or <code>-1</code> if it is not one of them.
+	 * @throws IOException  If the next token is not a property name.
+	 */
+	public int nextName(final String[] names) throws IOException {
+		expect(Token.NAME);
+
+		// fast path: the whole name is in the buffer and contains no escapes
+		for (int i = pos; i < limit; i++) {
+			final char c = buffer[i];
+			if (c == '"') {
+				final int start = pos;
+				pos = i + 1;
+				return indexOf(names, start, i - start);
+			} else if (c == '\\') {
+				break;
+			}
+		}
+
+		final String name = readString();
+		for (int n = 0; n < names.length; n++) {
+			if (names[n].equals(name)) {
+				return n;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Consumes a string value.
+	 *
+	 * @return  The string.
+	 * @throws IOException  If the next token is not a string.
+	 */
+	public String nextString() throws IOException {
+		expect(Token.STRING);
+		return readString();
+	}
+
+	/**
+	 * Consumes a number value.
+	 *
+	 * @return  The number, as an {@link Integer}, {@link Long}, {@link BigInteger} or {@link Double}.
+	 * @throws IOException  If the next token is not a number.
+	 */
+	public Number nextNumber() throws IOException {
+		expect(Token.NUMBER);
+		return readNumber();
+	}
+
+	/**
+	 * Consumes a boolean value.
+	 *
+	 * @return  The boolean.
+	 * @throws IOException  If the next token is not a boolean.
+	 */
+	public boolean nextBoolean() throws IOException {
+		expect(Token.BOOLEAN);
+		return readBooleanLiteral();
+	}
+
+	/**
+	 * Consumes a <code>null</code> value.
+	 *
+	 * @throws IOException  If the next token is not <code>null</code>.
+	 */
+	public void nextNull() throws IOException {
+		expect(Token.NULL);
+		readLiteral("null");
+	}
+
+	/**
+	 * Consumes the next value and materializes it (recursively, for objects and arrays.)
+	 *
+	 * @return  The value.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public Object readValue() throws IOException {
+		switch (peek()) {
+			case BEGIN_OBJECT:
+				final JSONObject object = new JSONObject();
+				beginObject();
+				while (hasNext()) {
+					final String name = nextName();
+					object.put(name, readValue());
+				}
+				endObject();
+				return object;
+
+			case BEGIN_ARRAY:
+				final JSONArray array = new JSONArray();
+				beginArray();
+				while (hasNext()) {
+					array.add(readValue());
+				}
+				endArray();
+				return array;
+
+			case STRING:
+				return nextString();
+
+			case NUMBER:
+				return nextNumber();
+
+			case BOOLEAN:
+				return Boolean.valueOf(nextBoolean());
+
+			case NULL:
+				nextNull();
+				return null;
+
+			default:
+				throw syntaxError("Expected a value");
+		}
+	}
+
+	/**
+	 * Consumes the next value and materializes it, like {@link #readValue()}, keeping the text
+	 * of the value as it appears in the input if it is an object or an array.
+	 * <p>
+	 * Values that are read this way can be written out again without re-serializing them.
+	 *
+	 * @param sources  The map that the text of the value is put into, keyed by the value
+	 *                 (which should be compared by identity) - or <code>null</code>, if the
+	 *                 text is not needed.
+	 * @return  The value.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public Object readValue(final Map<Object, String> sources) throws IOException {
+		final Token token = peek();
+		if (sources == null || source != null || (token != Token.BEGIN_OBJECT && token != Token.BEGIN_ARRAY)) {
+			return readValue();
+		}
+
+		// the opening bracket has already been consumed by peek()
+		source = new StringBuilder();
+		sourceStart = pos - 1;
+		try {
+			final Object value = readValue();
+			source.append(buffer, sourceStart, pos - sourceStart);
+			sources.put(value, source.toString());
+			return value;
+		} finally {
+			source = null;
+		}
+	}
+
+	/**
+	 * Consumes the next value without materializing it.
+	 *
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public void skipValue() throws IOException {
+		int depth = 0;
+
+		do {
+			switch (peek()) {
+				case BEGIN_OBJECT:
+					beginObject();
+					depth++;
+					break;
+
+				case BEGIN_ARRAY:
+					beginArray();
+					depth++;
+					break;
+
+				case END_OBJECT:
+					endObject();
+					depth--;
+					break;
+
+				case END_ARRAY:
+					endArray();
+					depth--;
+					break;
+
+				case NAME:
+				case STRING:
+					peeked = null;
+					skipString();
+					break;
+
+				case NUMBER:
+					peeked = null;
+					skipNumber();
+					break;
+
+				case BOOLEAN:
+					nextBoolean();
+					break;
+
+				case NULL:
+					nextNull();
+					break;
+
+				default:
+					throw syntaxError("Expected a value");
+			}
+		} while (depth > 0);
+	}
+
+	/**
+	 * Returns the number of characters consumed from the input so far.
+	 *
+	 * @return  The current position in the input.
+	 */
+	public long getPosition() {
+		return bufferOffset + pos;
+	}
+
+	/**
+	 * Closes the underlying input.
+	 */
+	public void close() throws IOException {
+		peeked = null;
+		stack[0] = -1;
+		stackSize = 1;
+		in.close();
+	}
+
+	// ---- Lexer ----
+
+	private void expect(final Token token) throws IOException {
+		if (peek() != token) {
+			throw syntaxError("Expected " + token + " but was " + peeked);
+		}
+		peeked = null;
+	}
+
+	private void push(final int scope) {
+		if (stackSize == stack.length) {
+			final int[] newStack = new int[stackSize * 2];
+			System.arraycopy(stack, 0, newStack, 0, stackSize);
+			stack = newStack;
+		}
+		stack[stackSize++] = scope;
+	}
+
+	/**
+	 * Determines the kind of the value starting at the next non-whitespace character. The
+	 * opening character of strings, booleans and <code>null</code> is consumed; numbers are left
+	 * intact.
+	 */
+	private Token peekValue() throws IOException {
+		final int c = nextNonWhitespace(true);
+
+		switch (c) {
+			case '{':
+				return Token.BEGIN_OBJECT;
+			case '[':
+				return Token.BEGIN_ARRAY;
+			case '"':
+				return Token.STRING;
+			case 't':
+			case 'f':
+				pos--;
+				return Token.BOOLEAN;
+			case 'n':
+				pos--;
+				return Token.NULL;
+			default:
+				if (c == '-' || (c >= '0' && c <= '9')) {
+					pos--;
+					return Token.NUMBER;
+				}
+				pos--;
+				throw syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	private boolean fillBuffer() throws IOException {
+		if (source != null) {
+			source.append(buffer, sourceStart, limit - sourceStart);
+			sourceStart = 0;
+		}
+
+		bufferOffset += limit;
+		pos = 0;
+		limit = 0;
+
+		int read;
+		while ((read = in.read(buffer, 0, buffer.length)) == 0) {
+			// keep trying - the reader has not reached the end of input yet
+		}
+
+		if (read == -1) {
+			return false;
+		}
+
+		limit = read;
+		return true;
+	}
+
+	private int nextNonWhitespace(final boolean throwOnEof) throws IOException {
+		while (pos < limit || fillBuffer()) {
+			final char c = buffer[pos++];
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+				return c;
+			}
+		}
+
+		if (throwOnEof) {
+			throw new EOFException("Unexpected end of input at position " + getPosition());
+		}
+		return -1;
+	}
+
+	private char nextChar() throws IOException {
+		if (pos == limit && !fillBuffer()) {
+			throw new EOFException("Unexpected end of input at position " + getPosition());
+		}
+		return buffer[pos++];
+	}
+
+	/**
+	 * @return  The index of the name in <code>names</code> that consists of the given characters of {@link #buffer}, or <code>-1</code>.
+	 */
+	private int indexOf(final String[] names, final int start, final int length) {
+		for (int n = 0; n < names.length; n++) {
+			final String name = names[n];
+			if (name.length() != length) {
+				continue;
+			}
+
+			int i = 0;
+			while (i < length && name.charAt(i) == buffer[start + i]) {
+				i++;
+			}
+			if (i == length) {
+				return n;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the rest of a string whose opening quote has already been consumed.
+	 */
+	private String readString() throws IOException {
+		// fast path: the whole string is in the buffer and contains no escapes
+		for (int i = pos; i < limit; i++) {
+			final char c = buffer[i];
+			if (c == '"') {
+				final String result = (stringPool == null ? new String(buffer, pos, i - pos) : stringPool.intern(buffer, pos, i - pos));
+				pos = i + 1;
+				return result;
+			} else if (c == '\\') {
+				break;
+			}
+		}
+
+		scratch.setLength(0);
+		while (true) {
+			final char c = nextChar();
+			if (c == '"') {
+				return (stringPool == null ? scratch.toString() : stringPool.intern(scratch.toString()));
+			} else if (c == '\\') {
+				scratch.append(readEscape());
+			} else {
+				scratch.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Skips the rest of a string whose opening quote has already been consumed.
+	 */
+	private void skipString() throws IOException {
+		while (true) {
+			final char c = nextChar();
+			if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				readEscape();
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		final char c = nextChar();
+
+		switch (c) {
+			case '"':
+			case '\\':
+			case '/':
+				return c;
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'u':
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					final int digit = Character.digit(nextChar(), 16);
+					if (digit == -1) {
+						throw syntaxError("Invalid unicode escape sequence");
+					}
+					value = (value << 4) | digit;
+				}
+				return (char) value;
+			default:
+				throw syntaxError("Invalid escape sequence '\\" + c + "'");
+		}
+	}
+
+	private boolean isNumberChar(final char c) {
+		return ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E');
+	}
+
+	private Number readNumber() throws IOException {
+		scratch.setLength(0);
+		boolean decimal = false;
+
+		while (pos < limit || fillBuffer()) {
+			final char c = buffer[pos];
+			if (!isNumberChar(c)) {
+				break;
+			}
+			decimal = decimal || c == '.' || c == 'e' || c == 'E';
+			scratch.append(c);
+			pos++;
+		}
+
+		final String text = scratch.toString();
+
+		try {
+			if (decimal) {
+				return Double.valueOf(text);
+			} else if (text.length() <= 18) {
+				final long value = Long.parseLong(text);
+				if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+					return Integer.valueOf((int) value);
+				}
+				return Long.valueOf(value);
+			} else {
+				final BigInteger value = new BigInteger(text);
+				if (value.bitLength() < 64) {
+					return Long.valueOf(value.longValue());
+				}
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			throw syntaxError("Invalid number '" + text + "'");
+		}
+	}
+
+	private void skipNumber() throws IOException {
+		while ((pos < limit || fillBuffer()) && isNumberChar(buffer[pos])) {
+			pos++;
+		}
+	}
+
+	private boolean readBooleanLiteral() throws IOException {
+		if (pos < limit || fillBuffer()) {
+			if (buffer[pos] == 't') {
+				readLiteral("true");
+				return true;
+			}
+		}
+		readLiteral("false");
+		return false;
+	}
+
+	private void readLiteral(final String literal) throws IOException {
+		for (int i = 0; i < literal.length(); i++) {
+			if (nextChar() != literal.charAt(i)) {
+				throw syntaxError("Expected '" + literal + "'");
+			}
+		}
+	}
+
+	private IOException syntaxError(final String message) {
+		return new IOException("Malformed JSON at position " + getPosition() + ": " + message);
+	}
+
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A bounded table of canonical instances of short strings - property names and small values
+ * (status codes, enumeration constants, etc.) that are repeated throughout a document.
+ * <p>
+ * A {@link JSONStreamReader} that has a pool looks up every short string it reads in the pool,
+ * straight from its input buffer: where the string is found, the instance from the pool is
+ * returned and no new one is created, so all occurrences of the string share a single instance.
+ * <p>
+ * The table is direct-mapped: each string has exactly one slot (by its hash code), and a string
+ * that is not found replaces whatever was in its slot. The memory held by a pool is therefore
+ * bounded by its capacity and the maximum length of the strings in it, however many distinct
+ * strings a document contains - at the cost of strings that collide taking each other's place.
+ * <p>
+ * A pool can be backed by a <em>parent</em> pool that is shared by several documents (e.g. all
+ * the inputs of an activity): strings that are not found in the pool itself are looked up in
+ * the parent, and strings that are not found in either are added to both. A pool, and the counts
+ * of its lookups, must only be used by one thread at a time; a parent can be shared by any number
+ * of pools on any number of threads, as strings are immutable and the slots of its table are
+ * replaced as a whole.
+ * <p>
+ * Pools for single documents are best obtained from a {@link Recycler}, which reuses the tables
+ * of the documents that have been read, rather than allocating a new one for every document.
+ */
+public final class JSONStringPool {
+
+	/**
+	 * Default number of slots of the table.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	/**
+	 * Default maximum length of the strings in the pool - longer strings are hardly ever repeated.
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 32;
+
+	private final String[] table;
+
+	private final int mask;
+
+	private final int maxLength;
+
+	private final JSONStringPool parent;
+
+	/**
+	 * Number of strings that were found in the pool (or its parent).
+	 */
+	private long hitCount = 0;
+
+	/**
+	 * Number of strings that were not found, and were added to the pool.
+	 */
+	private long missCount = 0;
+
+	/**
+	 * Number of characters of the strings that were found - and didn't have to be copied again.
+	 */
+	private long savedCharacters = 0;
+
+	/**
+	 * Hands out pools of the default capacity, all backed by the same parent pool, for one document
+	 * at a time - reusing the table of a pool that has been given back, rather than allocating
+	 * another one. Each pool is handed out empty, with its counts at zero, so that it holds (and
+	 * counts) the strings of its own document only. A recycler only keeps the pools of its own
+	 * documents (e.g. of one activity), and can be used by any number of threads.
+	 */
+	public static final class Recycler {
+
+		private final JSONStringPool parent;
+
+		/**
+		 * The pools that have been given back, and are not in use - at most as many as
+		 * documents have been read at the same time.
+		 */
+		private final Queue<JSONStringPool> idlePools = new ConcurrentLinkedQueue<JSONStringPool>();
+
+		/**
+		 * Creates a recycler.
+		 *
+		 * @param parent  The pool shared by the documents, or <code>null</code>.
+		 */
+		public Recycler(final JSONStringPool parent) {
+			super();
+
+			this.parent = parent;
+		}
+
+		/**
+		 * Returns an empty pool for a document. The pool must be given back with
+		 * {@link #release(JSONStringPool)} once the document has been read and its outputs
+		 * serialized, and not be used any more after that.
+		 *
+		 * @return  The pool.
+		 */
+		public JSONStringPool acquire() {
+			final JSONStringPool pool = idlePools.poll();
+			return (pool != null ? pool : new JSONStringPool(parent));
+		}
+
+		/**
+		 * Gives back a pool returned by {@link #acquire()}, to be handed out again (emptied).
+		 *
+		 * @param pool  The pool.
+		 */
+		public void release(final JSONStringPool pool) {
+			// emptied straight away, so that an idle pool doesn't keep the strings of its document
+			pool.clear();
+			idlePools.offer(pool);
+		}
+
+	}
+
+	/**
+	 * Creates a pool of the default capacity, without a parent.
+	 */
+	public JSONStringPool() {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH, null);
+	}
+
+	/**
+	 * Creates a pool of the default capacity, backed by the given parent pool.
+	 *
+	 * @param parent  The pool shared with other documents, or <code>null</code>.
+	 */
+	public JSONStringPool(final JSONStringPool parent) {
+		this(DEFAULT_CAPACITY, DEFAULT_MAX_LENGTH, parent);
+	}
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param capacity  The number of slots of the table (rounded up to a power of two.)
+	 * @param maxLength  The maximum length of the strings in the pool.
+	 * @param parent  The pool shared with other documents, or <code>null</code>.
+	 * @throws IllegalArgumentException  If <code>capacity</code> is not between <code>1</code> and <code>2^30</code>, or <code>maxLength &lt; 0</code>.
+	 */
+	public JSONStringPool(final int capacity, final int maxLength, final JSONStringPool parent) throws IllegalArgumentException {
+		super();
+
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		} else if (maxLength < 0) {
+			throw new IllegalArgumentException("Invalid maximum length: " + maxLength);
+		}
+
+		final int size = (capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+		this.table = new String[size];
+		this.mask = size - 1;
+		this.maxLength = maxLength;
+		this.parent = parent;
+	}
+
+	/**
+	 * Returns the canonical instance of the string made of the given characters - creating it,
+	 * if it is not in the pool.
+	 *
+	 * @param chars  The characters.
+	 * @param start  The index of the first character of the string.
+	 * @param length  The length of the string.
+	 * @return  The string.
+	 */
+	public String intern(final char[] chars, final int start, final int length) {
+		if (length > maxLength) {
+			return new String(chars, start, length);
+		}
+
+		// the same hash code as that of the string
+		int hash = 0;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + chars[i];
+		}
+
+		final int slot = slot(hash);
+		String candidate = table[slot];
+		if (candidate == null || !matches(candidate, chars, start, length)) {
+			candidate = (parent == null ? null : parent.table[parent.slot(hash)]);
+			if (candidate == null || !matches(candidate, chars, start, length)) {
+				return add(slot, hash, new String(chars, start, length));
+			}
+			table[slot] = candidate;
+		}
+
+		hitCount++;
+		savedCharacters += length;
+		return candidate;
+	}
+
+	/**
+	 * Returns the canonical instance of the given string - adding it to the pool, if it is not
+	 * in the pool yet.
+	 *
+	 * @param string  The string.
+	 * @return  The string, or the instance of an equal string from the pool.
+	 */
+	public String intern(final String string) {
+		if (string == null || string.length() > maxLength) {
+			return string;
+		}
+
+		final int hash = string.hashCode();
+		final int slot = slot(hash);
+		String candidate = table[slot];
+		if (candidate == null || !candidate.equals(string)) {
+			candidate = (parent == null ? null : parent.table[parent.slot(hash)]);
+			if (candidate == null || !candidate.equals(string)) {
+				return add(slot, hash, string);
+			}
+			table[slot] = candidate;
+		}
+
+		if (candidate != string) {
+			hitCount++;
+			savedCharacters += string.length();
+		}
+		return candidate;
+	}
+
+	/**
+	 * Removes all strings from the table (but not from the parent), and sets the counts back to zero.
+	 */
+	private void clear() {
+		Arrays.fill(table, null);
+		hitCount = 0;
+		missCount = 0;
+		savedCharacters = 0;
+	}
+
+	private String add(final int slot, final int hash, final String string) {
+		missCount++;
+		table[slot] = string;
+		if (parent != null) {
+			parent.table[parent.slot(hash)] = string;
+		}
+		return string;
+	}
+
+	private int slot(final int hash) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private static boolean matches(final String candidate, final char[] chars, final int start, final int length) {
+		if (candidate.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (candidate.charAt(i) != chars[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return  The maximum length of the strings in the pool.
+	 */
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * @return  The number of strings that were found in the pool (or its parent), rather than created.
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return  The number of strings that were not found, and were added to the pool.
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return  The total length of the strings that were found in the pool (or its parent.)
+	 */
+	public long getSavedCharacters() {
+		return savedCharacters;
+	}
+
+}
@@ -0,0 +1,801 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+/**
+ * A compact, read-only JSON document, stored in a few flat arrays rather than as a tree of
+ * maps, lists and boxed values.
+ * <p>
+ * Every value of the document is a node, numbered in document order (the root is node
+ * <code>0</code>), with a kind and an <code>int</code> payload:
+ * <ul>
+ * <li>integers that fit in an <code>int</code> are stored in the payload itself;</li>
+ * <li>strings, and integers too large for a <code>long</code>, are indices into a pool of strings
+ *     (in which property names - repeated in every object of an array, typically - are shared);</li>
+ * <li>other numbers are indices into a pool of <code>long</code>s (doubles by their bits);</li>
+ * <li>objects and arrays are offsets into a pool of "slots": the number of children, followed by
+ *     the node of each child - and, for objects, the name of each child in a parallel pool.</li>
+ * </ul>
+ * The values of the document are accessed through {@link #getRoot()}: objects and arrays as
+ * read-only {@link Map} and {@link List} views of the nodes (so that they can be navigated
+ * like any other parsed document), strings, numbers and booleans as they are. The view or
+ * boxed number of a node is created the first time the node is accessed, and reused from
+ * then on.
+ * <p>
+ * Properties are looked up by the index of their name in the pool, so that names are never
+ * compared character by character: in the slots of the object one by one, or - for objects
+ * with more than {@link #MAX_LINEAR_NAME_LOOKUP} properties - in a hash table of the object,
+ * built when the document is parsed.
+ * <p>
+ * Instances are immutable, and can be shared by any number of threads.
+ *
+ * @see JSONTapeJsonProvider
+ */
+public final class JSONTape {
+
+	private static final byte OBJECT = 0;
+	private static final byte ARRAY = 1;
+	private static final byte STRING = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	private static final byte BIG_INTEGER = 6;
+	private static final byte TRUE = 7;
+	private static final byte FALSE = 8;
+	private static final byte NULL = 9;
+
+	/**
+	 * Objects with more properties than this are checked for duplicate names with a hash map,
+	 * rather than by comparing each name with all the previous ones.
+	 */
+	private static final int MAX_LINEAR_NAME_CHECK = 8;
+
+	/**
+	 * Objects with more properties than this get a hash table of their names, rather than
+	 * having the names of their slots compared one by one on lookups.
+	 */
+	private static final int MAX_LINEAR_NAME_LOOKUP = 8;
+
+	/**
+	 * The kind of each node.
+	 */
+	private final byte[] kinds;
+
+	/**
+	 * The payload of each node.
+	 */
+	private final int[] payloads;
+
+	/**
+	 * For each object and array: the number of children, followed by the nodes of the children.
+	 */
+	private final int[] slots;
+
+	/**
+	 * For each slot of a child of an object: the index of its name in {@link #strings}. For the
+	 * first slot of an object (its number of children): the offset of its hash table in
+	 * {@link #nameTables}, or <code>-1</code> if it has none.
+	 */
+	private final int[] names;
+
+	/**
+	 * For each object with a hash table of its names: the length of the table (a power of two),
+	 * followed by the table - the position of the child (from <code>1</code>) whose name hashes
+	 * to each entry, or <code>0</code> for none, with collisions in the following entries.
+	 */
+	private final int[] nameTables;
+
+	/**
+	 * The index in {@link #strings} of each property name.
+	 */
+	private final Map<String, Integer> nameIndices;
+
+	private final String[] strings;
+
+	private final long[] numbers;
+
+	/**
+	 * The views and boxed numbers of the nodes that have been accessed (by node), or
+	 * <code>null</code> until one is. Any thread may fill in an entry - they are immutable,
+	 * so a thread that doesn't see the entry of another just creates an equal one.
+	 */
+	private volatile Object[] values;
+
+	/**
+	 * Parses the JSON document provided by <code>jsonReader</code>.
+	 *
+	 * @param jsonReader  The source of the JSON document.
+	 * @return  The document.
+	 * @throws IllegalArgumentException  If <code>jsonReader == null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final JSONTape parse(final Reader jsonReader) throws IllegalArgumentException, IOException {
+		return parse(jsonReader, null);
+	}
+
+	/**
+	 * Parses the JSON document provided by <code>jsonReader</code>, sharing the instances of
+	 * repeated short strings (property names are shared in any case) through the given pool.
+	 *
+	 * @param jsonReader  The source of the JSON document.
+	 * @param stringPool  The pool of strings, or <code>null</code>.
+	 * @return  The document.
+	 * @throws IllegalArgumentException  If <code>jsonReader == null</code>.
+	 * @throws IOException  If the input cannot be read or is not well-formed JSON.
+	 */
+	public static final JSONTape parse(final Reader jsonReader, final JSONStringPool stringPool) throws IllegalArgumentException, IOException {
+		if (jsonReader == null) {
+			throw new IllegalArgumentException(new NullPointerException("jsonReader"));
+		}
+
+		final Builder builder = new Builder();
+		final JSONStreamReader reader = new JSONStreamReader(jsonReader, stringPool);
+		builder.read(reader);
+		// make sure that there is nothing but whitespace after the document
+		reader.peek();
+
+		return builder.build();
+	}
+
+	/**
+	 * Sole constructor.
+	 */
+	private JSONTape(final byte[] kinds, final int[] payloads, final int[] slots, final int[] names, final int[] nameTables,
+			final Map<String, Integer> nameIndices, final String[] strings, final long[] numbers) {
+		super();
+
+		this.kinds = kinds;
+		this.payloads = payloads;
+		this.slots = slots;
+		this.names = names;
+		this.nameTables = nameTables;
+		this.nameIndices = nameIndices;
+		this.strings = strings;
+		this.numbers = numbers;
+	}
+
+	/**
+	 * Returns the root value of the document.
+	 *
+	 * @return  A read-only {@link Map} or {@link List} view of the root, if it is an object or an array; the value itself otherwise.
+	 */
+	public Object getRoot() {
+		return value(0);
+	}
+
+	/**
+	 * Returns the number of values in the document.
+	 *
+	 * @return  The number of nodes.
+	 */
+	public int getNodeCount() {
+		return kinds.length;
+	}
+
+	/**
+	 * Returns (an estimate of) the number of bytes of heap that the document takes up, assuming
+	 * a 64-bit JVM with compressed references: the size of its arrays, of the index of its property
+	 * names, and of its distinct strings (but not of the views and boxed numbers of the nodes that
+	 * have been accessed.)
+	 *
+	 * @return  The size of the document, in bytes.
+	 */
+	public long getHeapSize() {
+		long size = 56 + (16 + kinds.length) + (16 + 4L * payloads.length) + (16 + 4L * slots.length)
+				+ (16 + 4L * names.length) + (16 + 4L * nameTables.length) + (64 + 48L * nameIndices.size())
+				+ (16 + 4L * strings.length) + (16 + 8L * numbers.length);
+		for (final String string : strings) {
+			size += 40 + 2L * string.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the document that the given value is the root of.
+	 *
+	 * @param jsonValue  The JSON value.
+	 * @return  The document, if <code>jsonValue</code> is the view of the root of a document; <code>null</code> otherwise.
+	 */
+	static JSONTape of(final Object jsonValue) {
+		if (jsonValue instanceof ObjectView && ((ObjectView) jsonValue).node == 0) {
+			return ((ObjectView) jsonValue).tape();
+		} else if (jsonValue instanceof ArrayView && ((ArrayView) jsonValue).node == 0) {
+			return ((ArrayView) jsonValue).tape();
+		}
+		return null;
+	}
+
+	private Object value(final int node) {
+		switch (kinds[node]) {
+			case STRING:
+				return strings[payloads[node]];
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case NULL:
+				return null;
+			default:
+				break;
+		}
+
+		Object[] values = this.values;
+		if (values == null) {
+			values = new Object[kinds.length];
+			this.values = values;
+		}
+		Object value = values[node];
+		if (value == null) {
+			value = newValue(node);
+			values[node] = value;
+		}
+		return value;
+	}
+
+	private Object newValue(final int node) {
+		switch (kinds[node]) {
+			case OBJECT:
+				return new ObjectView(node);
+			case ARRAY:
+				return new ArrayView(node);
+			case STRING:
+				return strings[payloads[node]];
+			case INT:
+				return Integer.valueOf(payloads[node]);
+			case LONG:
+				return Long.valueOf(numbers[payloads[node]]);
+			case DOUBLE:
+				return Double.valueOf(Double.longBitsToDouble(numbers[payloads[node]]));
+			case BIG_INTEGER:
+				return new BigInteger(strings[payloads[node]]);
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Serializes the given JSON value - nodes of a document are written straight from its arrays,
+	 * other maps and lists are walked, and anything else is serialized by json-smart.
+	 *
+	 * @param jsonValue  The JSON value.
+	 * @param out  Where the JSON text is written to.
+	 */
+	static void writeJSON(final Object jsonValue, final StringBuilder out) {
+		if (jsonValue instanceof ObjectView) {
+			final ObjectView view = (ObjectView) jsonValue;
+			view.tape().writeNode(view.node, out);
+		} else if (jsonValue instanceof ArrayView) {
+			final ArrayView view = (ArrayView) jsonValue;
+			view.tape().writeNode(view.node, out);
+		} else if (jsonValue instanceof Map) {
+			out.append('{');
+			boolean first = true;
+			for (final Map.Entry<?, ?> entry : ((Map<?, ?>) jsonValue).entrySet()) {
+				if (!first) {
+					out.append(',');
+				}
+				first = false;
+				writeString(String.valueOf(entry.getKey()), out);
+				out.append(':');
+				writeJSON(entry.getValue(), out);
+			}
+			out.append('}');
+		} else if (jsonValue instanceof List) {
+			out.append('[');
+			boolean first = true;
+			for (final Object element : (List<?>) jsonValue) {
+				if (!first) {
+					out.append(',');
+				}
+				first = false;
+				writeJSON(element, out);
+			}
+			out.append(']');
+		} else if (jsonValue instanceof String) {
+			writeString((String) jsonValue, out);
+		} else {
+			out.append(JSONValue.toJSONString(jsonValue));
+		}
+	}
+
+	private void writeNode(final int node, final StringBuilder out) {
+		switch (kinds[node]) {
+			case OBJECT: {
+				final int offset = payloads[node];
+				out.append('{');
+				for (int i = 1; i <= slots[offset]; i++) {
+					if (i > 1) {
+						out.append(',');
+					}
+					writeString(strings[names[offset + i]], out);
+					out.append(':');
+					writeNode(slots[offset + i], out);
+				}
+				out.append('}');
+				break;
+			}
+			case ARRAY: {
+				final int offset = payloads[node];
+				out.append('[');
+				for (int i = 1; i <= slots[offset]; i++) {
+					if (i > 1) {
+						out.append(',');
+					}
+					writeNode(slots[offset + i], out);
+				}
+				out.append(']');
+				break;
+			}
+			case STRING:
+				writeString(strings[payloads[node]], out);
+				break;
+			case INT:
+				out.append(payloads[node]);
+				break;
+			case LONG:
+				out.append(numbers[payloads[node]]);
+				break;
+			case BIG_INTEGER:
+				out.append(strings[payloads[node]]);
+				break;
+			default:
+				out.append(JSONValue.toJSONString(value(node)));
+				break;
+		}
+	}
+
+	/**
+	 * @return  The hash of the name with the given index in the pool.
+	 */
+	private static int hash(final int nameIndex) {
+		final int h = nameIndex * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static void writeString(final String value, final StringBuilder out) {
+		out.append('"');
+		JSONValue.escape(value, out);
+		out.append('"');
+	}
+
+	/**
+	 * Materializes the given JSON value as json-smart objects and arrays, which can be modified.
+	 *
+	 * @param jsonValue  The JSON value.
+	 * @return  A deep copy of the value, if it is a map or a list; the value itself otherwise.
+	 */
+	static Object copy(final Object jsonValue) {
+		if (jsonValue instanceof Map) {
+			final JSONObject object = new JSONObject();
+			for (final Map.Entry<?, ?> entry : ((Map<?, ?>) jsonValue).entrySet()) {
+				object.put(String.valueOf(entry.getKey()), copy(entry.getValue()));
+			}
+			return object;
+		} else if (jsonValue instanceof List) {
+			final JSONArray array = new JSONArray();
+			for (final Object element : (List<?>) jsonValue) {
+				array.add(copy(element));
+			}
+			return array;
+		}
+		return jsonValue;
+	}
+
+	/**
+	 * Read-only view of an object node.
+	 */
+	private final class ObjectView extends AbstractMap<String, Object> {
+
+		private final int node;
+
+		private ObjectView(final int node) {
+			this.node = node;
+		}
+
+		private JSONTape tape() {
+			return JSONTape.this;
+		}
+
+		/**
+		 * @return  The slot of the child with the given name, or <code>-1</code> if there is no such child.
+		 */
+		private int slotOf(final Object name) {
+			// a name that no object of the document has is not in the pool
+			final Integer index = nameIndices.get(name);
+			if (index == null) {
+				return -1;
+			}
+			final int nameIndex = index.intValue();
+
+			final int offset = payloads[node];
+			final int table = names[offset];
+			if (table != -1) {
+				final int mask = nameTables[table] - 1;
+				for (int i = hash(nameIndex) & mask; ; i = (i + 1) & mask) {
+					final int position = nameTables[table + 1 + i];
+					if (position == 0) {
+						return -1;
+					} else if (names[offset + position] == nameIndex) {
+						return offset + position;
+					}
+				}
+			}
+
+			for (int i = 1; i <= slots[offset]; i++) {
+				if (names[offset + i] == nameIndex) {
+					return offset + i;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public int size() {
+			return slots[payloads[node]];
+		}
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return (slotOf(key) != -1);
+		}
+
+		@Override
+		public Object get(final Object key) {
+			final int slot = slotOf(key);
+			return (slot == -1 ? null : value(slots[slot]));
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+
+				@Override
+				public int size() {
+					return ObjectView.this.size();
+				}
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					final int offset = payloads[node];
+					final int count = slots[offset];
+
+					return new Iterator<Map.Entry<String, Object>>() {
+
+						private int i = 1;
+
+						public boolean hasNext() {
+							return (i <= count);
+						}
+
+						public Map.Entry<String, Object> next() {
+							if (i > count) {
+								throw new NoSuchElementException();
+							}
+							final int slot = offset + i++;
+							return new AbstractMap.SimpleImmutableEntry<String, Object>(strings[names[slot]], value(slots[slot]));
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+
+					};
+				}
+
+			};
+		}
+
+	}
+
+	/**
+	 * Read-only view of an array node.
+	 */
+	private final class ArrayView extends AbstractList<Object> implements RandomAccess {
+
+		private final int node;
+
+		private ArrayView(final int node) {
+			this.node = node;
+		}
+
+		private JSONTape tape() {
+			return JSONTape.this;
+		}
+
+		@Override
+		public int size() {
+			return slots[payloads[node]];
+		}
+
+		@Override
+		public Object get(final int index) {
+			final int offset = payloads[node];
+			if (index < 0 || index >= slots[offset]) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + slots[offset]);
+			}
+			return value(slots[offset + 1 + index]);
+		}
+
+	}
+
+	/**
+	 * Builds the arrays of a document as it is read.
+	 */
+	private static final class Builder {
+
+		private byte[] kinds = new byte[64];
+
+		private int[] payloads = new int[64];
+
+		private int nodeCount;
+
+		private int[] slots = new int[64];
+
+		private int[] names = new int[64];
+
+		private int slotCount;
+
+		private int[] nameTables = new int[0];
+
+		private int nameTableCount;
+
+		/**
+		 * The children (and their names) of the objects and arrays being read - those of an
+		 * object or array are moved to the slots when it ends, so that they are contiguous.
+		 */
+		private int[] pendingNodes = new int[64];
+
+		private int[] pendingNames = new int[64];
+
+		private int pendingCount;
+
+		private String[] strings = new String[64];
+
+		private int stringCount;
+
+		/**
+		 * Indices of the property names in {@link #strings}, so that each of them is stored once.
+		 */
+		private final Map<String, Integer> nameIndices = new HashMap<String, Integer>();
+
+		private long[] numbers = new long[16];
+
+		private int numberCount;
+
+		private int read(final JSONStreamReader reader) throws IOException {
+			switch (reader.peek()) {
+				case BEGIN_OBJECT: {
+					final int node = addNode(OBJECT, 0);
+					final int mark = pendingCount;
+					// positions of the children by name, once there are too many of them to compare names one by one
+					Map<Integer, Integer> positions = null;
+					reader.beginObject();
+					while (reader.hasNext()) {
+						final int name = nameIndex(reader.nextName());
+						final int child = read(reader);
+
+						if (positions == null && pendingCount - mark > MAX_LINEAR_NAME_CHECK) {
+							positions = new HashMap<Integer, Integer>();
+							for (int i = mark; i < pendingCount; i++) {
+								positions.put(Integer.valueOf(pendingNames[i]), Integer.valueOf(i));
+							}
+						}
+
+						// a property with the same name as one before it replaces it (as it would in a map)
+						final int previous = indexOfName(name, mark, positions);
+						if (previous != -1) {
+							pendingNodes[previous] = child;
+						} else {
+							if (positions != null) {
+								positions.put(Integer.valueOf(name), Integer.valueOf(pendingCount));
+							}
+							addPending(child, name);
+						}
+					}
+					reader.endObject();
+					final int offset = addSlots(mark);
+					if (slots[offset] > MAX_LINEAR_NAME_LOOKUP) {
+						names[offset] = addNameTable(offset);
+					}
+					payloads[node] = offset;
+					return node;
+				}
+
+				case BEGIN_ARRAY: {
+					final int node = addNode(ARRAY, 0);
+					final int mark = pendingCount;
+					reader.beginArray();
+					while (reader.hasNext()) {
+						addPending(read(reader), -1);
+					}
+					reader.endArray();
+					payloads[node] = addSlots(mark);
+					return node;
+				}
+
+				case STRING:
+					return addNode(STRING, addString(reader.nextString()));
+
+				case NUMBER: {
+					final Number number = reader.nextNumber();
+					if (number instanceof Integer) {
+						return addNode(INT, number.intValue());
+					} else if (number instanceof Long) {
+						return addNode(LONG, addNumber(number.longValue()));
+					} else if (number instanceof Double) {
+						return addNode(DOUBLE, addNumber(Double.doubleToRawLongBits(number.doubleValue())));
+					}
+					return addNode(BIG_INTEGER, addString(number.toString()));
+				}
+
+				case BOOLEAN:
+					return addNode(reader.nextBoolean() ? TRUE : FALSE, 0);
+
+				case NULL:
+					reader.nextNull();
+					return addNode(NULL, 0);
+
+				default:
+					throw new IOException("Expected a value at position " + reader.getPosition());
+			}
+		}
+
+		private int addNode(final byte kind, final int payload) {
+			if (nodeCount == kinds.length) {
+				kinds = Arrays.copyOf(kinds, nodeCount * 2);
+				payloads = Arrays.copyOf(payloads, nodeCount * 2);
+			}
+			kinds[nodeCount] = kind;
+			payloads[nodeCount] = payload;
+			return nodeCount++;
+		}
+
+		/**
+		 * Adds a child of the object or array being read.
+		 *
+		 * @param name  The index of the name of the child, or <code>-1</code> for elements of arrays.
+		 */
+		private void addPending(final int node, final int name) {
+			if (pendingCount == pendingNodes.length) {
+				pendingNodes = Arrays.copyOf(pendingNodes, pendingCount * 2);
+				pendingNames = Arrays.copyOf(pendingNames, pendingCount * 2);
+			}
+			pendingNodes[pendingCount] = node;
+			pendingNames[pendingCount] = name;
+			pendingCount++;
+		}
+
+		/**
+		 * Names are pooled, so they are the same if their indices are.
+		 *
+		 * @param positions  The positions of the children by name, or <code>null</code> to compare the names one by one.
+		 * @return  The position of the pending child of the object being read with the given name, or <code>-1</code>.
+		 */
+		private int indexOfName(final int name, final int mark, final Map<Integer, Integer> positions) {
+			if (positions != null) {
+				final Integer position = positions.get(Integer.valueOf(name));
+				return (position == null ? -1 : position.intValue());
+			}
+
+			for (int i = mark; i < pendingCount; i++) {
+				if (pendingNames[i] == name) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Moves the pending children from <code>mark</code> on to the slots.
+		 *
+		 * @return  The offset of the slots of the object or array.
+		 */
+		private int addSlots(final int mark) {
+			final int count = pendingCount - mark;
+			final int required = slotCount + 1 + count;
+			if (required > slots.length) {
+				final int length = Math.max(required, slots.length * 2);
+				slots = Arrays.copyOf(slots, length);
+				names = Arrays.copyOf(names, length);
+			}
+
+			final int offset = slotCount;
+			slots[offset] = count;
+			names[offset] = -1;
+			System.arraycopy(pendingNodes, mark, slots, offset + 1, count);
+			System.arraycopy(pendingNames, mark, names, offset + 1, count);
+			slotCount = required;
+			pendingCount = mark;
+			return offset;
+		}
+
+		/**
+		 * Adds a hash table of the names of the children of the object with the given slots.
+		 *
+		 * @return  The offset of the table.
+		 */
+		private int addNameTable(final int offset) {
+			final int count = slots[offset];
+			// at most half full, so that collisions are few
+			final int length = Integer.highestOneBit(count) * 4;
+			final int table = nameTableCount;
+			final int required = table + 1 + length;
+			if (required > nameTables.length) {
+				nameTables = Arrays.copyOf(nameTables, Math.max(required, nameTables.length * 2));
+			}
+
+			nameTables[table] = length;
+			for (int position = 1; position <= count; position++) {
+				int i = hash(names[offset + position]) & (length - 1);
+				while (nameTables[table + 1 + i] != 0) {
+					i = (i + 1) & (length - 1);
+				}
+				nameTables[table + 1 + i] = position;
+			}
+			nameTableCount = required;
+			return table;
+		}
+
+		private int nameIndex(final String name) {
+			final Integer index = nameIndices.get(name);
+			if (index != null) {
+				return index.intValue();
+			}
+			final int newIndex = addString(name);
+			nameIndices.put(name, Integer.valueOf(newIndex));
+			return newIndex;
+		}
+
+		private int addString(final String value) {
+			if (stringCount == strings.length) {
+				strings = Arrays.copyOf(strings, stringCount * 2);
+			}
+			strings[stringCount] = value;
+			return stringCount++;
+		}
+
+		private int addNumber(final long value) {
+			if (numberCount == numbers.length) {
+				numbers = Arrays.copyOf(numbers, numberCount * 2);
+			}
+			numbers[numberCount] = value;
+			return numberCount++;
+		}
+
+		private JSONTape build() {
+			return new JSONTape(Arrays.copyOf(kinds, nodeCount), Arrays.copyOf(payloads, nodeCount),
+					Arrays.copyOf(slots, slotCount), Arrays.copyOf(names, slotCount),
+					Arrays.copyOf(nameTables, nameTableCount), nameIndices,
+					Arrays.copyOf(strings, stringCount), Arrays.copyOf(numbers, numberCount));
+		}
+
+	}
+
+}
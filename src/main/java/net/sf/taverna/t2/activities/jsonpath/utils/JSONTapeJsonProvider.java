@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import net.minidev.json.JSONArray;
+import net.minidev.json.JSONObject;
+
+import com.jayway.jsonpath.InvalidJsonException;
+import com.jayway.jsonpath.spi.Mode;
+import com.jayway.jsonpath.spi.impl.AbstractJsonProvider;
+
+/**
+ * A JSON provider that parses documents into {@link JSONTape}s - compact, read-only documents
+ * stored in flat arrays - and serializes them straight from those arrays.
+ * <p>
+ * The objects and arrays of a parsed document are read-only {@link Map} and {@link List} views,
+ * so they cannot be modified; the maps and lists that this provider creates (e.g. for the results
+ * of JSONPath expressions) are json-smart {@link JSONObject}s and {@link JSONArray}s, as are the
+ * copies made by {@link #clone(Object)}.
+ *
+ * @see JSONPathUtils#TAPE_PROVIDER
+ */
+public final class JSONTapeJsonProvider extends AbstractJsonProvider {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Sole constructor.
+	 */
+	public JSONTapeJsonProvider() {
+		super();
+	}
+
+	public Mode getMode() {
+		return Mode.SLACK;
+	}
+
+	public Object parse(final String json) throws InvalidJsonException {
+		return parse(new StringReader(json));
+	}
+
+	public Object parse(final Reader jsonReader) throws InvalidJsonException {
+		try {
+			return JSONTape.parse(jsonReader).getRoot();
+		} catch (IOException e) {
+			throw new InvalidJsonException(e);
+		}
+	}
+
+	public Object parse(final InputStream jsonStream) throws InvalidJsonException {
+		return parse(new InputStreamReader(jsonStream, UTF_8));
+	}
+
+	public String toJson(final Object obj) {
+		final StringBuilder out = new StringBuilder();
+		JSONTape.writeJSON(obj, out);
+		return out.toString();
+	}
+
+	public Map<String, Object> createMap() {
+		return new JSONObject();
+	}
+
+	public List<Object> createList() {
+		return new JSONArray();
+	}
+
+	@Override
+	public Object clone(final Object model) {
+		return JSONTape.copy(model);
+	}
+
+	@Override
+	public boolean isContainer(final Object obj) {
+		return (isList(obj) || isMap(obj));
+	}
+
+	@Override
+	public boolean isList(final Object obj) {
+		return (obj instanceof List);
+	}
+
+	@Override
+	public boolean isMap(final Object obj) {
+		return (obj instanceof Map);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Object> toList(final Object list) {
+		return (List<Object>) list;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, Object> toMap(final Object map) {
+		return (Map<String, Object>) map;
+	}
+
+	@Override
+	public Object getMapValue(final Object map, final String key) {
+		return ((Map<?, ?>) map).get(key);
+	}
+
+}
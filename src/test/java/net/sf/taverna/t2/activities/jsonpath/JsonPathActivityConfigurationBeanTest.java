@@ -0,0 +1,75 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
+
+import org.junit.Test;
+
+/**
+ * Checks which combinations of settings {@link JsonPathActivityConfigurationBean#isValid()} accepts.
+ */
+public class JsonPathActivityConfigurationBeanTest
+{
+  @Test
+  public void testDefaultInstanceIsValid() {
+    assertTrue(JsonPathActivityConfigurationBean.getDefaultInstance().isValid());
+  }
+
+
+  @Test
+  public void testMaxResults() {
+    JsonPathActivityConfigurationBean bean = JsonPathActivityConfigurationBean.getDefaultInstance();
+    bean.setMaxResults(10);
+    assertTrue(bean.isValid());
+    bean.setMaxResults(0);
+    assertTrue(bean.isValid());
+    bean.setMaxResults(-1);
+    assertFalse(bean.isValid());
+  }
+
+
+  @Test
+  public void testJsonProviders() {
+    JsonPathActivityConfigurationBean bean = JsonPathActivityConfigurationBean.getDefaultInstance();
+    for (String name : new String[] { null, "", JSONPathUtils.JSON_SMART_PROVIDER, JSONPathUtils.JACKSON_PROVIDER,
+        JSONPathUtils.TAPE_PROVIDER, "com.jayway.jsonpath.spi.impl.JsonSmartJsonProvider" }) {
+      bean.setJsonProvider(name);
+      assertTrue(name, bean.isValid());
+    }
+
+    // unknown names, classes that are not JSON providers, and providers that can't be instantiated
+    for (String name : new String[] { "unknown", "java.lang.String", "java.lang.Runtime",
+        "com.jayway.jsonpath.spi.JsonProvider", "com.jayway.jsonpath.spi.impl.AbstractJsonProvider" }) {
+      bean.setJsonProvider(name);
+      assertFalse(name, bean.isValid());
+    }
+  }
+
+
+  @Test
+  public void testStreamingRequiresTheDefaultProvider() {
+    JsonPathActivityConfigurationBean bean = JsonPathActivityConfigurationBean.getDefaultInstance();
+    bean.setStreamingEnabled(true);
+    assertTrue(bean.isValid());
+    bean.setJsonProvider(JSONPathUtils.JSON_SMART_PROVIDER);
+    assertTrue(bean.isValid());
+
+    bean.setJsonProvider(JSONPathUtils.TAPE_PROVIDER);
+    assertFalse(bean.isValid());
+    bean.setJsonProvider(JSONPathUtils.JACKSON_PROVIDER);
+    assertFalse(bean.isValid());
+  }
+
+
+  @Test
+  public void testVerbatimJsonRequiresStreaming() {
+    JsonPathActivityConfigurationBean bean = JsonPathActivityConfigurationBean.getDefaultInstance();
+    bean.setVerbatimJson(true);
+    assertFalse(bean.isValid());
+    bean.setStreamingEnabled(true);
+    assertTrue(bean.isValid());
+  }
+
+}
@@ -0,0 +1,105 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.junit.Test;
+
+/**
+ * Checks the budget of concurrently processed input of the {@link JsonPathActivityExecutor}.
+ */
+public class JsonPathActivityExecutorTest
+{
+  private final List<String> runs = new ArrayList<String>();
+
+
+  @Test
+  public void testInputsWithinTheBudgetAreAdmitted()
+  {
+    JsonPathActivityExecutor executor = new JsonPathActivityExecutor(null, 100);
+    assertTrue(executor.admit(60, invocation("a"), callback()));
+    assertTrue(executor.admit(40, invocation("b"), callback()));
+    assertEquals(100, executor.getAdmittedBytes());
+
+    executor.release(60);
+    executor.release(40);
+    assertEquals(0, executor.getAdmittedBytes());
+    assertTrue(runs.isEmpty());
+  }
+
+
+  @Test
+  public void testInputsBeyondTheBudgetAreQueuedInOrder()
+  {
+    JsonPathActivityExecutor executor = new JsonPathActivityExecutor(null, 100);
+    assertTrue(executor.admit(60, invocation("a"), callback()));
+    assertFalse(executor.admit(60, invocation("b"), callback()));
+    // queued behind the waiting invocation, although it would fit
+    assertFalse(executor.admit(10, invocation("c"), callback()));
+    assertEquals(2, executor.getWaitingCount());
+    assertTrue(runs.isEmpty());
+
+    executor.release(60);
+    assertEquals(0, executor.getWaitingCount());
+    assertEquals(70, executor.getAdmittedBytes());
+    assertEquals("[b, c]", runs.toString());
+  }
+
+
+  @Test
+  public void testInputsLargerThanTheBudgetAreAdmittedAlone()
+  {
+    JsonPathActivityExecutor executor = new JsonPathActivityExecutor(null, 100);
+    assertTrue(executor.admit(500, invocation("a"), callback()));
+    assertFalse(executor.admit(0, invocation("b"), callback()));
+
+    executor.release(500);
+    assertEquals("[b]", runs.toString());
+  }
+
+
+  @Test
+  public void testNoBudget()
+  {
+    JsonPathActivityExecutor executor = new JsonPathActivityExecutor(null, 0);
+    assertFalse(executor.hasBudget());
+    assertTrue(executor.admit(Long.MAX_VALUE, invocation("a"), callback()));
+    assertTrue(executor.admit(Long.MAX_VALUE, invocation("b"), callback()));
+    assertEquals(0, executor.getAdmittedBytes());
+  }
+
+
+  private Runnable invocation(final String name) {
+    return new Runnable() {
+      public void run() {
+        runs.add(name);
+      }
+    };
+  }
+
+
+  /**
+   * @return A callback that runs what it is asked to run straight away.
+   */
+  private static AsynchronousActivityCallback callback() {
+    return (AsynchronousActivityCallback) Proxy.newProxyInstance(AsynchronousActivityCallback.class.getClassLoader(),
+        new Class<?>[] { AsynchronousActivityCallback.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("requestRun")) {
+              ((Runnable) args[0]).run();
+            }
+            return null;
+          }
+        });
+  }
+
+}
@@ -0,0 +1,97 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Checks that the metrics of an activity are registered with the MBean server (if it is configured
+ * to) under its current expression, and unregistered when it is reconfigured or disposed of.
+ */
+public class JsonPathActivityMetricsTest
+{
+  @Test
+  public void testMetricsFollowTheConfiguration() throws Exception
+  {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    JsonPathActivity activity = new JsonPathActivity();
+    JsonPathActivityMetrics metrics = activity.getMetrics();
+
+    activity.configure(configuration("$.a"));
+    ObjectName first = metrics.getObjectName();
+    assertTrue(mbeanServer.isRegistered(first));
+    assertEquals("$.a", ObjectName.unquote(first.getKeyProperty(JsonPathActivityMetrics.JSON_PATH_KEY)));
+    assertEquals("$.a", mbeanServer.getAttribute(first, "JsonPath"));
+
+    // the same expression again - still registered under the same name
+    activity.configure(configuration("$.a"));
+    assertEquals(first, metrics.getObjectName());
+    assertTrue(mbeanServer.isRegistered(first));
+
+    activity.configure(configuration("$..b"));
+    ObjectName second = metrics.getObjectName();
+    assertFalse(mbeanServer.isRegistered(first));
+    assertTrue(mbeanServer.isRegistered(second));
+    assertEquals("$..b", ObjectName.unquote(second.getKeyProperty(JsonPathActivityMetrics.JSON_PATH_KEY)));
+
+    activity.dispose();
+    assertFalse(mbeanServer.isRegistered(second));
+    assertNull(metrics.getObjectName());
+  }
+
+
+  @Test
+  public void testActivitiesHaveTheirOwnNames() throws Exception
+  {
+    JsonPathActivity first = new JsonPathActivity();
+    JsonPathActivity second = new JsonPathActivity();
+    first.configure(configuration("$.a"));
+    second.configure(configuration("$.a"));
+    try {
+      assertFalse(first.getMetrics().getObjectName().equals(second.getMetrics().getObjectName()));
+    }
+    finally {
+      first.dispose();
+      second.dispose();
+    }
+  }
+
+
+  @Test
+  public void testMetricsAreOnlyRegisteredOnRequest() throws Exception
+  {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    JsonPathActivity activity = new JsonPathActivity();
+    JsonPathActivityMetrics metrics = activity.getMetrics();
+
+    JsonPathActivityConfigurationBean configBean = JsonPathActivityConfigurationBean.getDefaultInstance();
+    activity.configure(configBean);
+    assertNull(metrics.getObjectName());
+
+    activity.configure(configuration("$.a"));
+    ObjectName registered = metrics.getObjectName();
+    assertTrue(mbeanServer.isRegistered(registered));
+
+    // reconfigured without it - unregistered again, without the activity being disposed of
+    activity.configure(configBean);
+    assertFalse(mbeanServer.isRegistered(registered));
+    assertNull(metrics.getObjectName());
+  }
+
+
+  private static JsonPathActivityConfigurationBean configuration(String jsonPath) {
+    JsonPathActivityConfigurationBean configBean = JsonPathActivityConfigurationBean.getDefaultInstance();
+    configBean.setJsonPathAsString(jsonPath);
+    configBean.setMetricsMBeanEnabled(true);
+    return configBean;
+  }
+
+}
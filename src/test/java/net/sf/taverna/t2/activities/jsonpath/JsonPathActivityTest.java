@@ -0,0 +1,425 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.ErrorDocument;
+import net.sf.taverna.t2.reference.ErrorDocumentService;
+import net.sf.taverna.t2.reference.IdentifiedList;
+import net.sf.taverna.t2.reference.ListService;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceSetService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jayway.jsonpath.JsonPath;
+
+/**
+ * Runs the {@link JsonPathActivity} on a reference service that keeps everything in memory, and
+ * checks the outputs that it registers - or its failure.
+ */
+public class JsonPathActivityTest
+{
+  // stands for an error document among the resolved output values
+  private static final String ERROR = "<error>";
+
+  // the values of the references registered so far: strings, lists of references, or (for error
+  // documents) the error message
+  private final Map<T2Reference, Object> values = new ConcurrentHashMap<T2Reference, Object>();
+  private final Map<T2Reference, Boolean> errors = new ConcurrentHashMap<T2Reference, Boolean>();
+
+  private final JsonPathActivity activity = new JsonPathActivity();
+
+  // outcome of the invocation: its final outputs, or its failure
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile Map<String, T2Reference> outputs;
+  private volatile String failure;
+
+
+  @After
+  public void dispose()
+  {
+    activity.dispose();
+  }
+
+
+  @Test
+  public void testDocumentsThatCantBeQueriedFailOnTheirOwn() throws Exception
+  {
+    for (String backend : new String[] { JsonPathActivityExecutor.CALLBACK_BACKEND, JsonPathActivityExecutor.POOL_BACKEND }) {
+      for (int parallelism : new int[] { 1, 3 }) {
+        JsonPathActivityConfigurationBean configBean = configuration("$.missing");
+        configBean.setBatchMode(true);
+        configBean.setBatchParallelism(parallelism);
+        configBean.setExecutionBackend(backend);
+
+        // a fresh activity, reference service and outcome for each configuration
+        JsonPathActivityTest test = new JsonPathActivityTest();
+        try {
+          test.activity.configure(configBean);
+          test.execute(test.list(test.text("{ \"b\" : 1 }"), test.text("{ \"missing\" : 2 }"),
+              test.text("{ \"missing\" : { \"c\" : 3 } }"), test.text("{"), test.text("5")));
+
+          String message = backend + ", " + parallelism;
+          assertNull(message, test.failure);
+          assertEquals(message, Arrays.asList(ERROR, "2", "{\"c\":3}", ERROR, ERROR), test.resolve(test.outputs.get(JsonPathActivity.SINGLE_VALUE_JSON)));
+          assertEquals(message, Arrays.asList(ERROR, Arrays.asList("2"), Arrays.asList("{\"c\":3}"), ERROR, ERROR),
+              test.resolve(test.outputs.get(JsonPathActivity.OUT_TEXT)));
+        }
+        finally {
+          test.dispose();
+        }
+      }
+    }
+  }
+
+
+  @Test
+  public void testRecordsThatCantBeQueriedFailOnTheirOwn() throws Exception
+  {
+    JsonPathActivityConfigurationBean configBean = configuration("$.missing[1]");
+    configBean.setNdjsonInput(true);
+    activity.configure(configBean);
+    execute(text("{ \"missing\" : [ 1, 2 ] }\n{ \"b\" : 1 }\n{ \"missing\" : [ 3 ] }\n{ \"missing\" : 4 }\n\n{ \"missing\" : [ 5, 6 ] }"));
+
+    assertNull(failure);
+    assertEquals(Arrays.asList("2", ERROR, ERROR, ERROR, "6"), resolve(outputs.get(JsonPathActivity.SINGLE_VALUE_TEXT)));
+  }
+
+
+  @Test
+  public void testMemoizedDocumentsThatCantBeQueriedFail() throws Exception
+  {
+    JsonPathActivityConfigurationBean configBean = configuration("$.missing");
+    configBean.setResultMemoEnabled(true);
+    activity.configure(configBean);
+    execute(text("{ \"b\" : 1 }"));
+
+    assertNull(outputs);
+    assertTrue(failure, failure != null);
+  }
+
+
+  @Test
+  public void testDocumentsThatCantBeQueriedFailTheInvocation() throws Exception
+  {
+    for (String backend : new String[] { JsonPathActivityExecutor.CALLBACK_BACKEND, JsonPathActivityExecutor.POOL_BACKEND,
+        JsonPathActivityExecutor.VIRTUAL_BACKEND }) {
+      JsonPathActivityConfigurationBean configBean = configuration("$.missing");
+      configBean.setExecutionBackend(backend);
+
+      JsonPathActivityTest test = new JsonPathActivityTest();
+      try {
+        test.activity.configure(configBean);
+        test.execute(test.text("{ \"b\" : 1 }"));
+
+        assertNull(backend, test.outputs);
+        assertTrue(backend, test.failure != null);
+        assertEquals(backend, 1, test.activity.getMetrics().getFailureCount());
+      }
+      finally {
+        test.dispose();
+      }
+    }
+  }
+
+
+  @Test
+  public void testStringsAreInternedPerDocument() throws Exception
+  {
+    JsonPathActivityConfigurationBean configBean = configuration("$.name");
+    configBean.setBatchMode(true);
+    configBean.setBatchParallelism(1);
+    configBean.setStringInterning(JsonPathActivityConfigurationBean.INTERN_DOCUMENT);
+    activity.configure(configBean);
+    execute(list(text("{ \"name\" : \"value\" }"), text("{ \"name\" : \"value\" }")));
+
+    // neither document repeats a string of its own - and doesn't find those of the other one
+    assertNull(failure);
+    assertEquals(Arrays.asList("value", "value"), resolve(outputs.get(JsonPathActivity.SINGLE_VALUE_TEXT)));
+    assertEquals(0, activity.getMetrics().getInternedStrings());
+  }
+
+
+  @Test
+  public void testResultLimitGivesTheFirstResults() throws Exception
+  {
+    String json = "{ \"z\" : { \"id\" : 1 }, \"y\" : { \"id\" : 2 }, \"x\" : { \"id\" : 3 }, \"w\" : [ { \"id\" : 4 }, { \"id\" : 5 } ] }";
+    for (String jsonPath : new String[] { "$..id", "$.*.id" }) {
+      for (int maxResults : new int[] { 0, 1, 2 }) {
+        for (boolean lists : new boolean[] { true, false }) {
+          JsonPathActivityConfigurationBean configBean = configuration(jsonPath);
+          configBean.setStreamingEnabled(true);
+          configBean.setMaxResults(maxResults);
+          if (!lists) {
+            configBean.getOmittedOutputs().addAll(Arrays.asList(JsonPathActivity.OUT_TEXT, JsonPathActivity.OUT_JSON));
+          }
+
+          JsonPathActivityTest test = new JsonPathActivityTest();
+          try {
+            test.activity.configure(configBean);
+            test.execute(test.text(json));
+
+            // the first of the results of json-path on the complete document
+            List<?> expected = (List<?>) JsonPath.read(json, jsonPath);
+            String message = jsonPath + ", " + maxResults + ", " + lists;
+            assertEquals(message, String.valueOf(expected.get(0)), test.resolve(test.outputs.get(JsonPathActivity.SINGLE_VALUE_TEXT)));
+            if (lists) {
+              List<String> first = new ArrayList<String>();
+              for (Object value : expected.subList(0, maxResults == 0 ? expected.size() : maxResults)) {
+                first.add(String.valueOf(value));
+              }
+              assertEquals(message, first, test.resolve(test.outputs.get(JsonPathActivity.OUT_TEXT)));
+            }
+          }
+          finally {
+            test.dispose();
+          }
+        }
+      }
+    }
+  }
+
+
+  private static JsonPathActivityConfigurationBean configuration(String jsonPath) {
+    JsonPathActivityConfigurationBean configBean = JsonPathActivityConfigurationBean.getDefaultInstance();
+    configBean.setJsonPathAsString(jsonPath);
+    return configBean;
+  }
+
+
+  /**
+   * Invokes the activity with the given input, and waits for it to complete or to fail.
+   */
+  private void execute(T2Reference input) throws InterruptedException
+  {
+    Map<String, T2Reference> inputs = new ConcurrentHashMap<String, T2Reference>();
+    inputs.put(JsonPathActivity.IN_JSON, input);
+    activity.executeAsynch(inputs, callback());
+    assertTrue("Neither completed nor failed", done.await(30, TimeUnit.SECONDS));
+  }
+
+
+  // ---- IN-MEMORY REFERENCES ----
+
+  private T2Reference text(String text) {
+    return reference(T2ReferenceType.ReferenceSet, text, false);
+  }
+
+
+  private T2Reference list(T2Reference... items) {
+    return reference(T2ReferenceType.IdentifiedList, new ArrayList<T2Reference>(Arrays.asList(items)), false);
+  }
+
+
+  private T2Reference reference(final T2ReferenceType type, Object value, final boolean error)
+  {
+    T2Reference reference = (T2Reference) Proxy.newProxyInstance(T2Reference.class.getClassLoader(),
+        new Class<?>[] { T2Reference.class }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getReferenceType")) {
+              return type;
+            }
+            if (name.equals("containsErrors")) {
+              return error || (type == T2ReferenceType.IdentifiedList && containsErrors(proxy));
+            }
+            if (name.equals("equals")) {
+              return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+              return System.identityHashCode(proxy);
+            }
+            if (name.equals("getDepth")) {
+              return 0;
+            }
+            return (name.equals("toString") ? type + "@" + System.identityHashCode(proxy) : null);
+          }
+        });
+    values.put(reference, value);
+    errors.put(reference, error);
+    return reference;
+  }
+
+
+  private boolean containsErrors(Object list) {
+    for (Object item : (List<?>) values.get(list)) {
+      if (((T2Reference) item).containsErrors()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * @return The value behind the given reference, with the items of lists resolved as well -
+   *         and {@link #ERROR} for error documents.
+   */
+  private Object resolve(T2Reference reference)
+  {
+    if (errors.get(reference)) {
+      return ERROR;
+    }
+    Object value = values.get(reference);
+    if (!(value instanceof List)) {
+      return value;
+    }
+    List<Object> items = new ArrayList<Object>();
+    for (Object item : (List<?>) value) {
+      items.add(item instanceof T2Reference ? resolve((T2Reference) item) : item);
+    }
+    return items;
+  }
+
+
+  /**
+   * Registers the given value - a string, a list of strings or of references (or of lists of them).
+   */
+  private T2Reference register(Object value)
+  {
+    if (!(value instanceof List)) {
+      return (value instanceof T2Reference ? (T2Reference) value : text((String) value));
+    }
+    List<T2Reference> items = new ArrayList<T2Reference>();
+    for (Object item : (List<?>) value) {
+      items.add(register(item));
+    }
+    return list(items.toArray(new T2Reference[items.size()]));
+  }
+
+
+  /**
+   * @return A proxy of the given interface whose methods are handled by the given handler, and
+   *         whose remaining methods (those of {@link List}, for an {@link IdentifiedList}) by the given list.
+   */
+  private static <T> T proxy(Class<T> type, final List<?> list, final InvocationHandler handler)
+  {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (list != null && method.getDeclaringClass().isAssignableFrom(List.class)) {
+          return method.invoke(list, args);
+        }
+        return handler.invoke(proxy, method, args);
+      }
+    }));
+  }
+
+
+  private ReferenceService referenceService()
+  {
+    final ListService listService = proxy(ListService.class, null, new InvocationHandler() {
+      @SuppressWarnings("unchecked")
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getList")) {
+          return identifiedList((T2Reference) args[0]);
+        }
+        if (method.getName().equals("registerList")) {
+          return identifiedList(list(((List<T2Reference>) args[0]).toArray(new T2Reference[0])));
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+    final ErrorDocumentService errorDocumentService = proxy(ErrorDocumentService.class, null, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        final T2Reference error = reference(T2ReferenceType.ErrorDocument, args[0], true);
+        return proxy(ErrorDocument.class, null, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return (method.getName().equals("getId") ? error : null);
+          }
+        });
+      }
+    });
+    final ReferenceSetService referenceSetService = proxy(ReferenceSetService.class, null, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return null;
+      }
+    });
+    return proxy(ReferenceService.class, null, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("renderIdentifier")) {
+          return values.get(args[0]);
+        }
+        if (name.equals("register")) {
+          return register(args[0]);
+        }
+        if (name.equals("getListService")) {
+          return listService;
+        }
+        if (name.equals("getErrorDocumentService")) {
+          return errorDocumentService;
+        }
+        if (name.equals("getReferenceSetService")) {
+          // no external references - values are rendered
+          return referenceSetService;
+        }
+        throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+
+
+  @SuppressWarnings("unchecked")
+  private IdentifiedList<T2Reference> identifiedList(final T2Reference reference)
+  {
+    return proxy(IdentifiedList.class, (List<?>) values.get(reference), new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return (method.getName().equals("getId") ? reference : null);
+      }
+    });
+  }
+
+
+  /**
+   * @return A callback that runs what it is asked to run straight away, and records the final outputs or the failure.
+   */
+  private AsynchronousActivityCallback callback()
+  {
+    final ReferenceService referenceService = referenceService();
+    final InvocationContext context = proxy(InvocationContext.class, null, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return (method.getName().equals("getReferenceService") ? referenceService : null);
+      }
+    });
+    return proxy(AsynchronousActivityCallback.class, null, new InvocationHandler() {
+      @SuppressWarnings("unchecked")
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getContext")) {
+          return context;
+        }
+        if (name.equals("requestRun")) {
+          ((Runnable) args[0]).run();
+        }
+        else if (name.equals("receiveResult") && ((int[]) args[1]).length == 0) {
+          outputs = (Map<String, T2Reference>) args[0];
+          done.countDown();
+        }
+        else if (name.equals("fail")) {
+          failure = (String) args[0];
+          done.countDown();
+        }
+        return null;
+      }
+    });
+  }
+
+}
@@ -0,0 +1,136 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+
+import net.minidev.json.JSONValue;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONPathUtils;
+import net.sf.taverna.t2.activities.jsonpath.utils.JSONTape;
+import net.sf.taverna.t2.reference.T2Reference;
+
+import org.junit.Test;
+
+import com.jayway.jsonpath.JsonPath;
+
+/**
+ * Checks the weighting, eviction and expiry of the {@link JsonPathDocumentCache}.
+ */
+public class JsonPathDocumentCacheTest
+{
+  private static final String JSON = "{ \"items\" : [ { \"id\" : 1, \"name\" : \"first\" }, { \"id\" : 2, \"name\" : null } ], \"count\" : 2 }";
+
+
+  @Test
+  public void testCachedDocumentsGiveTheSameResults() throws Exception
+  {
+    JsonPathDocumentCache cache = new JsonPathDocumentCache(JsonPathDocumentCache.DEFAULT_MAX_WEIGHT, 60000);
+    T2Reference reference = reference("a");
+    cache.put(reference, null, JSONValue.parseWithException(JSON));
+
+    Object cached = cache.get(reference, JSONPathUtils.JSON_SMART_PROVIDER);
+    for (String expression : new String[] { "$.items[*].id", "$..name", "$.items[?(@.id > 1)]", "$.count" }) {
+      Object expected = JsonPath.read(JSON, expression);
+      Object actual = JsonPath.read(cached, expression);
+      assertEquals(expression, expected, actual);
+    }
+    assertEquals(1, cache.getHitCount());
+  }
+
+
+  @Test
+  public void testDocumentsAreKeyedByProvider() throws Exception
+  {
+    JsonPathDocumentCache cache = new JsonPathDocumentCache(JsonPathDocumentCache.DEFAULT_MAX_WEIGHT, 60000);
+    T2Reference reference = reference("a");
+    Object document = JSONValue.parseWithException(JSON);
+    cache.put(reference, JSONPathUtils.JSON_SMART_PROVIDER, document);
+
+    assertSame(document, cache.get(reference, null));
+    assertNull(cache.get(reference, JSONPathUtils.TAPE_PROVIDER));
+    assertNull(cache.get(reference("b"), null));
+  }
+
+
+  @Test
+  public void testDocumentsAreWeightedByHeapSize() throws Exception
+  {
+    JsonPathDocumentCache cache = new JsonPathDocumentCache(JsonPathDocumentCache.DEFAULT_MAX_WEIGHT, 60000);
+    Object tree = JSONValue.parseWithException(JSON);
+    Object tape = JSONTape.parse(new StringReader(JSON)).getRoot();
+
+    cache.put(reference("tree"), null, tree);
+    assertEquals(JSONPathUtils.estimateHeapSize(tree), cache.getWeight());
+    assertTrue(cache.getWeight() > 2 * JSON.length());
+
+    cache.clear();
+    cache.put(reference("tape"), JSONPathUtils.TAPE_PROVIDER, tape);
+    assertEquals(JSONPathUtils.estimateHeapSize(tape), cache.getWeight());
+    assertTrue(cache.getWeight() < JSONPathUtils.estimateHeapSize(tree));
+  }
+
+
+  @Test
+  public void testLeastRecentlyUsedDocumentsAreEvicted() throws Exception
+  {
+    Object document = JSONValue.parseWithException(JSON);
+    long weight = JSONPathUtils.estimateHeapSize(document);
+    JsonPathDocumentCache cache = new JsonPathDocumentCache(2 * weight, 60000);
+
+    cache.put(reference("a"), null, document);
+    cache.put(reference("b"), null, document);
+    cache.get(reference("a"), null);
+    cache.put(reference("c"), null, document);
+
+    assertEquals(2, cache.getSize());
+    assertNull(cache.get(reference("b"), null));
+    assertSame(document, cache.get(reference("a"), null));
+    assertSame(document, cache.get(reference("c"), null));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+
+  @Test
+  public void testExpiredDocumentsAreDropped() throws Exception
+  {
+    JsonPathDocumentCache cache = new JsonPathDocumentCache(JsonPathDocumentCache.DEFAULT_MAX_WEIGHT, -1);
+    cache.put(reference("a"), null, JSONValue.parseWithException(JSON));
+
+    assertNull(cache.get(reference("a"), null));
+    assertEquals(0, cache.getSize());
+    assertEquals(0, cache.getWeight());
+  }
+
+
+  /**
+   * @return A reference that is identified by the given name.
+   */
+  static T2Reference reference(final String name) {
+    return (T2Reference) Proxy.newProxyInstance(T2Reference.class.getClassLoader(), new Class<?>[] { T2Reference.class },
+        new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("toUri")) {
+              return URI.create("t2:ref//test?" + name);
+            }
+            else if (method.getName().equals("equals")) {
+              return Boolean.valueOf(proxy == args[0]);
+            }
+            else if (method.getName().equals("hashCode")) {
+              return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            else if (method.getName().equals("toString")) {
+              return "t2:ref//test?" + name;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+}
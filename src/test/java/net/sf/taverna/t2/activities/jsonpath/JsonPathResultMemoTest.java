@@ -0,0 +1,124 @@
+package net.sf.taverna.t2.activities.jsonpath;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the memory and the disk tier of the {@link JsonPathResultMemo}.
+ */
+public class JsonPathResultMemoTest
+{
+  private File directory;
+
+
+  @Before
+  public void createDirectory() throws IOException
+  {
+    directory = File.createTempFile("memo", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+
+  @After
+  public void deleteDirectory()
+  {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted()
+  {
+    JsonPathResultMemo memo = new JsonPathResultMemo(20, null, 0);
+    memo.put("a", values("12345"));
+    memo.put("b", values("12345"));
+    memo.get("a");
+    memo.put("c", values("12345"));
+
+    assertEquals(values("12345"), memo.get("a"));
+    assertNull(memo.get("b"));
+    assertEquals(values("12345"), memo.get("c"));
+    assertEquals(20, memo.getWeight());
+    assertEquals(1, memo.getEvictionCount());
+  }
+
+
+  @Test
+  public void testValuesAreReadBackFromDisk()
+  {
+    StringBuilder large = new StringBuilder();
+    for (int i = 0; i < 30000; i++) {
+      large.append("\u00e9\u4e2d");
+    }
+    Map<String, Object> values = values(large.toString());
+    values.put("none", null);
+
+    new JsonPathResultMemo(1000000, directory, 1000000).put("a", values);
+
+    // a new memo has nothing in memory
+    JsonPathResultMemo memo = new JsonPathResultMemo(1000000, directory, 1000000);
+    assertEquals(values, memo.get("a"));
+    assertEquals(1, memo.getDiskHitCount());
+    assertEquals(values, memo.get("a"));
+    assertEquals(1, memo.getMemoryHitCount());
+  }
+
+
+  @Test
+  public void testFilesOfOtherFormatsAreDeleted() throws IOException
+  {
+    File file = new File(directory, "a.memo");
+    ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+    out.writeObject(new HashMap<String, Object>(values("x")));
+    out.close();
+
+    assertNull(new JsonPathResultMemo(1000000, directory, 1000000).get("a"));
+    assertFalse(file.exists());
+  }
+
+
+  @Test
+  public void testLeastRecentlyUsedFilesAreDeleted()
+  {
+    JsonPathResultMemo memo = new JsonPathResultMemo(0, directory, 1000000);
+    memo.put("a", values("12345"));
+    memo.put("b", values("12345"));
+    File a = new File(directory, "a.memo");
+    File b = new File(directory, "b.memo");
+    a.setLastModified(b.lastModified() - 60000);
+
+    memo.setMaxDiskSize(b.length());
+    assertFalse(a.exists());
+    assertEquals(values("12345"), memo.get("b"));
+  }
+
+
+  /**
+   * @return Output values as the activity memoizes them: a single value, and a node list.
+   */
+  private static Map<String, Object> values(String value)
+  {
+    Map<String, Object> values = new HashMap<String, Object>();
+    values.put(JsonPathActivity.SINGLE_VALUE_TEXT, value);
+    values.put(JsonPathActivity.OUT_TEXT, Arrays.asList(value, null, ""));
+    return values;
+  }
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Checks that {@link JSONPathDefiniteAccessor} selects the same value as the interpreted filters
+ * of json-path, with every JSON provider - and leaves every other case to them.
+ */
+public class JSONPathDefiniteAccessorTest {
+
+	/**
+	 * Documents where the steps of the expressions below find values of every type, and lists,
+	 * nulls, missing properties, indices out of range and values of the wrong type.
+	 */
+	private static final String[] DOCUMENTS = {
+		"{ \"a\" : { \"b\" : 1, \"c\" : [ 10, { \"d\" : \"x\" }, [ 20, 21 ] ] }, \"e\" : null, \"f\" : \"s\" }",
+		"{ \"a\" : { \"b\" : null, \"c\" : [ ] }, \"e\" : [ { \"a\" : 1 } ], \"f\" : { \"0\" : true } }",
+		"{ \"a\" : [ { \"b\" : 2, \"c\" : [ 1 ] }, { \"b\" : [ 3, 4 ] } ], \"e\" : { } }",
+		"{ \"a\" : 1.5, \"e\" : [ [ { \"a\" : 2 } ], { \"a\" : 3 } ] }",
+		"[ { \"a\" : { \"b\" : 5 } }, [ 6, 7 ], null, \"x\" ]",
+		"[ ]",
+	};
+
+	private static final String[] EXPRESSIONS = {
+		"$.a",
+		"$.a.b",
+		"$.a.c",
+		"$.a.c[0]",
+		"$.a.c[1].d",
+		"$.a.c[2][1]",
+		"$.a.c[5]",
+		"$.a[0]",
+		"$.a[0].b",
+		"$.a[1].b",
+		"$.a[0].c[0]",
+		"$.a.b.c",
+		"$['a']['b']",
+		"$.e",
+		"$.e.a",
+		"$.e[0]",
+		"$.e[0].a",
+		"$.e[0][0].a",
+		"$.e[1].a",
+		"$.f",
+		"$.f.g",
+		"$.f[0]",
+		"$.f.0",
+		"$[0]",
+		"$[0].a.b",
+		"$[1][1]",
+		"$[2]",
+		"$[2].a",
+		"$[3].a",
+		"$[4]",
+		"$.x",
+	};
+
+	@Test
+	public void testSameResultsAsInterpretedFilters() throws Exception {
+		for (final String providerName : new String[] { JSONPathUtils.JSON_SMART_PROVIDER, JSONPathUtils.JACKSON_PROVIDER, JSONPathUtils.TAPE_PROVIDER }) {
+			final JsonProvider jsonProvider = JSONPathUtils.createProvider(providerName);
+			for (final String json : DOCUMENTS) {
+				final Object document = jsonProvider.parse(json);
+				for (final String expression : EXPRESSIONS) {
+					final String message = providerName + ": " + expression + " on " + json;
+					final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+					assertNotNull(message, queryPlan.definiteAccessor);
+
+					final Object expected = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+						public Object evaluate() {
+							return JSONPathUtils.interpret(jsonProvider, queryPlan, document);
+						}
+
+					});
+					final Object actual = queryPlan.definiteAccessor.read(document, jsonProvider);
+					if (actual != JSONPathDefiniteAccessor.MISSING) {
+						// the very same value
+						assertSame(message, expected, actual);
+					} else {
+						// left to the interpreted filters: no single value (or a failure)
+						assertTrue(message, expected == null || expected instanceof JSONPathEquivalence.Failure
+								|| jsonProvider.isList(expected));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testValuesAreFound() throws Exception {
+		final JsonProvider jsonProvider = JSONPathUtils.createProvider();
+		final Object document = jsonProvider.parse(DOCUMENTS[0]);
+		for (final String expression : new String[] { "$.a", "$.a.b", "$.a.c[0]", "$.a.c[1].d", "$.a.c[2][1]", "$['a']['b']", "$.f" }) {
+			final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+			assertTrue(expression, queryPlan.definiteAccessor.read(document, jsonProvider) != JSONPathDefiniteAccessor.MISSING);
+		}
+	}
+
+	@Test
+	public void testSameResultsAsJsonPath() throws Exception {
+		for (final Map.Entry<String, String[]> testCase : JSONPathEquivalence.getCases().entrySet()) {
+			final Object document = JSONPathEquivalence.parse(testCase.getKey());
+			for (final String expression : testCase.getValue()) {
+				final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+				final Object actual = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() {
+						return JSONPathUtils.read(JSONPathUtils.createProvider(), queryPlan, document);
+					}
+
+				});
+				JSONPathEquivalence.assertSameOutcome(expression, JSONPathEquivalence.expected(expression, testCase.getKey()), actual);
+			}
+		}
+	}
+
+	@Test
+	public void testOtherExpressionsAreNotCompiled() {
+		for (final String expression : new String[] { "$", "$.*", "$.a[*]", "$..a", "$.a[0,1]", "$.a[:2]", "$.a[-1:]", "$.a[?(@.b)]" }) {
+			assertNull(expression, JSONPathQueryPlan.compile(expression).definiteAccessor);
+		}
+	}
+
+}
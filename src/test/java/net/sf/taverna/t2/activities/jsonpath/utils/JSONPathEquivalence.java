@@ -0,0 +1,333 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.minidev.json.JSONValue;
+
+import com.jayway.jsonpath.JsonPath;
+
+/**
+ * Representative documents and expressions that the alternative evaluation paths (streaming,
+ * tapes, compiled predicates, direct lookups, parallel evaluation, ...) are checked against
+ * plain {@link JsonPath#read(Object)} with.
+ * <p>
+ * The documents cover deep scans, filters, missing keys, <code>null</code>s and large arrays;
+ * {@link #MALFORMED} holds documents that are not well-formed. An expression is expected to
+ * give the same result on every path - or to fail on every path, where json-path fails.
+ */
+final class JSONPathEquivalence {
+
+	/**
+	 * The document of the JSONPath article.
+	 */
+	static final String STORE =
+			"{ \"store\" : {\n" +
+			"    \"book\" : [\n" +
+			"      { \"category\" : \"reference\", \"author\" : \"Nigel Rees\", \"title\" : \"Sayings of the Century\", \"price\" : 8.95 },\n" +
+			"      { \"category\" : \"fiction\", \"author\" : \"Evelyn Waugh\", \"title\" : \"Sword of Honour\", \"price\" : 12.99 },\n" +
+			"      { \"category\" : \"fiction\", \"author\" : \"Herman Melville\", \"title\" : \"Moby Dick\", \"isbn\" : \"0-553-21311-3\", \"price\" : 8.99 },\n" +
+			"      { \"category\" : \"fiction\", \"author\" : \"J. R. R. Tolkien\", \"title\" : \"The Lord of the Rings\", \"isbn\" : \"0-395-19395-8\", \"price\" : 22 }\n" +
+			"    ],\n" +
+			"    \"bicycle\" : { \"color\" : \"red\", \"price\" : 19.95, \"gears\" : [ 1, 2, 3 ] }\n" +
+			"  },\n" +
+			"  \"expensive\" : 10\n" +
+			"}";
+
+	static final String[] STORE_EXPRESSIONS = {
+		"$",
+		"$.store",
+		"$.store.book",
+		"$.store.book[0]",
+		"$.store.book[3].title",
+		"$.store.book[*]",
+		"$.store.book[*].author",
+		"$.store.*",
+		"$.store.bicycle.color",
+		"$.store.bicycle.gears[1]",
+		"$.store['bicycle'].price",
+		"$.expensive",
+		"$..price",
+		"$..author",
+		"$..book",
+		"$..isbn",
+		"$.store..price",
+		"$..bicycle.color",
+		"$..book[2]",
+		"$..book[*].title",
+		"$.store.book[?(@.price < 10)]",
+		"$.store.book[?(@.price > 10)].title",
+		"$.store.book[?(@.price <= 8.99)].author",
+		"$.store.book[?(@.price == 22)].title",
+		"$.store.book[?(@.category == 'fiction')].author",
+		"$.store.book[?(@.isbn)]",
+		"$..book[?(@.price < 10)].title",
+		"$.store.book[0,2].title",
+		"$.store.book[:2]",
+		"$.store.book[-1:]",
+		"$.store.book[*].isbn",
+		"$.missing",
+		"$.store.missing",
+		"$.store.book[0].isbn",
+		"$.store.book[10]",
+		"$.store.book[10].title",
+		"$.store.bicycle[0]",
+		"$.store.book.title",
+		"$..missing",
+	};
+
+	/**
+	 * A document with <code>null</code>s, empty containers, nested lists and repeated names at
+	 * different depths.
+	 */
+	static final String NULLS =
+			"{ \"a\" : null,\n" +
+			"  \"b\" : { \"c\" : null, \"d\" : [ null, 1, { \"e\" : null }, { \"e\" : 2 } ] },\n" +
+			"  \"f\" : [ ],\n" +
+			"  \"g\" : { },\n" +
+			"  \"h\" : [ [ 1, 2 ], [ { \"e\" : 3 } ], { \"e\" : [ 4, 5 ] } ],\n" +
+			"  \"i\" : { \"i\" : { \"i\" : \"deep\" } },\n" +
+			"  \"j\" : [ { \"k\" : true }, { \"k\" : false }, { \"k\" : null }, { \"k\" : \"true\" }, { \"k\" : 1 } ]\n" +
+			"}";
+
+	static final String[] NULLS_EXPRESSIONS = {
+		"$.a",
+		"$.a.b",
+		"$.b.c",
+		"$.b.c.x",
+		"$.b.d",
+		"$.b.d[0]",
+		"$.b.d[2].e",
+		"$.b.d[3].e",
+		"$.b.d[*].e",
+		"$..e",
+		"$.f",
+		"$.f[0]",
+		"$.f[0].x",
+		"$.g",
+		"$.g.x",
+		"$.h[*].e",
+		"$.h[0][1]",
+		"$.h[1][0].e",
+		"$..i",
+		"$.i.i.i",
+		"$.j[?(@.k == true)]",
+		"$.j[?(@.k == 'true')]",
+		"$.j[?(@.k == 1)]",
+		"$.j[?(@.k)]",
+		"$.j[*].k",
+		"$..k",
+	};
+
+	/**
+	 * A document whose root is an array of values of every type.
+	 */
+	static final String ROOT_ARRAY = "[ { \"id\" : 1 }, { \"id\" : 2, \"x\" : null }, 3, \"s\", [ { \"id\" : 4 } ], null, { \"x\" : { \"id\" : 5 } } ]";
+
+	static final String[] ROOT_ARRAY_EXPRESSIONS = {
+		"$",
+		"$[0]",
+		"$[1].x",
+		"$[4][0].id",
+		"$[*]",
+		"$..id",
+		"$[?(@.id > 1)]",
+		"$[10]",
+	};
+
+	static final String[] RECORDS_EXPRESSIONS = {
+		"$.count",
+		"$.records[0].id",
+		"$.records[11999].name",
+		"$.records[*].id",
+		"$.records[*].owner",
+		"$.records[*].tags",
+		"$..id",
+		"$..score",
+		"$.records[?(@.status == 'OK')].id",
+		"$.records[?(@.score >= 50)].name",
+		"$.records[?(@.id < 100)]",
+		"$.records[?(@.tags)].id",
+		"$.records[*].meta.depth",
+	};
+
+	/**
+	 * Documents that are not well-formed JSON (in any mode of json-smart.)
+	 */
+	static final String[] MALFORMED = {
+		"{ \"a\" : [ 1, 2 }",
+		"{ \"a\" : ",
+		"{ \"a\" : 1, \"b\" : { \"c\" : [ 1, 2, 3 ] }",
+		"[ 1, 2",
+		"{ \"a\" : \"unterminated }",
+		"{ \"a\" : [ 1, 2 ] ] }",
+	};
+
+	/**
+	 * Documents that are accepted by the permissive parser of json-smart, but are not strict JSON.
+	 */
+	static final String[] LENIENT = {
+		"{ 'a' : 1 }",
+		"{ a : 1 }",
+		"[ 1, 2, ]",
+	};
+
+	/**
+	 * @return  The documents above (and a large one), with the expressions to apply to each of them.
+	 */
+	static Map<String, String[]> getCases() {
+		final Map<String, String[]> cases = new LinkedHashMap<String, String[]>();
+		cases.put(STORE, STORE_EXPRESSIONS);
+		cases.put(NULLS, NULLS_EXPRESSIONS);
+		cases.put(ROOT_ARRAY, ROOT_ARRAY_EXPRESSIONS);
+		cases.put(records(12000), RECORDS_EXPRESSIONS);
+		cases.put(nested(200), new String[] { "$..leaf", "$..n.leaf", "$..x", "$.n.n.n.n.n.x" });
+		return cases;
+	}
+
+	/**
+	 * Generates a document with an array of <code>count</code> records, e.g.
+	 * <pre>
+	 * { "count" : 2, "records" : [
+	 *     { "id" : 0, "name" : "record-0", "status" : "OK", "score" : 0, "owner" : null, "tags" : [ "t0" ], "meta" : { "id" : "m0", "depth" : 0 } },
+	 *     { "id" : 1, "name" : "record-1", "status" : "FAILED", "score" : 1.5, "meta" : { "id" : "m1", "depth" : 1 } } ] }
+	 * </pre>
+	 * where records differ in which properties they have, and in the types of their values.
+	 */
+	static String records(final int count) {
+		final StringBuilder json = new StringBuilder(count * 128);
+		json.append("{ \"count\" : ").append(count).append(", \"records\" : [");
+		for (int i = 0; i < count; i++) {
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("  { \"id\" : ").append(i);
+			json.append(", \"name\" : \"record-").append(i).append('"');
+			json.append(", \"status\" : \"").append(i % 3 == 1 ? "FAILED" : "OK").append('"');
+			json.append(", \"score\" : ").append(i % 2 == 0 ? String.valueOf(i % 100) : (i % 100) + ".5");
+			if (i % 4 == 0) {
+				json.append(", \"owner\" : null, \"tags\" : [ \"t").append(i % 7).append("\" ]");
+			}
+			json.append(", \"meta\" : { \"id\" : \"m").append(i).append("\", \"depth\" : ").append(i % 5).append(" } }");
+		}
+		json.append(" ] }");
+		return json.toString();
+	}
+
+	/**
+	 * Generates a document nested <code>depth</code> levels deep, e.g.
+	 * <code>{ "n" : { "n" : { "leaf" : 1 }, "x" : [ 1 ] }, "x" : [ 0 ] }</code>
+	 */
+	static String nested(final int depth) {
+		final StringBuilder json = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			json.append("{ \"n\" : ");
+		}
+		json.append("{ \"leaf\" : 1 }");
+		for (int i = depth - 1; i >= 0; i--) {
+			json.append(", \"x\" : [ ").append(i).append(" ] }");
+		}
+		return json.toString();
+	}
+
+	/**
+	 * Parses the given document the way the activity does by default.
+	 */
+	static Object parse(final String json) throws Exception {
+		return JSONValue.parseWithException(json);
+	}
+
+	/**
+	 * Applies the given expression to the given document with plain json-path.
+	 *
+	 * @return  The outcome (see {@link #outcome(Evaluation)}.)
+	 */
+	static Object expected(final String expression, final String json) throws Exception {
+		final Object document = parse(json);
+		return outcome(new Evaluation() {
+
+			public Object evaluate() {
+				return JsonPath.compile(expression).read(document);
+			}
+
+		});
+	}
+
+	/**
+	 * An evaluation of an expression.
+	 */
+	interface Evaluation {
+
+		Object evaluate() throws Exception;
+
+	}
+
+	/**
+	 * The exception an evaluation failed with.
+	 */
+	static final class Failure {
+
+		private final Exception exception;
+
+		private Failure(final Exception exception) {
+			this.exception = exception;
+		}
+
+		@Override
+		public String toString() {
+			return "failure: " + exception;
+		}
+
+	}
+
+	/**
+	 * @return  The result of the evaluation, or a {@link Failure} if it fails.
+	 */
+	static Object outcome(final Evaluation evaluation) {
+		try {
+			return evaluation.evaluate();
+		} catch (Exception e) {
+			return new Failure(e);
+		}
+	}
+
+	/**
+	 * Asserts that the outcome of an alternative evaluation is the same as that of json-path:
+	 * an equal result (lists in the same order), or a failure with the same type of exception.
+	 */
+	static void assertSameOutcome(final String message, final Object expected, final Object actual) {
+		if (expected instanceof Failure) {
+			if (!(actual instanceof Failure)) {
+				fail(message + ": expected " + expected + " but was " + actual);
+			}
+			final Class<?> expectedClass = ((Failure) expected).exception.getClass();
+			final Class<?> actualClass = ((Failure) actual).exception.getClass();
+			assertTrue(message + ": expected " + expected + " but was " + actual, expectedClass.isAssignableFrom(actualClass));
+		} else {
+			if (actual instanceof Failure) {
+				fail(message + ": expected " + expected + " but was " + actual);
+			}
+			assertEquals(message, expected, actual);
+		}
+	}
+
+	/**
+	 * Asserts that an evaluation of a document that is not well-formed fails.
+	 */
+	static void assertFails(final String message, final Object actual) {
+		assertTrue(message + ": expected a failure but was " + actual, actual instanceof Failure);
+	}
+
+	private JSONPathEquivalence() {
+		super();
+	}
+
+}
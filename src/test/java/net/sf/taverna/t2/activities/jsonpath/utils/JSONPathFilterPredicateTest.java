@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.jayway.jsonpath.internal.filter.FilterFactory;
+import com.jayway.jsonpath.internal.filter.PathTokenFilter;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Checks that {@link JSONPathFilterPredicate} follows the rules of the interpreted filter of
+ * json-path: it selects the same elements, and leaves the lists that the interpreted filter
+ * fails on to it.
+ */
+public class JSONPathFilterPredicateTest {
+
+	private static final String[] FILTERS = {
+		"[?(@.v < 10)]",
+		"[?(@.v <= 10)]",
+		"[?(@.v > 10)]",
+		"[?(@.v >= 10)]",
+		"[?(@.v == 10)]",
+		"[?(@.v <> 10)]",
+		"[?(@.v != 10)]",
+		"[?(@.v === 10)]",
+		"[?(@.v =< 10)]",
+		"[?(@.v==10)]",
+		"[?(@.v  ==  10)]",
+		"[?(@.v == 10 )]",
+		"[?(@['v'] == 10)]",
+		"[?(@.v == -1)]",
+		"[?(@.v == 3000000000)]",
+		"[?(@.v == 10.5)]",
+		"[?(@.v < 1e1)]",
+		"[?(@.v > NaN)]",
+		"[?(@.v == 'a')]",
+		"[?(@.v == 'a b')]",
+		"[?(@.v <> 'a')]",
+		"[?(@.v < 'a')]",
+		"[?(@.v == ''a'')]",
+		"[?(@.v == '10')]",
+		"[?(@.v == a)]",
+		"[?(@.v == true)]",
+		"[?(@.v == null)]",
+		"[?(@.v == ')]",
+		"[?(@.v =)]",
+		"[?(=)]",
+		"[?(@.w > 0)]",
+	};
+
+	/**
+	 * Elements of every type, and with property values of every type.
+	 */
+	private static final String ELEMENTS =
+			"[ { \"v\" : \"a\" }, { \"v\" : \"10\" }, { \"v\" : \"a b\" }, { \"v\" : \"\" }, " +
+			"{ \"v\" : 10 }, { \"v\" : 9 }, { \"v\" : 11 }, { \"v\" : -1 }, { \"v\" : 3000000000 }, { \"v\" : -3000000000 }, " +
+			"{ \"v\" : 10.0 }, { \"v\" : 10.5 }, { \"v\" : 9.5 }, " +
+			"{ \"v\" : true }, { \"v\" : false }, { \"v\" : null }, { \"w\" : 10 }, { }, " +
+			"{ \"v\" : [ 10 ] }, { \"v\" : { \"x\" : 10 } }, " +
+			"10, \"a\", null, true, [ { \"v\" : 10 } ] ]";
+
+	/**
+	 * The predicate gives the same result as the interpreted filter on every list it applies to
+	 * (each element on its own, and all of them together) - and applies to every list that the
+	 * interpreted filter doesn't fail on.
+	 */
+	@Test
+	public void testSameResultsAsInterpretedFilter() throws Exception {
+		final JsonProvider jsonProvider = JSONPathUtils.createProvider();
+		final List<?> elements = (List<?>) JSONPathEquivalence.parse(ELEMENTS);
+
+		for (final String fragment : FILTERS) {
+			final PathTokenFilter pathTokenFilter = FilterFactory.createFilter(fragment);
+			final JSONPathFilterPredicate predicate = JSONPathFilterPredicate.compile(fragment, pathTokenFilter);
+
+			for (final Object element : elements) {
+				final List<Object> list = jsonProvider.createList();
+				list.add(element);
+				assertSameResult(fragment + " on " + element, pathTokenFilter, predicate, list, jsonProvider);
+			}
+			assertSameResult(fragment, pathTokenFilter, predicate, elements, jsonProvider);
+		}
+	}
+
+	@Test
+	public void testOtherFiltersAreNotCompiled() {
+		for (final String fragment : new String[] { "[?(@.v)]", "[*]", "[0]", "v", "..", "[?]" }) {
+			assertNull(fragment, JSONPathFilterPredicate.compile(fragment, FilterFactory.createFilter(fragment)));
+		}
+	}
+
+	@Test
+	public void testValuesThatAreNotListsAreLeftToTheInterpretedFilter() throws Exception {
+		final JsonProvider jsonProvider = JSONPathUtils.createProvider();
+		final JSONPathFilterPredicate predicate = JSONPathFilterPredicate.compile("[?(@.v < 10)]", FilterFactory.createFilter("[?(@.v < 10)]"));
+		assertNull(predicate.filter(JSONPathEquivalence.parse("{ \"v\" : 1 }"), jsonProvider));
+		assertNull(predicate.filter("x", jsonProvider));
+	}
+
+	@Test
+	public void testSameResultsAsJsonPath() throws Exception {
+		for (final Map.Entry<String, String[]> testCase : JSONPathEquivalence.getCases().entrySet()) {
+			final Object document = JSONPathEquivalence.parse(testCase.getKey());
+			for (final String expression : testCase.getValue()) {
+				final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+				final Object actual = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() {
+						return JSONPathUtils.interpret(JSONPathUtils.createProvider(), queryPlan, document);
+					}
+
+				});
+				JSONPathEquivalence.assertSameOutcome(expression, JSONPathEquivalence.expected(expression, testCase.getKey()), actual);
+			}
+		}
+	}
+
+	private static void assertSameResult(final String message, final PathTokenFilter pathTokenFilter, final JSONPathFilterPredicate predicate,
+			final Object list, final JsonProvider jsonProvider) {
+		final Object expected = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+			public Object evaluate() {
+				return pathTokenFilter.filter(list, jsonProvider, JSONPathUtils.getContextFilters(), false);
+			}
+
+		});
+
+		final Object actual = (predicate == null ? null : predicate.filter(list, jsonProvider));
+		if (expected instanceof JSONPathEquivalence.Failure) {
+			// left to the interpreted filter, to fail the same way
+			assertNull(message, actual);
+		} else {
+			assertNotNull(message, actual);
+			JSONPathEquivalence.assertSameOutcome(message, expected, actual);
+		}
+	}
+
+}
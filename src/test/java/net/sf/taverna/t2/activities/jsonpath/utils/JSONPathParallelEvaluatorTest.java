@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.jayway.jsonpath.internal.filter.FilterFactory;
+import com.jayway.jsonpath.internal.filter.PathTokenFilter;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Checks that the parallel evaluation of {@link JSONPathQuerySet} (with {@link JSONPathParallelEvaluator})
+ * gives the same results as plain json-path.
+ */
+public class JSONPathParallelEvaluatorTest {
+
+	/**
+	 * Small enough for every list and deep scan of the test documents to be split.
+	 */
+	private static final int THRESHOLD = 2;
+
+	@Test
+	public void testSameResultsAsJsonPath() throws Exception {
+		final JsonProvider jsonProvider = JSONPathUtils.createProvider();
+		for (final Map.Entry<String, String[]> testCase : JSONPathEquivalence.getCases().entrySet()) {
+			final Object document = JSONPathEquivalence.parse(testCase.getKey());
+			for (final String expression : testCase.getValue()) {
+				final JSONPathQuerySet querySet = new JSONPathQuerySet(Collections.singletonMap(expression, JSONPathQueryPlan.compile(expression)));
+				final Object actual = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() {
+						return querySet.read(jsonProvider, document, THRESHOLD).get(expression);
+					}
+
+				});
+				JSONPathEquivalence.assertSameOutcome(expression, JSONPathEquivalence.expected(expression, testCase.getKey()), actual);
+			}
+		}
+	}
+
+	/**
+	 * The scan of a container is the container itself if it is a map (but not if it is a list),
+	 * followed by the scans of its child containers - as with the deep scan filter of json-path.
+	 */
+	@Test
+	public void testScanIsThatOfJsonPath() throws Exception {
+		final JsonProvider jsonProvider = JSONPathUtils.createProvider();
+		final PathTokenFilter scanFilter = FilterFactory.createFilter(JSONPathParallelEvaluator.SCAN_FRAGMENT);
+		for (final String json : JSONPathEquivalence.getCases().keySet()) {
+			final Object document = JSONPathEquivalence.parse(json);
+			final Object expected = scanFilter.filter(document, jsonProvider, JSONPathUtils.getContextFilters(), false);
+			final List<?> actual = (List<?>) JSONPathParallelEvaluator.scan(scanFilter, document, jsonProvider, THRESHOLD);
+
+			assertEquals(expected, actual);
+			final List<?> expectedNodes = (List<?>) expected;
+			for (int i = 0; i < expectedNodes.size(); i++) {
+				assertTrue(expectedNodes.get(i) == actual.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void testSmallDocumentsAreNotSplit() throws Exception {
+		final JsonProvider jsonProvider = JSONPathUtils.createProvider();
+		final PathTokenFilter scanFilter = FilterFactory.createFilter(JSONPathParallelEvaluator.SCAN_FRAGMENT);
+		assertNull(JSONPathParallelEvaluator.scan(scanFilter, JSONPathEquivalence.parse(JSONPathEquivalence.STORE), jsonProvider, 1000));
+	}
+
+	@Test
+	public void testDecomposableFilters() {
+		assertTrue(JSONPathParallelEvaluator.isDecomposable("[*]", true));
+		assertTrue(JSONPathParallelEvaluator.isDecomposable("[?(@.price < 10)]", true));
+		assertTrue(JSONPathParallelEvaluator.isDecomposable("author", true));
+		assertEquals(false, JSONPathParallelEvaluator.isDecomposable("author", false));
+		assertEquals(false, JSONPathParallelEvaluator.isDecomposable("[0]", true));
+		assertEquals(false, JSONPathParallelEvaluator.isDecomposable("[:2]", true));
+		assertEquals(false, JSONPathParallelEvaluator.isDecomposable("..", true));
+	}
+
+}
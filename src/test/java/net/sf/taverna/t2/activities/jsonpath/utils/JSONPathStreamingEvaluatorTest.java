@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks that expressions applied to the projections built by {@link JSONPathStreamingEvaluator}
+ * give the same results as plain json-path applied to the complete documents.
+ */
+public class JSONPathStreamingEvaluatorTest {
+
+	@Test
+	public void testSameResultsAsJsonPath() throws Exception {
+		for (final Map.Entry<String, String[]> testCase : JSONPathEquivalence.getCases().entrySet()) {
+			final String json = testCase.getKey();
+			for (final String expression : testCase.getValue()) {
+				final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+				final Object actual = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() throws Exception {
+						return JSONPathStreamingEvaluator.read(JSONPathUtils.createProvider(), queryPlan, new StringReader(json));
+					}
+
+				});
+				JSONPathEquivalence.assertSameOutcome(expression, JSONPathEquivalence.expected(expression, json), actual);
+			}
+		}
+	}
+
+	/**
+	 * The projection for several expressions holds the union of their paths - each of them gives
+	 * the same result on it.
+	 */
+	@Test
+	public void testSameResultsForSeveralExpressions() throws Exception {
+		for (final Map.Entry<String, String[]> testCase : JSONPathEquivalence.getCases().entrySet()) {
+			final String json = testCase.getKey();
+			final List<JSONPathQueryPlan> queryPlans = compile(testCase.getValue());
+			final Object projection = JSONPathStreamingEvaluator.parse(queryPlans, new StringReader(json));
+
+			for (final JSONPathQueryPlan queryPlan : queryPlans) {
+				final Object actual = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() {
+						return JSONPathUtils.read(queryPlan, projection);
+					}
+
+				});
+				JSONPathEquivalence.assertSameOutcome(queryPlan.getExpression(), JSONPathEquivalence.expected(queryPlan.getExpression(), json), actual);
+			}
+		}
+	}
+
+	/**
+	 * With a limit on the number of matches, the first matches of array wildcards are the same as those
+	 * of the complete document.
+	 */
+	@Test
+	public void testFirstMatches() throws Exception {
+		final String json = JSONPathEquivalence.records(12000);
+		for (final String expression : new String[] { "$.records[*].id", "$.records[*].meta", "$.records[*].tags" }) {
+			final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+			final Object projection = JSONPathStreamingEvaluator.parse(compile(expression), new StringReader(json), 10);
+			final List<?> actual = (List<?>) JSONPathUtils.read(queryPlan, projection);
+			final List<?> expected = (List<?>) JSONPathEquivalence.expected(expression, json);
+
+			assertTrue(expression, actual.size() >= 10 && actual.size() < expected.size());
+			assertEquals(expression, expected.subList(0, 10), actual.subList(0, 10));
+		}
+	}
+
+	/**
+	 * Whatever the limit, the first matches are those of the complete document - also for deep scans and
+	 * wildcards over objects, whose results are not in document order.
+	 */
+	@Test
+	public void testFirstMatchesAreThoseOfTheCompleteDocument() throws Exception {
+		final String json = "{ \"z\" : { \"id\" : 1 }, \"y\" : { \"id\" : 2 }, \"x\" : { \"id\" : 3 }, \"w\" : [ { \"id\" : 4 }, { \"id\" : 5 } ],"
+				+ " \"v\" : [ [ 6, 7 ], { \"b\" : 8, \"a\" : 9 } ] }";
+		for (final String expression : new String[] { "$..id", "$.*.id", "$.w[*].id", "$.v[*][*]", "$.v[1].*", "$.*" }) {
+			final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+			final List<?> expected = (List<?>) JSONPathEquivalence.expected(expression, json);
+			for (int limit = 1; limit <= expected.size(); limit++) {
+				final Object projection = JSONPathStreamingEvaluator.parse(compile(expression), new StringReader(json), limit);
+				final List<?> actual = (List<?>) JSONPathUtils.read(queryPlan, projection);
+
+				assertTrue(expression, actual.size() >= limit);
+				assertEquals(expression + ", " + limit, expected.subList(0, limit), actual.subList(0, limit));
+			}
+		}
+	}
+
+	@Test
+	public void testSourcesOfMatches() throws Exception {
+		final String json = JSONPathEquivalence.STORE;
+		final Map<Object, String> sources = new IdentityHashMap<Object, String>();
+		final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile("$.store.book[*]");
+		final Object projection = JSONPathStreamingEvaluator.parse(compile("$.store.book[*]"), new StringReader(json), 0, sources);
+
+		for (final Object book : (List<?>) JSONPathUtils.read(queryPlan, projection)) {
+			final String source = sources.get(book);
+			assertTrue(json.contains(source));
+			assertEquals(book, JSONPathEquivalence.parse(source));
+		}
+	}
+
+	@Test
+	public void testMalformedDocumentsAreRejected() throws Exception {
+		for (final String json : JSONPathEquivalence.MALFORMED) {
+			for (final String expression : new String[] { "$", "$.a", "$..c", "$[*]" }) {
+				final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+				JSONPathEquivalence.assertFails(json, JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() throws Exception {
+						return JSONPathEquivalence.parse(json);
+					}
+
+				}));
+				JSONPathEquivalence.assertFails(json, JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() throws Exception {
+						return JSONPathStreamingEvaluator.read(JSONPathUtils.createProvider(), queryPlan, new StringReader(json));
+					}
+
+				}));
+			}
+		}
+	}
+
+	/**
+	 * Streamed documents must be strict JSON - unlike those parsed by the permissive parser of json-smart.
+	 */
+	@Test
+	public void testStreamingIsStrict() throws Exception {
+		final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile("$..a");
+		for (final String json : JSONPathEquivalence.LENIENT) {
+			JSONPathEquivalence.assertFails(json, JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+				public Object evaluate() throws Exception {
+					return JSONPathStreamingEvaluator.read(JSONPathUtils.createProvider(), queryPlan, new StringReader(json));
+				}
+
+			}));
+		}
+	}
+
+	private static List<JSONPathQueryPlan> compile(final String... expressions) {
+		final List<JSONPathQueryPlan> queryPlans = new ArrayList<JSONPathQueryPlan>();
+		for (final String expression : expressions) {
+			queryPlans.add(JSONPathQueryPlan.compile(expression));
+		}
+		return queryPlans;
+	}
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link JSONStreamReader} reads documents into the same values as json-smart.
+ */
+public class JSONStreamReaderTest {
+
+	@Test
+	public void testSameValuesAsJsonSmart() throws Exception {
+		for (final String json : JSONPathEquivalence.getCases().keySet()) {
+			assertEquals(JSONPathEquivalence.parse(json), read(json, null));
+		}
+	}
+
+	@Test
+	public void testSameValuesWithStringPool() throws Exception {
+		final JSONStringPool stringPool = new JSONStringPool(16, JSONStringPool.DEFAULT_MAX_LENGTH, null);
+		for (final String json : JSONPathEquivalence.getCases().keySet()) {
+			assertEquals(JSONPathEquivalence.parse(json), read(json, stringPool));
+		}
+	}
+
+	@Test
+	public void testScalarsAndEscapes() throws Exception {
+		final String json = "[ 0, -1, 2147483647, 2147483648, -9223372036854775808, 1.5, -0.25, 1e3, 2E-2, true, false, null, \"\", \"a\\\"b\\\\c\\/d\\n\\u00e9\\ud83d\\ude00\" ]";
+		assertEquals(JSONPathEquivalence.parse(json), read(json, null));
+	}
+
+	@Test
+	public void testMalformedDocumentsAreRejected() throws Exception {
+		for (final String json : JSONPathEquivalence.MALFORMED) {
+			try {
+				JSONPathEquivalence.parse(json);
+				fail("json-smart accepts " + json);
+			} catch (Exception e) {
+				// expected
+			}
+			assertRejected(json);
+		}
+	}
+
+	/**
+	 * The reader only accepts strict JSON - documents that the permissive parser of json-smart
+	 * accepts are rejected.
+	 */
+	@Test
+	public void testReaderIsStrict() throws Exception {
+		for (final String json : JSONPathEquivalence.LENIENT) {
+			assertNotNull(JSONPathEquivalence.parse(json));
+			assertRejected(json);
+		}
+	}
+
+	@Test
+	public void testTrailingContentIsRejected() throws Exception {
+		final JSONStreamReader reader = new JSONStreamReader(new StringReader("{ \"a\" : 1 } x"));
+		reader.readValue();
+		try {
+			reader.peek();
+			fail("Trailing content accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static Object read(final String json, final JSONStringPool stringPool) throws IOException {
+		final JSONStreamReader reader = new JSONStreamReader(new StringReader(json), stringPool);
+		final Object value = reader.readValue();
+		assertEquals(JSONStreamReader.Token.END_DOCUMENT, reader.peek());
+		return value;
+	}
+
+	private static void assertRejected(final String json) {
+		try {
+			read(json, null);
+			fail("Malformed document accepted: " + json);
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Checks that the pools of a recycler start out empty for every document, and share the strings
+ * of the documents through their parent only.
+ */
+public class JSONStringPoolTest {
+
+	@Test
+	public void testRecycledPoolIsEmpty() {
+		final JSONStringPool.Recycler recycler = new JSONStringPool.Recycler(null);
+		final JSONStringPool first = recycler.acquire();
+		final String name = first.intern(new String("name"));
+		assertSame(name, first.intern(new String("name")));
+		assertEquals(1, first.getHitCount());
+		recycler.release(first);
+
+		final JSONStringPool second = recycler.acquire();
+		try {
+			// the table is reused, its strings and counts are not
+			assertSame(first, second);
+			assertEquals(0, second.getHitCount());
+			assertEquals(0, second.getSavedCharacters());
+			assertNotSame(name, second.intern(new String("name")));
+			assertEquals(0, second.getHitCount());
+			assertEquals(1, second.getMissCount());
+		} finally {
+			recycler.release(second);
+		}
+	}
+
+	@Test
+	public void testPoolsShareStringsThroughTheParent() {
+		final JSONStringPool parent = new JSONStringPool();
+		final JSONStringPool.Recycler recycler = new JSONStringPool.Recycler(parent);
+		final JSONStringPool first = recycler.acquire();
+		final JSONStringPool second = recycler.acquire();
+		try {
+			// a pool in use is not handed out again
+			assertNotSame(first, second);
+
+			final String value = first.intern(new String("value"));
+			assertSame(value, second.intern(new String("value")));
+			assertSame(value, parent.intern(new String("value")));
+		} finally {
+			recycler.release(first);
+			recycler.release(second);
+		}
+
+		// the parent keeps the strings of released pools
+		final JSONStringPool third = recycler.acquire();
+		try {
+			assertEquals("value", third.intern(new String("value")));
+			assertEquals(1, third.getHitCount());
+		} finally {
+			recycler.release(third);
+		}
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2013, University of Manchester and University of Southampton
+ *
+ * Licensed under the GNU Lesser General Public License v2.1
+ * See the "LICENSE" file that is distributed with the source code for license terms.
+ */
+package net.sf.taverna.t2.activities.jsonpath.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.minidev.json.parser.ContainerFactory;
+import net.minidev.json.parser.JSONParser;
+
+import org.junit.Test;
+
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.spi.JsonProvider;
+
+/**
+ * Checks that a {@link JSONTape} holds the same document as json-smart parses, and that
+ * JSONPath expressions give the same results on it.
+ */
+public class JSONTapeTest {
+
+	/**
+	 * Documents with values of every kind, and objects with few and with many properties
+	 * (with and without a hash table of their names.)
+	 */
+	private static final String[] DOCUMENTS = {
+		"{ }",
+		"[ ]",
+		"{ \"a\" : { }, \"b\" : [ ], \"c\" : [ [ ], { } ] }",
+		"{ \"i\" : 1, \"n\" : -7, \"l\" : 3000000000, \"d\" : 1.5, \"e\" : 1e3, \"b\" : 123456789012345678901234567890 }",
+		"{ \"s\" : \"x\", \"u\" : \"\\u00e9\\n\\\"\", \"t\" : true, \"f\" : false, \"z\" : null }",
+		"[ 1, \"a\", null, true, { \"a\" : [ 2 ] } ]",
+		large(40, false),
+		large(9, false),
+	};
+
+	@Test
+	public void testSameValuesAsJsonSmart() throws Exception {
+		final List<String> documents = new ArrayList<String>();
+		for (final String document : DOCUMENTS) {
+			documents.add(document);
+		}
+		documents.addAll(JSONPathEquivalence.getCases().keySet());
+
+		for (final String json : documents) {
+			final Object expected = JSONPathEquivalence.parse(json);
+			final Object actual = JSONTape.parse(new StringReader(json)).getRoot();
+			assertEquals(json, expected, actual);
+			assertEqualLookups(json, expected, actual);
+
+			// and serialized to the same document
+			final StringBuilder out = new StringBuilder();
+			JSONTape.writeJSON(actual, out);
+			assertEquals(json, expected, JSONPathEquivalence.parse(out.toString()));
+		}
+	}
+
+	/**
+	 * The properties of objects are in document order in a tape, so the results are compared with
+	 * those on a document that json-smart parses into ordered maps.
+	 */
+	@Test
+	public void testSameResultsAsJsonSmart() throws Exception {
+		final JsonProvider tapeProvider = new JSONTapeJsonProvider();
+		for (final Map.Entry<String, String[]> testCase : JSONPathEquivalence.getCases().entrySet()) {
+			final Object document = tapeProvider.parse(testCase.getKey());
+			final Object orderedDocument = new JSONParser(JSONParser.MODE_PERMISSIVE).parse(testCase.getKey(), ContainerFactory.FACTORY_ORDERED);
+			for (final String expression : testCase.getValue()) {
+				final JSONPathQueryPlan queryPlan = JSONPathQueryPlan.compile(expression);
+				final Object actual = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() {
+						return JSONPathUtils.interpret(tapeProvider, queryPlan, document);
+					}
+
+				});
+				final Object expected = JSONPathEquivalence.outcome(new JSONPathEquivalence.Evaluation() {
+
+					public Object evaluate() {
+						return JsonPath.compile(expression).read(orderedDocument);
+					}
+
+				});
+				JSONPathEquivalence.assertSameOutcome(expression, expected, actual);
+			}
+		}
+	}
+
+	/**
+	 * json-smart rejects objects with duplicate property names - in a tape, a property replaces
+	 * those with the same name before it, keeping their position.
+	 */
+	@Test
+	public void testDuplicateNames() throws Exception {
+		final Map<?, ?> small = (Map<?, ?>) JSONTape.parse(new StringReader("{ \"a\" : 1, \"b\" : 2, \"a\" : 3 }")).getRoot();
+		assertEquals(2, small.size());
+		assertEquals(Integer.valueOf(3), small.get("a"));
+		assertEquals("[a, b]", small.keySet().toString());
+
+		final Map<?, ?> large = (Map<?, ?>) JSONTape.parse(new StringReader(large(40, true))).getRoot();
+		assertEquals(40, large.size());
+		assertEquals(Integer.valueOf(-7), large.get("p3"));
+		assertEquals(Integer.valueOf(-39), large.get("p19"));
+		assertEquals("{p20=20}", large.get("p20").toString());
+	}
+
+	@Test
+	public void testValuesAreReused() throws Exception {
+		final Map<?, ?> root = (Map<?, ?>) JSONTape.parse(new StringReader(
+				"{ \"o\" : { }, \"a\" : [ ], \"l\" : 3000000000, \"d\" : 1.5, \"i\" : 100000 }")).getRoot();
+		for (final Object name : root.keySet()) {
+			assertSame(String.valueOf(name), root.get(name), root.get(name));
+		}
+	}
+
+	@Test
+	public void testMissingNames() throws Exception {
+		final Map<?, ?> root = (Map<?, ?>) JSONTape.parse(new StringReader(large(40, false))).getRoot();
+		final Map<?, ?> small = (Map<?, ?>) root.get("p0");
+		// a name of the document, but not of the object
+		assertFalse(small.containsKey("p1"));
+		assertNull(small.get("p1"));
+		// no name of the document
+		assertFalse(root.containsKey("q"));
+		assertNull(root.get(Integer.valueOf(0)));
+		assertTrue(root.containsKey("p39"));
+	}
+
+	/**
+	 * Asserts that every property of every object can be looked up by its name in the tape.
+	 */
+	private static void assertEqualLookups(final String message, final Object expected, final Object actual) {
+		if (expected instanceof Map) {
+			final Map<?, ?> expectedMap = (Map<?, ?>) expected;
+			final Map<?, ?> actualMap = (Map<?, ?>) actual;
+			for (final Map.Entry<?, ?> entry : expectedMap.entrySet()) {
+				assertTrue(message, actualMap.containsKey(entry.getKey()));
+				assertEqualLookups(message, entry.getValue(), actualMap.get(entry.getKey()));
+			}
+		} else if (expected instanceof List) {
+			final List<?> expectedList = (List<?>) expected;
+			for (int i = 0; i < expectedList.size(); i++) {
+				assertEqualLookups(message, expectedList.get(i), ((List<?>) actual).get(i));
+			}
+		} else {
+			assertEquals(message, expected, actual);
+		}
+	}
+
+	/**
+	 * Generates an object with the given number of properties, each of them an object with one
+	 * property - e.g. <code>{ "p0" : { "p0" : 0 }, "p1" : { "p1" : 1 } }</code> - and with the
+	 * properties repeated (with other values), if <code>duplicates</code> is set.
+	 */
+	private static String large(final int count, final boolean duplicates) {
+		final StringBuilder json = new StringBuilder("{ ");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				json.append(", ");
+			}
+			json.append("\"p").append(i).append("\" : { \"p").append(i).append("\" : ").append(i).append(" }");
+			if (duplicates) {
+				json.append(", \"p").append(i / 2).append("\" : ").append(-i);
+			}
+		}
+		return json.append(" }").toString();
+	}
+
+}